@@ -0,0 +1,66 @@
+package es.jmh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * concurrentRequests bulks of batchSize documents per operation, sent together and waited for,
+ * with and without setRefresh(true) on the bulk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class BulkBenchmark extends LocalNodeBenchmark {
+
+  @Param({"100", "1000", "5000"})
+  public int batchSize;
+
+  @Param({"1", "2", "4"})
+  public int concurrentRequests;
+
+  @Param({"false", "true"})
+  public boolean refresh;
+
+  private final AtomicLong ids = new AtomicLong();
+
+  @Benchmark
+  public void bulk(IngestCounters counters, Blackhole blackhole) throws IOException {
+    List<ListenableActionFuture<BulkResponse>> responses = new ArrayList<>(concurrentRequests);
+    for (int r = 0; r < concurrentRequests; r++) {
+      BulkRequestBuilder bulk = client.prepareBulk().setRefresh(refresh);
+      for (int i = 0; i < batchSize; i++) {
+        long id = ids.incrementAndGet();
+        bulk.add(client.prepareIndex(INDEX, TYPE, String.valueOf(id)).setSource(source(id)));
+      }
+      counters.bytes += bulk.request().estimatedSizeInBytes();
+      responses.add(bulk.execute());
+    }
+
+    for (ListenableActionFuture<BulkResponse> response : responses) {
+      BulkResponse bulkResponse = response.actionGet();
+      if (bulkResponse.hasFailures()) {
+        throw new IllegalStateException(bulkResponse.buildFailureMessage());
+      }
+      blackhole.consume(bulkResponse);
+      counters.docs += batchSize;
+    }
+  }
+}
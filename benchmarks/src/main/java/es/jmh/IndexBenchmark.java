@@ -0,0 +1,44 @@
+package es.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One prepareIndex(...).setSource(...).get() per operation, with and without setRefresh(true).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexBenchmark extends LocalNodeBenchmark {
+
+  @Param({"false", "true"})
+  public boolean refresh;
+
+  private final AtomicLong ids = new AtomicLong();
+
+  @Benchmark
+  public IndexResponse index(IngestCounters counters) throws IOException {
+    long id = ids.incrementAndGet();
+    BytesReference source = source(id);
+    IndexResponse response =
+        client.prepareIndex(INDEX, TYPE, String.valueOf(id)).setSource(source)
+            .setRefresh(refresh).get();
+    counters.docs++;
+    counters.bytes += source.length();
+    return response;
+  }
+}
@@ -0,0 +1,25 @@
+package es.jmh;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Documents and source bytes indexed per thread, reported by JMH as docs/s and bytes/s next to
+ * the ops/s of the benchmark method.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class IngestCounters {
+
+  public long docs;
+  public long bytes;
+
+  @Setup(Level.Iteration)
+  public void reset() {
+    docs = 0;
+    bytes = 0;
+  }
+}
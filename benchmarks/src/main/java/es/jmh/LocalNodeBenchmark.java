@@ -0,0 +1,73 @@
+package es.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Starts an in-process local data node per trial, the same way ESLocalNodeTestBase does for the
+ * JUnit benchmarks, and recreates the benchmark index with a single shard and no replica.
+ */
+@State(Scope.Benchmark)
+public abstract class LocalNodeBenchmark {
+
+  static final String INDEX = "ibench";
+  static final String TYPE = "tbench";
+
+  @Param({"JSON", "SMILE"})
+  public XContentType contentType;
+
+  protected Node node;
+  protected Client client;
+
+  @Setup
+  public void startNode() throws IOException {
+    node =
+        NodeBuilder
+            .nodeBuilder()
+            .local(true)
+            .data(true)
+            .clusterName("jmh-" + System.nanoTime())
+            .settings(
+                ImmutableSettings.settingsBuilder()
+                    .put("path.data", Files.createTempDirectory("es-jmh").toString())
+                    .put("http.enabled", false)).node();
+    client = node.client();
+
+    client.admin().indices().prepareCreate(INDEX)
+        .setSettings(ImmutableSettings.settingsBuilder().put("number_of_shards", 1)
+            .put("number_of_replicas", 0)).get();
+    client.admin().cluster().prepareHealth(INDEX).setWaitForGreenStatus()
+        .setTimeout(TimeValue.timeValueSeconds(30)).get();
+  }
+
+  @TearDown
+  public void closeNode() {
+    node.close();
+  }
+
+  /**
+   * A tweet-like document in the benchmarked content type.
+   */
+  BytesReference source(long i) throws IOException {
+    XContentBuilder builder = XContentFactory.contentBuilder(contentType);
+    return builder.startObject().field("user", "user" + (i % 100)).field("age", i % 80)
+        .field("postDate", 1414108800000L + i)
+        .field("message", "Try ES with the java client, benchmark document " + i).endObject()
+        .bytes();
+  }
+}
@@ -0,0 +1,51 @@
+package es.bulk;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Jittered exponential backoff: the n-th retry waits a random time between half and all of
+ * min(maxDelay, initialDelay * 2^n), so that clients rejected together do not retry together.
+ */
+public class BackoffPolicy {
+
+  private final long initialDelayMillis;
+  private final long maxDelayMillis;
+  private final int maxRetries;
+
+  private BackoffPolicy(TimeValue initialDelay, TimeValue maxDelay, int maxRetries) {
+    this.initialDelayMillis = initialDelay.millis();
+    this.maxDelayMillis = maxDelay.millis();
+    this.maxRetries = maxRetries;
+  }
+
+  public static BackoffPolicy exponential(TimeValue initialDelay, TimeValue maxDelay,
+      int maxRetries) {
+    if (initialDelay.millis() <= 0 || maxDelay.millis() < initialDelay.millis()) {
+      throw new IllegalArgumentException("expected 0 < initialDelay <= maxDelay");
+    }
+    return new BackoffPolicy(initialDelay, maxDelay, maxRetries);
+  }
+
+  public static BackoffPolicy noBackoff() {
+    return new BackoffPolicy(TimeValue.timeValueMillis(1), TimeValue.timeValueMillis(1), 0);
+  }
+
+  public int maxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Delay before the given retry, starting at 0 for the first one.
+   */
+  public TimeValue delay(int retry) {
+    long ceiling = initialDelayMillis << Math.min(retry, 30);
+    if (ceiling <= 0 || ceiling > maxDelayMillis) {
+      ceiling = maxDelayMillis;
+    }
+    long half = ceiling / 2;
+    long jitter = ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    return TimeValue.timeValueMillis(half + jitter);
+  }
+}
@@ -0,0 +1,536 @@
+package es.bulk;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Reusable bulk ingestion component, a replacement for building a single BulkRequestBuilder and
+ * blocking on it.
+ *
+ * Requests are accumulated and flushed when the number of actions, the estimated size in bytes
+ * or the flush interval is reached. Up to concurrentRequests bulks are kept in flight; when all
+ * slots are taken the producer calling {@link #add(ActionRequest)} blocks (backpressure). The
+ * number of slots adapts to the cluster: it is halved whenever a bulk gets rejected items and
+ * grows back by one after a run of clean bulks.
+ *
+ * With a {@link BulkRetryHandler} only the rejected items of a bulk are resubmitted, and the
+ * in-flight slot stays taken until the retries are done.
+ */
+public class BulkIngester implements Closeable {
+
+  private final Client client;
+  private final BulkProcessor.Listener listener;
+  private final BulkRetryHandler retryHandler;
+
+  private final int bulkActions;
+  private final long bulkSize;
+  private final int maxConcurrentRequests;
+
+  private final ScheduledExecutorService scheduler;
+  private final ScheduledFuture<?> scheduledFlush;
+
+  private final ReentrantLock slotLock = new ReentrantLock();
+  private final Condition slotReleased = slotLock.newCondition();
+  private int inFlight;
+  private int concurrentRequests;
+  private int cleanBulks;
+
+  private final AtomicLong executionIdGen = new AtomicLong();
+  private final Stats stats = new Stats();
+
+  private BulkRequest bulkRequest;
+  private volatile boolean closed = false;
+
+  private BulkIngester(Client client, BulkProcessor.Listener listener,
+      BulkRetryHandler retryHandler, int bulkActions, ByteSizeValue bulkSize,
+      TimeValue flushInterval, int concurrentRequests) {
+    this.client = client;
+    this.listener = listener;
+    this.retryHandler = retryHandler;
+    this.bulkActions = bulkActions;
+    this.bulkSize = bulkSize.bytes();
+    this.maxConcurrentRequests = concurrentRequests;
+    this.concurrentRequests = concurrentRequests;
+    this.bulkRequest = new BulkRequest();
+
+    if (flushInterval != null) {
+      this.scheduler = Executors.newSingleThreadScheduledExecutor();
+      this.scheduledFlush = scheduler.scheduleWithFixedDelay(() -> {
+        if (!closed) {
+          flush();
+        }
+      }, flushInterval.millis(), flushInterval.millis(), TimeUnit.MILLISECONDS);
+    } else {
+      this.scheduler = null;
+      this.scheduledFlush = null;
+    }
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  /**
+   * Adds an index, delete or update request. Blocks while all in-flight slots are taken; if
+   * interrupted meanwhile the bulk is reported as failed and the interrupt status is kept.
+   */
+  public BulkIngester add(ActionRequest<?> request) {
+    BulkRequest full = null;
+    synchronized (this) {
+      ensureOpen();
+      bulkRequest.add(request);
+      if (isOverTheLimit()) {
+        full = swap();
+      }
+    }
+    if (full != null) {
+      execute(full);
+    }
+    return this;
+  }
+
+  /**
+   * Sends whatever is currently accumulated, regardless of the flush thresholds.
+   */
+  public void flush() {
+    BulkRequest pending;
+    synchronized (this) {
+      if (bulkRequest.numberOfActions() == 0) {
+        return;
+      }
+      pending = swap();
+    }
+    execute(pending);
+  }
+
+  /**
+   * Flushes the pending actions and waits until every in-flight bulk has completed. The timeout
+   * also bounds the wait for a slot to send the pending actions, which are reported as failed
+   * to the listener if none frees up in time.
+   *
+   * @return true if all bulks completed before the timeout elapsed
+   */
+  public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    if (!closeAndFlush(true, deadline)) {
+      return false;
+    }
+    slotLock.lock();
+    try {
+      while (inFlight > 0) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        slotReleased.awaitNanos(remaining);
+      }
+      return true;
+    } finally {
+      slotLock.unlock();
+    }
+  }
+
+  /**
+   * Flushes the pending actions without waiting for in-flight bulks, see
+   * {@link #awaitClose(long, TimeUnit)}. Still blocks while all in-flight slots are taken.
+   */
+  @Override
+  public void close() {
+    try {
+      closeAndFlush(false, 0);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public Stats stats() {
+    return stats;
+  }
+
+  /**
+   * The number of bulks currently allowed in flight, after adapting to rejections.
+   */
+  public int concurrentRequests() {
+    slotLock.lock();
+    try {
+      return concurrentRequests;
+    } finally {
+      slotLock.unlock();
+    }
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("bulk ingester already closed");
+    }
+  }
+
+  private boolean isOverTheLimit() {
+    if (bulkActions != -1 && bulkRequest.numberOfActions() >= bulkActions) {
+      return true;
+    }
+    if (bulkSize != -1 && bulkRequest.estimatedSizeInBytes() >= bulkSize) {
+      return true;
+    }
+    return false;
+  }
+
+  private BulkRequest swap() {
+    BulkRequest full = bulkRequest;
+    bulkRequest = new BulkRequest();
+    return full;
+  }
+
+  /**
+   * Closes the ingester on the first call and sends the pending actions.
+   *
+   * @return false if no slot was free before the deadline
+   */
+  private boolean closeAndFlush(boolean timed, long deadline) throws InterruptedException {
+    synchronized (this) {
+      if (closed) {
+        return true;
+      }
+      closed = true;
+    }
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduler.shutdown();
+    }
+
+    BulkRequest pending;
+    synchronized (this) {
+      pending = bulkRequest.numberOfActions() > 0 ? swap() : null;
+    }
+    return pending == null || execute(pending, timed, deadline);
+  }
+
+  private void execute(BulkRequest request) {
+    try {
+      execute(request, false, 0);
+    } catch (InterruptedException e) {
+      // the bulk was reported as failed, let the producer see the interrupt
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return false if no slot was free before the deadline, the bulk is then reported as failed
+   */
+  private boolean execute(BulkRequest request, boolean timed, long deadline)
+      throws InterruptedException {
+    final long executionId = executionIdGen.incrementAndGet();
+    final long bytes = request.estimatedSizeInBytes();
+    final int actions = request.numberOfActions();
+
+    if (maxConcurrentRequests == 0) {
+      // synchronous mode, the caller thread executes the bulk
+      listener.beforeBulk(executionId, request);
+      long start = System.nanoTime();
+      BulkResponse response;
+      try {
+        response =
+            retryHandler != null ? retryHandler.execute(client, request) : client.bulk(request)
+                .actionGet();
+      } catch (Throwable t) {
+        onFailure(t);
+        listener.afterBulk(executionId, request, t);
+        return true;
+      }
+      onResponse(response, actions, bytes, start);
+      listener.afterBulk(executionId, request, response);
+      return true;
+    }
+
+    try {
+      if (!acquireSlot(timed, deadline)) {
+        abort(executionId, request, new ElasticsearchTimeoutException(
+            "No bulk slot freed up before the close timeout"));
+        return false;
+      }
+    } catch (InterruptedException e) {
+      abort(executionId, request, e);
+      throw e;
+    }
+    listener.beforeBulk(executionId, request);
+    final long start = System.nanoTime();
+    try {
+      ActionListener<BulkResponse> bulkListener = new ActionListener<BulkResponse>() {
+        @Override
+        public void onResponse(BulkResponse response) {
+          try {
+            BulkIngester.this.onResponse(response, actions, bytes, start);
+            listener.afterBulk(executionId, request, response);
+          } finally {
+            releaseSlot(rejectedItems(response) > 0);
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+          try {
+            BulkIngester.this.onFailure(e);
+            listener.afterBulk(executionId, request, e);
+          } finally {
+            releaseSlot(isRejection(e));
+          }
+        }
+      };
+      if (retryHandler != null) {
+        retryHandler.execute(client, request, bulkListener);
+      } else {
+        client.bulk(request, bulkListener);
+      }
+    } catch (Throwable t) {
+      onFailure(t);
+      listener.afterBulk(executionId, request, t);
+      releaseSlot(false);
+    }
+    return true;
+  }
+
+  /**
+   * Reports a bulk that was never sent as failed.
+   */
+  private void abort(long executionId, BulkRequest request, Throwable t) {
+    onFailure(t);
+    listener.beforeBulk(executionId, request);
+    listener.afterBulk(executionId, request, t);
+  }
+
+  /**
+   * @return false if no slot was free before the deadline
+   */
+  private boolean acquireSlot(boolean timed, long deadline) throws InterruptedException {
+    slotLock.lock();
+    try {
+      while (inFlight >= concurrentRequests) {
+        stats.blockedProducers.incrementAndGet();
+        if (!timed) {
+          slotReleased.await();
+          continue;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        slotReleased.awaitNanos(remaining);
+      }
+      inFlight++;
+      return true;
+    } finally {
+      slotLock.unlock();
+    }
+  }
+
+  private void releaseSlot(boolean rejected) {
+    slotLock.lock();
+    try {
+      inFlight--;
+      if (rejected) {
+        // multiplicative decrease, the cluster is pushing back
+        concurrentRequests = Math.max(1, concurrentRequests / 2);
+        cleanBulks = 0;
+      } else if (concurrentRequests < maxConcurrentRequests
+          && ++cleanBulks >= concurrentRequests) {
+        // additive increase after a full window of clean bulks
+        concurrentRequests++;
+        cleanBulks = 0;
+      }
+      slotReleased.signalAll();
+    } finally {
+      slotLock.unlock();
+    }
+  }
+
+  private void onResponse(BulkResponse response, int actions, long bytes, long start) {
+    stats.bulks.incrementAndGet();
+    stats.actions.addAndGet(actions);
+    stats.bytes.addAndGet(bytes);
+    stats.tookNanos.addAndGet(System.nanoTime() - start);
+    for (BulkItemResponse item : response) {
+      if (item.isFailed()) {
+        stats.failedActions.incrementAndGet();
+      }
+    }
+  }
+
+  private void onFailure(Throwable t) {
+    stats.failedBulks.incrementAndGet();
+  }
+
+  static int rejectedItems(BulkResponse response) {
+    int rejected = 0;
+    if (response.hasFailures()) {
+      for (BulkItemResponse item : response) {
+        if (item.isFailed() && isRejection(item.getFailure())) {
+          rejected++;
+        }
+      }
+    }
+    return rejected;
+  }
+
+  static boolean isRejection(BulkItemResponse.Failure failure) {
+    return failure.getStatus() == RestStatus.TOO_MANY_REQUESTS
+        || (failure.getMessage() != null && failure.getMessage().contains(
+            "EsRejectedExecutionException"));
+  }
+
+  static boolean isRejection(Throwable t) {
+    return ExceptionsHelper.status(t) == RestStatus.TOO_MANY_REQUESTS;
+  }
+
+  /**
+   * Running counters, safe to read while the ingester is working.
+   */
+  public static class Stats {
+    final AtomicLong bulks = new AtomicLong();
+    final AtomicLong failedBulks = new AtomicLong();
+    final AtomicLong actions = new AtomicLong();
+    final AtomicLong failedActions = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong tookNanos = new AtomicLong();
+    final AtomicLong blockedProducers = new AtomicLong();
+
+    public long getBulks() {
+      return bulks.get();
+    }
+
+    public long getFailedBulks() {
+      return failedBulks.get();
+    }
+
+    public long getActions() {
+      return actions.get();
+    }
+
+    public long getFailedActions() {
+      return failedActions.get();
+    }
+
+    public long getBytes() {
+      return bytes.get();
+    }
+
+    public TimeValue getTotalTook() {
+      return TimeValue.timeValueNanos(tookNanos.get());
+    }
+
+    /**
+     * How many times a producer had to wait for an in-flight slot.
+     */
+    public long getBlockedProducers() {
+      return blockedProducers.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("bulks: %d (%d failed), actions: %d (%d failed), bytes: %s, "
+          + "took: %s, producer waits: %d", getBulks(), getFailedBulks(), getActions(),
+          getFailedActions(), new ByteSizeValue(getBytes()), getTotalTook(),
+          getBlockedProducers());
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private BulkProcessor.Listener listener = new NoopListener();
+    private BulkRetryHandler retryHandler = null;
+    private int bulkActions = 1000;
+    private ByteSizeValue bulkSize = new ByteSizeValue(5, ByteSizeUnit.MB);
+    private TimeValue flushInterval = null;
+    private int concurrentRequests = 1;
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * Flush when this many actions are accumulated, -1 to disable.
+     */
+    public Builder setBulkActions(int bulkActions) {
+      this.bulkActions = bulkActions;
+      return this;
+    }
+
+    /**
+     * Flush when the estimated request size reaches this value, -1 bytes to disable.
+     */
+    public Builder setBulkSize(ByteSizeValue bulkSize) {
+      this.bulkSize = bulkSize;
+      return this;
+    }
+
+    /**
+     * Flush whatever is pending at this interval, null (default) to disable.
+     */
+    public Builder setFlushInterval(TimeValue flushInterval) {
+      this.flushInterval = flushInterval;
+      return this;
+    }
+
+    /**
+     * Maximum number of bulks in flight, 0 executes every bulk synchronously in the producer
+     * thread.
+     */
+    public Builder setConcurrentRequests(int concurrentRequests) {
+      this.concurrentRequests = concurrentRequests;
+      return this;
+    }
+
+    public Builder setListener(BulkProcessor.Listener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    /**
+     * Resubmit rejected items instead of reporting them as failed, null (default) to disable.
+     */
+    public Builder setRetryHandler(BulkRetryHandler retryHandler) {
+      this.retryHandler = retryHandler;
+      return this;
+    }
+
+    public BulkIngester build() {
+      if (concurrentRequests < 0) {
+        throw new IllegalArgumentException("concurrentRequests must be >= 0");
+      }
+      return new BulkIngester(client, listener, retryHandler, bulkActions, bulkSize,
+          flushInterval, concurrentRequests);
+    }
+  }
+
+  static class NoopListener implements BulkProcessor.Listener {
+
+    @Override
+    public void beforeBulk(long executionId, BulkRequest request) {}
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {}
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, Throwable failure) {}
+  }
+}
@@ -0,0 +1,225 @@
+package es.bulk;
+
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Puts indices into a bulk-load friendly state for the duration of a large ingest: no periodic
+ * refresh, no replicas and a translog that is flushed far less often.
+ *
+ * <pre>
+ * try (BulkLoadMode mode = BulkLoadMode.builder(client, &quot;cars&quot;).enter()) {
+ *   // bulk index
+ * }
+ * </pre>
+ *
+ * close() restores the settings each index had before, also when the load failed, then
+ * refreshes, optimizes and waits for the requested health, so that the replicas are recovered
+ * from the final segments instead of replaying every document.
+ */
+public class BulkLoadMode implements Closeable {
+
+  static final String REFRESH_INTERVAL = "index.refresh_interval";
+  static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+  static final String FLUSH_THRESHOLD_OPS = "index.translog.flush_threshold_ops";
+  static final String FLUSH_THRESHOLD_SIZE = "index.translog.flush_threshold_size";
+  static final String FLUSH_THRESHOLD_PERIOD = "index.translog.flush_threshold_period";
+
+  // what an index uses when the setting was never set, 1.x cannot reset a setting to its default
+  private static final Settings DEFAULTS = ImmutableSettings.settingsBuilder()
+      .put(REFRESH_INTERVAL, "1s").put(FLUSH_THRESHOLD_OPS, Integer.MAX_VALUE)
+      .put(FLUSH_THRESHOLD_SIZE, "200mb").put(FLUSH_THRESHOLD_PERIOD, "30m").build();
+
+  private final Client client;
+  private final String[] indices;
+  private final int optimizeMaxNumSegments;
+  private final ClusterHealthStatus waitForStatus;
+  private final TimeValue timeout;
+
+  private final Map<String, Settings> originals = new LinkedHashMap<>();
+  private boolean closed = false;
+
+  private BulkLoadMode(Client client, String[] indices, int optimizeMaxNumSegments,
+      ClusterHealthStatus waitForStatus, TimeValue timeout) {
+    this.client = client;
+    this.indices = indices;
+    this.optimizeMaxNumSegments = optimizeMaxNumSegments;
+    this.waitForStatus = waitForStatus;
+    this.timeout = timeout;
+  }
+
+  public static Builder builder(Client client, String... indices) {
+    return new Builder(client, indices);
+  }
+
+  private void enter(Settings loadSettings, Settings defaults) {
+    GetSettingsResponse current =
+        client.admin().indices().prepareGetSettings(indices).get();
+    ImmutableOpenMap<String, Settings> indexToSettings = current.getIndexToSettings();
+    for (ObjectCursor<String> index : indexToSettings.keys()) {
+      ImmutableSettings.Builder original = ImmutableSettings.settingsBuilder();
+      for (String key : loadSettings.getAsMap().keySet()) {
+        String value = current.getSetting(index.value, key);
+        if (value == null) {
+          value = defaults.get(key);
+        }
+        if (value == null) {
+          // checked before any index is updated, there would be nothing to restore it to
+          throw new IllegalArgumentException("setting [" + key + "] is not set on index ["
+              + index.value + "] and has no default to restore, give one with put()");
+        }
+        original.put(key, value);
+      }
+      originals.put(index.value, original.build());
+    }
+
+    try {
+      client.admin().indices()
+          .prepareUpdateSettings(originals.keySet().toArray(new String[originals.size()]))
+          .setSettings(loadSettings).get();
+    } catch (RuntimeException e) {
+      // part of the indices may have been updated already
+      try {
+        close();
+      } catch (RuntimeException restoreFailure) {
+        e.addSuppressed(restoreFailure);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * The settings each index had before entering bulk-load mode.
+   */
+  public Map<String, Settings> originalSettings() {
+    return originals;
+  }
+
+  /**
+   * Restores the original settings, then refreshes, optimizes and waits for the health status.
+   * Every index is restored even if one of them fails, the first failure is rethrown.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    RuntimeException failure = null;
+    for (Map.Entry<String, Settings> original : originals.entrySet()) {
+      try {
+        client.admin().indices().prepareUpdateSettings(original.getKey())
+            .setSettings(original.getValue()).get();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+
+    String[] restored = originals.keySet().toArray(new String[originals.size()]);
+    client.admin().indices().prepareRefresh(restored).get();
+    client.admin().indices().prepareOptimize(restored).setMaxNumSegments(optimizeMaxNumSegments)
+        .get();
+    ClusterHealthResponse health =
+        client.admin().cluster().prepareHealth(restored).setWaitForStatus(waitForStatus)
+            .setTimeout(timeout).get();
+    if (health.isTimedOut()) {
+      throw new ElasticsearchTimeoutException("Indices " + originals.keySet()
+          + " did not reach " + waitForStatus + " within " + timeout + ", status is "
+          + health.getStatus());
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private final String[] indices;
+    private final ImmutableSettings.Builder loadSettings = ImmutableSettings.settingsBuilder()
+        .put(REFRESH_INTERVAL, "-1").put(NUMBER_OF_REPLICAS, 0)
+        .put(FLUSH_THRESHOLD_OPS, Integer.MAX_VALUE).put(FLUSH_THRESHOLD_SIZE, "1gb")
+        .put(FLUSH_THRESHOLD_PERIOD, "60m");
+    private final ImmutableSettings.Builder defaults =
+        ImmutableSettings.settingsBuilder().put(DEFAULTS);
+    private int optimizeMaxNumSegments = -1;
+    private ClusterHealthStatus waitForStatus = ClusterHealthStatus.GREEN;
+    private TimeValue timeout = TimeValue.timeValueMinutes(5);
+
+    Builder(Client client, String[] indices) {
+      this.client = client;
+      this.indices = indices;
+    }
+
+    /**
+     * Overrides or adds a dynamic index setting applied during the load; it is restored on
+     * close like the others. An index that never set it fails enter() unless it is one of the
+     * bulk-load settings, whose defaults are known: use {@link #put(String, String, String)}.
+     */
+    public Builder put(String setting, String value) {
+      loadSettings.put(setting, value);
+      return this;
+    }
+
+    /**
+     * As {@link #put(String, String)}, restoring defaultValue on the indices that never set it.
+     */
+    public Builder put(String setting, String value, String defaultValue) {
+      loadSettings.put(setting, value);
+      defaults.put(setting, defaultValue);
+      return this;
+    }
+
+    /**
+     * max_num_segments of the optimize run on close, -1 (default) only merges what the merge
+     * policy would, 1 for indices that are read-only after the load.
+     */
+    public Builder setOptimizeMaxNumSegments(int optimizeMaxNumSegments) {
+      this.optimizeMaxNumSegments = optimizeMaxNumSegments;
+      return this;
+    }
+
+    /**
+     * Health to wait for on close, green (default) once the replicas are back.
+     */
+    public Builder setWaitForStatus(ClusterHealthStatus waitForStatus) {
+      this.waitForStatus = waitForStatus;
+      return this;
+    }
+
+    public Builder setTimeout(TimeValue timeout) {
+      this.timeout = timeout;
+      return this;
+    }
+
+    /**
+     * Captures the current settings of the indices and applies the bulk-load settings.
+     */
+    public BulkLoadMode enter() {
+      if (indices.length == 0) {
+        throw new IllegalArgumentException("at least one index is required");
+      }
+      BulkLoadMode mode =
+          new BulkLoadMode(client, indices, optimizeMaxNumSegments, waitForStatus, timeout);
+      mode.enter(loadSettings.build(), defaults.build());
+      return mode;
+    }
+  }
+}
@@ -0,0 +1,343 @@
+package es.bulk;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Executes a bulk request and resubmits only the items that failed with a transient error
+ * (EsRejectedExecutionException, unavailable shards), waiting according to a
+ * {@link BackoffPolicy} and within a {@link RetryBudget}.
+ *
+ * Version conflicts of update requests can be retried as well, for updates racing each other
+ * beyond their server-side retry_on_conflict. Other version conflicts are permanent.
+ *
+ * Permanent failures, e.g. StrictDynamicMappingException under "dynamic": "strict" mappings,
+ * and items out of retries go to the {@link DeadLetterSink}. The listener receives one merged
+ * BulkResponse with the final outcome of every item at its original position. Only these
+ * rejected or unavailable items are ever resubmitted, the others end up in the sink.
+ *
+ * Retries scheduled after {@link #close()} are not sent: their items go to the sink and the
+ * listener receives the bulk as it stands.
+ */
+public class BulkRetryHandler implements Closeable {
+
+  private final BackoffPolicy backoffPolicy;
+  private final RetryBudget retryBudget;
+  private final DeadLetterSink deadLetterSink;
+  private final boolean retryConflicts;
+  private final ScheduledExecutorService scheduler;
+
+  private final AtomicLong retriedItems = new AtomicLong();
+  private final AtomicLong deadLetters = new AtomicLong();
+  private final AtomicLong budgetExhausted = new AtomicLong();
+
+  private BulkRetryHandler(BackoffPolicy backoffPolicy, RetryBudget retryBudget,
+      DeadLetterSink deadLetterSink, boolean retryConflicts) {
+    this.backoffPolicy = backoffPolicy;
+    this.retryBudget = retryBudget;
+    this.deadLetterSink = deadLetterSink;
+    this.retryConflicts = retryConflicts;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "bulk-retry");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Blocking variant of {@link #execute(Client, BulkRequest, ActionListener)}.
+   */
+  public BulkResponse execute(Client client, BulkRequest request) {
+    PlainActionFuture<BulkResponse> future = PlainActionFuture.newFuture();
+    execute(client, request, future);
+    return future.actionGet();
+  }
+
+  public void execute(Client client, BulkRequest request, ActionListener<BulkResponse> listener) {
+    retryBudget.deposit(request.numberOfActions());
+    new Attempts(client, request, listener).run(request, identity(request.numberOfActions()));
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdown();
+  }
+
+  public long getRetriedItems() {
+    return retriedItems.get();
+  }
+
+  public long getDeadLetters() {
+    return deadLetters.get();
+  }
+
+  /**
+   * Number of retryable items sent to the dead-letter sink because the budget was empty.
+   */
+  public long getBudgetExhausted() {
+    return budgetExhausted.get();
+  }
+
+  static boolean isRetryable(BulkItemResponse.Failure failure) {
+    return BulkIngester.isRejection(failure)
+        || failure.getStatus() == RestStatus.SERVICE_UNAVAILABLE;
+  }
+
+  boolean isRetryable(ActionRequest<?> request, BulkItemResponse.Failure failure) {
+    return isRetryable(failure)
+        || (retryConflicts && request instanceof UpdateRequest && isConflict(failure));
+  }
+
+  static boolean isConflict(BulkItemResponse.Failure failure) {
+    return failure.getStatus() == RestStatus.CONFLICT;
+  }
+
+  static boolean isRetryable(Throwable t) {
+    RestStatus status = ExceptionsHelper.status(t);
+    return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+  }
+
+  private static int[] identity(int size) {
+    int[] positions = new int[size];
+    for (int i = 0; i < size; i++) {
+      positions[i] = i;
+    }
+    return positions;
+  }
+
+  /**
+   * State of one logical bulk across its retries.
+   */
+  private class Attempts {
+
+    private final Client client;
+    private final BulkRequest original;
+    private final ActionListener<BulkResponse> listener;
+    private final BulkItemResponse[] results;
+    private int retry = 0;
+    private long tookInMillis = 0;
+
+    Attempts(Client client, BulkRequest original, ActionListener<BulkResponse> listener) {
+      this.client = client;
+      this.original = original;
+      this.listener = listener;
+      this.results = new BulkItemResponse[original.numberOfActions()];
+    }
+
+    /**
+     * @param positions for each item of current, its position in the original request
+     */
+    void run(BulkRequest current, int[] positions) {
+      try {
+        client.bulk(current, new ActionListener<BulkResponse>() {
+          @Override
+          public void onResponse(BulkResponse response) {
+            tookInMillis += response.getTookInMillis();
+            List<Integer> retryable = new ArrayList<>();
+            for (BulkItemResponse item : response) {
+              int position = positions[item.getItemId()];
+              results[position] = renumber(item, position);
+              if (item.isFailed()) {
+                if (isRetryable(original.requests().get(position), item.getFailure())) {
+                  retryable.add(position);
+                } else {
+                  deadLetter(position, item.getFailure());
+                }
+              }
+            }
+            retryOrFinish(retryable);
+          }
+
+          @Override
+          public void onFailure(Throwable e) {
+            List<Integer> retryable = new ArrayList<>();
+            boolean transientFailure = isRetryable(e);
+            for (int position : positions) {
+              ActionRequest<?> request = original.requests().get(position);
+              BulkItemResponse.Failure failure =
+                  new BulkItemResponse.Failure(index(request), type(request), id(request), e);
+              results[position] = new BulkItemResponse(position, opType(request), failure);
+              if (transientFailure) {
+                retryable.add(position);
+              } else {
+                deadLetter(position, failure);
+              }
+            }
+            retryOrFinish(retryable);
+          }
+        });
+      } catch (Throwable t) {
+        listener.onFailure(t);
+      }
+    }
+
+    private void retryOrFinish(List<Integer> retryable) {
+      BulkRequest next = null;
+      int[] nextPositions = new int[retryable.size()];
+      int size = 0;
+      for (int position : retryable) {
+        if (retry >= backoffPolicy.maxRetries()) {
+          deadLetter(position, results[position].getFailure());
+        } else if (!retryBudget.tryWithdraw()) {
+          budgetExhausted.incrementAndGet();
+          deadLetter(position, results[position].getFailure());
+        } else {
+          if (next == null) {
+            next = newRequest();
+          }
+          next.add(original.requests().get(position));
+          nextPositions[size++] = position;
+        }
+      }
+
+      if (next == null) {
+        listener.onResponse(new BulkResponse(results, tookInMillis));
+        return;
+      }
+
+      final BulkRequest retryRequest = next;
+      final int[] retryPositions = Arrays.copyOf(nextPositions, size);
+      TimeValue delay = backoffPolicy.delay(retry++);
+      try {
+        scheduler.schedule(() -> run(retryRequest, retryPositions), delay.millis(),
+            TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // closed while the bulk was in flight, finish it with what we have
+        for (int position : retryPositions) {
+          deadLetter(position, results[position].getFailure());
+        }
+        listener.onResponse(new BulkResponse(results, tookInMillis));
+        return;
+      }
+      retriedItems.addAndGet(size);
+    }
+
+    private BulkRequest newRequest() {
+      BulkRequest request = new BulkRequest();
+      request.refresh(original.refresh());
+      request.consistencyLevel(original.consistencyLevel());
+      request.replicationType(original.replicationType());
+      request.timeout(original.timeout());
+      return request;
+    }
+
+    private void deadLetter(int position, BulkItemResponse.Failure failure) {
+      deadLetters.incrementAndGet();
+      try {
+        deadLetterSink.accept(original.requests().get(position), failure);
+      } catch (Throwable t) {
+        // a broken sink must not lose the rest of the bulk
+        System.err.println("Dead-letter sink failed: " + t.getMessage());
+      }
+    }
+  }
+
+  private static BulkItemResponse renumber(BulkItemResponse item, int position) {
+    if (item.getItemId() == position) {
+      return item;
+    }
+    if (item.isFailed()) {
+      return new BulkItemResponse(position, item.getOpType(), item.getFailure());
+    }
+    return new BulkItemResponse(position, item.getOpType(), item.getResponse());
+  }
+
+  private static String opType(ActionRequest<?> request) {
+    if (request instanceof IndexRequest) {
+      return ((IndexRequest) request).opType().lowercase();
+    } else if (request instanceof DeleteRequest) {
+      return "delete";
+    }
+    return "update";
+  }
+
+  private static String index(ActionRequest<?> request) {
+    if (request instanceof IndexRequest) {
+      return ((IndexRequest) request).index();
+    } else if (request instanceof DeleteRequest) {
+      return ((DeleteRequest) request).index();
+    }
+    return ((UpdateRequest) request).index();
+  }
+
+  private static String type(ActionRequest<?> request) {
+    if (request instanceof IndexRequest) {
+      return ((IndexRequest) request).type();
+    } else if (request instanceof DeleteRequest) {
+      return ((DeleteRequest) request).type();
+    }
+    return ((UpdateRequest) request).type();
+  }
+
+  private static String id(ActionRequest<?> request) {
+    if (request instanceof IndexRequest) {
+      return ((IndexRequest) request).id();
+    } else if (request instanceof DeleteRequest) {
+      return ((DeleteRequest) request).id();
+    }
+    return ((UpdateRequest) request).id();
+  }
+
+  public static class Builder {
+
+    private BackoffPolicy backoffPolicy = BackoffPolicy.exponential(
+        TimeValue.timeValueMillis(50), TimeValue.timeValueSeconds(5), 8);
+    private RetryBudget retryBudget = new RetryBudget(0.1, 100);
+    private DeadLetterSink deadLetterSink = DeadLetterSink.STDERR;
+    private boolean retryConflicts = false;
+
+    Builder() {}
+
+    public Builder setBackoffPolicy(BackoffPolicy backoffPolicy) {
+      this.backoffPolicy = backoffPolicy;
+      return this;
+    }
+
+    public Builder setRetryBudget(RetryBudget retryBudget) {
+      this.retryBudget = retryBudget;
+      return this;
+    }
+
+    public Builder setDeadLetterSink(DeadLetterSink deadLetterSink) {
+      this.deadLetterSink = deadLetterSink;
+      return this;
+    }
+
+    /**
+     * Also resubmit update requests that failed with a version conflict, false by default.
+     */
+    public Builder setRetryConflicts(boolean retryConflicts) {
+      this.retryConflicts = retryConflicts;
+      return this;
+    }
+
+    public BulkRetryHandler build() {
+      return new BulkRetryHandler(backoffPolicy, retryBudget, deadLetterSink, retryConflicts);
+    }
+  }
+}
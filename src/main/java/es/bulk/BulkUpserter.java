@@ -0,0 +1,312 @@
+package es.bulk;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.VersionType;
+
+/**
+ * Batched, idempotent writes for sync jobs: partial documents merged with doc_as_upsert,
+ * scripted updates with an optional upsert document, and externally versioned documents for
+ * feeds that may deliver changes out of order. Everything goes through a {@link BulkIngester},
+ * so only the changed fields travel and get re-indexed.
+ *
+ * Version conflicts are handled per item:
+ * <ul>
+ * <li>updates are retried retryOnConflict times on the shard, then resubmitted with backoff by
+ * a {@link BulkRetryHandler} if conflictRetries is positive;</li>
+ * <li>a conflict on an externally versioned document means the change is older than the indexed
+ * one, it is dropped and counted as stale;</li>
+ * <li>anything else goes to the dead-letter sink.</li>
+ * </ul>
+ *
+ * The 1.x update API rejects external version types, so versioned changes are sent as full index
+ * requests with version_type external, the only write the cluster can order by version.
+ */
+public class BulkUpserter implements Closeable {
+
+  private final BulkIngester ingester;
+  private final BulkRetryHandler retryHandler;
+  private final int retryOnConflict;
+  private final String scriptLang;
+  private final VersionType versionType;
+
+  private final AtomicLong staleVersions = new AtomicLong();
+  // bulks between beforeBulk and afterBulk, the retry handler is closed once none are left
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile boolean closed = false;
+
+  private BulkUpserter(Client client, int bulkActions, ByteSizeValue bulkSize,
+      int concurrentRequests, int retryOnConflict, int conflictRetries, String scriptLang,
+      VersionType versionType, DeadLetterSink deadLetterSink) {
+    this.retryOnConflict = retryOnConflict;
+    this.scriptLang = scriptLang;
+    this.versionType = versionType;
+    this.retryHandler =
+        BulkRetryHandler.builder()
+            .setBackoffPolicy(BackoffPolicy.exponential(TimeValue.timeValueMillis(50),
+                TimeValue.timeValueSeconds(5), conflictRetries > 0 ? conflictRetries : 8))
+            .setRetryConflicts(conflictRetries > 0)
+            .setDeadLetterSink((request, failure) -> {
+              if (isStale(request, failure)) {
+                staleVersions.incrementAndGet();
+              } else {
+                deadLetterSink.accept(request, failure);
+              }
+            }).build();
+    this.ingester =
+        BulkIngester.builder(client).setBulkActions(bulkActions).setBulkSize(bulkSize)
+            .setConcurrentRequests(concurrentRequests).setRetryHandler(retryHandler)
+            .setListener(new BulkProcessor.Listener() {
+              @Override
+              public void beforeBulk(long executionId, BulkRequest request) {
+                inFlight.incrementAndGet();
+              }
+
+              @Override
+              public void afterBulk(long executionId, BulkRequest request,
+                  BulkResponse response) {
+                onBulkDone();
+              }
+
+              @Override
+              public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                onBulkDone();
+              }
+            }).build();
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  /**
+   * Merges the fields into the document, creating it from them if it does not exist.
+   */
+  public BulkUpserter upsert(String index, String type, String id, Map<String, Object> fields) {
+    return add(newUpdate(index, type, id).doc(fields));
+  }
+
+  /**
+   * Merges the fields into the document, creating it from them if it does not exist.
+   */
+  public BulkUpserter upsert(String index, String type, String id, XContentBuilder fields) {
+    return add(newUpdate(index, type, id).doc(fields));
+  }
+
+  /**
+   * Merges the fields into the document, creating it from them if it does not exist.
+   */
+  public BulkUpserter upsert(String index, String type, String id, byte[] fields) {
+    return add(newUpdate(index, type, id).doc(fields));
+  }
+
+  /**
+   * Runs the script on the document, or indexes upsert when the document does not exist; with a
+   * null upsert a missing document is a failure.
+   */
+  public BulkUpserter update(String index, String type, String id, String script,
+      Map<String, Object> params, XContentBuilder upsert) {
+    UpdateRequest request =
+        new UpdateRequest(index, type, id).retryOnConflict(retryOnConflict).script(script)
+            .scriptLang(scriptLang).scriptParams(params);
+    if (upsert != null) {
+      request.upsert(upsert);
+    }
+    return add(request);
+  }
+
+  /**
+   * Indexes the full document unless a newer version is already indexed, see
+   * {@link Builder#setVersionType(VersionType)}.
+   */
+  public BulkUpserter index(String index, String type, String id, XContentBuilder source,
+      long version) {
+    return add(new IndexRequest(index, type, id).source(source).version(version)
+        .versionType(versionType));
+  }
+
+  public void flush() {
+    ingester.flush();
+  }
+
+  /**
+   * Flushes the pending writes and waits until all of them, retries included, have completed.
+   * Writes still in flight after the timeout go on retrying until they complete.
+   *
+   * @return true if all writes completed before the timeout elapsed
+   */
+  public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+    try {
+      return ingester.awaitClose(timeout, unit);
+    } finally {
+      closeWhenIdle();
+    }
+  }
+
+  /**
+   * Flushes the pending writes without waiting for them, their retries still run.
+   */
+  @Override
+  public void close() {
+    ingester.close();
+    closeWhenIdle();
+  }
+
+  public BulkIngester.Stats stats() {
+    return ingester.stats();
+  }
+
+  /**
+   * Number of versioned documents dropped because a newer version was already indexed.
+   */
+  public long getStaleVersions() {
+    return staleVersions.get();
+  }
+
+  /**
+   * Number of updates resubmitted after a version conflict or a rejection.
+   */
+  public long getRetriedItems() {
+    return retryHandler.getRetriedItems();
+  }
+
+  private UpdateRequest newUpdate(String index, String type, String id) {
+    UpdateRequest request = new UpdateRequest(index, type, id).retryOnConflict(retryOnConflict);
+    request.docAsUpsert(true);
+    return request;
+  }
+
+  private BulkUpserter add(ActionRequest<?> request) {
+    ingester.add(request);
+    return this;
+  }
+
+  private static boolean isStale(ActionRequest<?> request, BulkItemResponse.Failure failure) {
+    return BulkRetryHandler.isConflict(failure) && request instanceof IndexRequest
+        && ((IndexRequest) request).versionType() != VersionType.INTERNAL;
+  }
+
+  private void onBulkDone() {
+    if (inFlight.decrementAndGet() == 0 && closed) {
+      retryHandler.close();
+    }
+  }
+
+  /**
+   * Closes the retry handler now if no bulk is in flight, else when the last one completes: a
+   * retry scheduled on a closed handler is not sent.
+   */
+  private void closeWhenIdle() {
+    closed = true;
+    if (inFlight.get() == 0) {
+      retryHandler.close();
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private int bulkActions = 1000;
+    private ByteSizeValue bulkSize = new ByteSizeValue(5, ByteSizeUnit.MB);
+    private int concurrentRequests = 1;
+    private int retryOnConflict = 3;
+    private int conflictRetries = 0;
+    private String scriptLang = null;
+    private VersionType versionType = VersionType.EXTERNAL;
+    private DeadLetterSink deadLetterSink = DeadLetterSink.STDERR;
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * Flush when this many writes are accumulated, -1 to disable.
+     */
+    public Builder setBulkActions(int bulkActions) {
+      this.bulkActions = bulkActions;
+      return this;
+    }
+
+    /**
+     * Flush when the estimated request size reaches this value, -1 bytes to disable.
+     */
+    public Builder setBulkSize(ByteSizeValue bulkSize) {
+      this.bulkSize = bulkSize;
+      return this;
+    }
+
+    public Builder setConcurrentRequests(int concurrentRequests) {
+      this.concurrentRequests = concurrentRequests;
+      return this;
+    }
+
+    /**
+     * retry_on_conflict of every update, retried on the shard without a round trip; 3 by
+     * default.
+     */
+    public Builder setRetryOnConflict(int retryOnConflict) {
+      this.retryOnConflict = retryOnConflict;
+      return this;
+    }
+
+    /**
+     * How many times an update still conflicting after retryOnConflict, or a rejected write, is
+     * resubmitted with backoff. 0 (default) sends conflicts to the dead-letter sink right away
+     * and resubmits rejected writes up to 8 times.
+     */
+    public Builder setConflictRetries(int conflictRetries) {
+      this.conflictRetries = conflictRetries;
+      return this;
+    }
+
+    /**
+     * Language of the update scripts, null (default) for the cluster default. Only sandboxed
+     * languages such as groovy can run dynamic scripts by default on 1.3.
+     */
+    public Builder setScriptLang(String scriptLang) {
+      this.scriptLang = scriptLang;
+      return this;
+    }
+
+    /**
+     * EXTERNAL (default) drops a change carrying the indexed version, EXTERNAL_GTE re-applies
+     * it.
+     */
+    public Builder setVersionType(VersionType versionType) {
+      if (versionType == VersionType.INTERNAL) {
+        throw new IllegalArgumentException("versioned writes need an external version type");
+      }
+      this.versionType = versionType;
+      return this;
+    }
+
+    /**
+     * Receives the writes that failed for good, stale versions excluded.
+     */
+    public Builder setDeadLetterSink(DeadLetterSink deadLetterSink) {
+      this.deadLetterSink = deadLetterSink;
+      return this;
+    }
+
+    public BulkUpserter build() {
+      return new BulkUpserter(client, bulkActions, bulkSize, concurrentRequests,
+          retryOnConflict, conflictRetries, scriptLang, versionType, deadLetterSink);
+    }
+  }
+}
@@ -0,0 +1,323 @@
+package es.bulk;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+
+/**
+ * Indexes parent and child documents of one index through a {@link ShardBulkIndexer}. A child
+ * is routed by its parent id, so children of the same parents end up in the same per-shard bulk
+ * instead of one request each.
+ *
+ * Children are only sent once their parent is known to exist. Parent ids indexed through
+ * {@link #addParent(IndexRequest)} or found by a lookup are kept in a bounded cache; children of
+ * other parents are held back until parentLookupSize distinct parents or maxPendingChildren
+ * children are pending, or until the next flush, and then checked with one realtime multi-get.
+ * The lookup is routed as the children are. Children of missing parents go to the dead-letter
+ * sink with a NOT_FOUND failure, those whose lookup failed with the failure of the lookup.
+ */
+public class ChildDocumentIndexer implements Closeable {
+
+  private final Client client;
+  private final String index;
+  private final String parentType;
+  private final ShardBulkIndexer indexer;
+  private final DeadLetterSink deadLetterSink;
+  private final int parentLookupSize;
+  private final int maxPendingChildren;
+
+  private final Cache<String, Boolean> knownParents;
+  // children waiting for their parent to be looked up, by parent id
+  private final Map<String, List<IndexRequest>> pending = new LinkedHashMap<>();
+  private int pendingChildren = 0;
+
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong parentLookups = new AtomicLong();
+  private final AtomicLong orphans = new AtomicLong();
+  private final AtomicLong lookupFailures = new AtomicLong();
+
+  private ChildDocumentIndexer(Client client, String index, String parentType,
+      ShardBulkIndexer indexer, DeadLetterSink deadLetterSink, int parentLookupSize,
+      int maxPendingChildren, long parentCacheSize) {
+    this.client = client;
+    this.index = index;
+    this.parentType = parentType;
+    this.indexer = indexer;
+    this.deadLetterSink = deadLetterSink;
+    this.parentLookupSize = parentLookupSize;
+    this.maxPendingChildren = maxPendingChildren;
+    this.knownParents = CacheBuilder.newBuilder().maximumSize(parentCacheSize).build();
+  }
+
+  public static Builder builder(Client client, String index, String parentType) {
+    return new Builder(client, index, parentType);
+  }
+
+  /**
+   * Indexes a parent document; its children are sent without a lookup from now on.
+   */
+  public ChildDocumentIndexer addParent(IndexRequest parent) {
+    checkIndex(parent);
+    indexer.add(parent);
+    knownParents.put(parent.id(), Boolean.TRUE);
+    return this;
+  }
+
+  /**
+   * Indexes a child document whose parent was set with parent(...), once the parent is known
+   * to exist.
+   */
+  public ChildDocumentIndexer addChild(IndexRequest child) {
+    checkIndex(child);
+    if (child.parent() == null) {
+      throw new IllegalArgumentException("child [" + child.id() + "] has no parent");
+    }
+    if (knownParents.getIfPresent(child.parent()) != null) {
+      cacheHits.incrementAndGet();
+      indexer.add(child);
+      return this;
+    }
+
+    Map<String, List<IndexRequest>> lookup = null;
+    synchronized (pending) {
+      List<IndexRequest> children = pending.get(child.parent());
+      if (children == null) {
+        children = new ArrayList<>();
+        pending.put(child.parent(), children);
+      }
+      children.add(child);
+      if (pending.size() >= parentLookupSize || ++pendingChildren >= maxPendingChildren) {
+        lookup = drainPending();
+      }
+    }
+    if (lookup != null) {
+      resolve(lookup);
+    }
+    return this;
+  }
+
+  /**
+   * Looks up the pending parents and sends every batch, see {@link ShardBulkIndexer#flush()}.
+   */
+  public void flush() {
+    Map<String, List<IndexRequest>> lookup;
+    synchronized (pending) {
+      lookup = drainPending();
+    }
+    resolve(lookup);
+    indexer.flush();
+  }
+
+  /**
+   * Flushes and waits until every in-flight bulk has completed.
+   *
+   * @return true if all bulks completed before the timeout elapsed
+   */
+  public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+    Map<String, List<IndexRequest>> lookup;
+    synchronized (pending) {
+      lookup = drainPending();
+    }
+    resolve(lookup);
+    return indexer.awaitClose(timeout, unit);
+  }
+
+  @Override
+  public void close() {
+    try {
+      awaitClose(0, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public BulkIngester.Stats stats() {
+    return indexer.stats();
+  }
+
+  /**
+   * Children sent right away because their parent was in the cache.
+   */
+  public long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  /**
+   * Parent ids checked with a multi-get.
+   */
+  public long getParentLookups() {
+    return parentLookups.get();
+  }
+
+  /**
+   * Children sent to the dead-letter sink because their parent does not exist.
+   */
+  public long getOrphans() {
+    return orphans.get();
+  }
+
+  /**
+   * Children sent to the dead-letter sink because the lookup of their parent failed.
+   */
+  public long getLookupFailures() {
+    return lookupFailures.get();
+  }
+
+  private Map<String, List<IndexRequest>> drainPending() {
+    Map<String, List<IndexRequest>> drained = new LinkedHashMap<>(pending);
+    pending.clear();
+    pendingChildren = 0;
+    return drained;
+  }
+
+  private void resolve(Map<String, List<IndexRequest>> lookup) {
+    if (lookup.isEmpty()) {
+      return;
+    }
+    MultiGetRequestBuilder multiGet = client.prepareMultiGet().setRealtime(true);
+    for (Map.Entry<String, List<IndexRequest>> entry : lookup.entrySet()) {
+      if (knownParents.getIfPresent(entry.getKey()) == null) {
+        // the routing of a child is the one of its parent, its grandparent in a chain
+        IndexRequest child = entry.getValue().get(0);
+        multiGet.add(new MultiGetRequest.Item(index, parentType, entry.getKey())
+            .routing(child.routing() != null ? child.routing() : child.parent())
+            .fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE));
+      }
+    }
+    Map<String, String> failedLookups = new HashMap<>();
+    if (multiGet.request().getItems().size() > 0) {
+      parentLookups.addAndGet(multiGet.request().getItems().size());
+      MultiGetResponse response = multiGet.get();
+      for (MultiGetItemResponse item : response) {
+        if (item.isFailed()) {
+          failedLookups.put(item.getId(), item.getFailure().getMessage());
+        } else if (item.getResponse().isExists()) {
+          knownParents.put(item.getId(), Boolean.TRUE);
+        }
+      }
+    }
+
+    for (Map.Entry<String, List<IndexRequest>> entry : lookup.entrySet()) {
+      boolean exists = knownParents.getIfPresent(entry.getKey()) != null;
+      String lookupFailure = failedLookups.get(entry.getKey());
+      for (IndexRequest child : entry.getValue()) {
+        if (exists) {
+          indexer.add(child);
+        } else if (lookupFailure != null) {
+          // unknown whether the parent exists, not an orphan
+          lookupFailures.incrementAndGet();
+          deadLetterSink.accept(child, new BulkItemResponse.Failure(child.index(), child.type(),
+              child.id(), "lookup of parent [" + parentType + "][" + entry.getKey()
+                  + "] failed: " + lookupFailure, RestStatus.INTERNAL_SERVER_ERROR));
+        } else {
+          orphans.incrementAndGet();
+          deadLetterSink.accept(child, new BulkItemResponse.Failure(child.index(), child.type(),
+              child.id(), "parent [" + parentType + "][" + entry.getKey() + "] does not exist",
+              RestStatus.NOT_FOUND));
+        }
+      }
+    }
+  }
+
+  private void checkIndex(IndexRequest request) {
+    if (!index.equals(request.index())) {
+      throw new IllegalArgumentException("request for index [" + request.index()
+          + "] given to the indexer of [" + index + "]");
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private final String index;
+    private final String parentType;
+    private final ShardBulkIndexer.Builder indexer;
+    private DeadLetterSink deadLetterSink = DeadLetterSink.STDERR;
+    private int parentLookupSize = 100;
+    private int maxPendingChildren = 1000;
+    private long parentCacheSize = 100000;
+
+    Builder(Client client, String index, String parentType) {
+      this.client = client;
+      this.index = index;
+      this.parentType = parentType;
+      this.indexer = ShardBulkIndexer.builder(client);
+    }
+
+    /**
+     * Flush a shard batch when it holds this many documents.
+     */
+    public Builder setBulkActions(int bulkActions) {
+      indexer.setBulkActions(bulkActions);
+      return this;
+    }
+
+    /**
+     * Maximum number of shard bulks in flight, defaults to the number of processors.
+     */
+    public Builder setConcurrentRequests(int concurrentRequests) {
+      indexer.setConcurrentRequests(concurrentRequests);
+      return this;
+    }
+
+    public Builder setRetryHandler(BulkRetryHandler retryHandler) {
+      indexer.setRetryHandler(retryHandler);
+      return this;
+    }
+
+    /**
+     * Receives the children of missing parents and of failed lookups.
+     */
+    public Builder setDeadLetterSink(DeadLetterSink deadLetterSink) {
+      this.deadLetterSink = deadLetterSink;
+      return this;
+    }
+
+    /**
+     * Number of distinct unknown parents that triggers a multi-get, 100 by default.
+     */
+    public Builder setParentLookupSize(int parentLookupSize) {
+      this.parentLookupSize = parentLookupSize;
+      return this;
+    }
+
+    /**
+     * Number of held back children that triggers a multi-get, 1000 by default, so that a few
+     * unknown parents with many children do not pile up.
+     */
+    public Builder setMaxPendingChildren(int maxPendingChildren) {
+      this.maxPendingChildren = maxPendingChildren;
+      return this;
+    }
+
+    /**
+     * Maximum number of parent ids remembered, least recently used first out.
+     */
+    public Builder setParentCacheSize(long parentCacheSize) {
+      this.parentCacheSize = parentCacheSize;
+      return this;
+    }
+
+    public ChildDocumentIndexer build() {
+      return new ChildDocumentIndexer(client, index, parentType, indexer.build(), deadLetterSink,
+          parentLookupSize, maxPendingChildren, parentCacheSize);
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package es.bulk;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+
+/**
+ * Receives bulk items that failed permanently (mapping errors, version conflicts...) or ran out
+ * of retries.
+ */
+public interface DeadLetterSink {
+
+  /**
+   * Prints the failures to stderr, which is what the examples used to do for the whole batch.
+   */
+  DeadLetterSink STDERR = (request, failure) -> System.err.println(String.format(
+      "Dead letter: [%s][%s][%s] status: %s, reason: %s", failure.getIndex(), failure.getType(),
+      failure.getId(), failure.getStatus(), failure.getMessage()));
+
+  void accept(ActionRequest<?> request, BulkItemResponse.Failure failure);
+}
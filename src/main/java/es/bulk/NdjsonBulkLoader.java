@@ -0,0 +1,371 @@
+package es.bulk;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.ByteBufferBytesReference;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Loads a file in the bulk NDJSON format (action line, then source line except for deletes)
+ * without parsing the documents on the client.
+ *
+ * The calling thread scans the memory-mapped file for line boundaries and cuts it into slices
+ * of whole actions, bounded by action count and bytes. Slice workers map their region and hand
+ * it to BulkRequest as a BytesReference, so no XContentBuilder or String is built per
+ * document. The slice queue is bounded by the number of workers, which keeps the heap flat
+ * whatever the file size.
+ */
+public class NdjsonBulkLoader {
+
+  // size of the window used by the scanner, slices are mapped separately by the workers
+  private static final long SCAN_WINDOW = 64 * 1024 * 1024;
+
+  private static final byte[] DELETE = "\"delete\"".getBytes();
+
+  private final Client client;
+  private final BulkRetryHandler retryHandler;
+  private final String defaultIndex;
+  private final String defaultType;
+  private final int bulkActions;
+  private final long bulkSize;
+  private final int workers;
+
+  private NdjsonBulkLoader(Client client, BulkRetryHandler retryHandler, String defaultIndex,
+      String defaultType, int bulkActions, long bulkSize, int workers) {
+    this.client = client;
+    this.retryHandler = retryHandler;
+    this.defaultIndex = defaultIndex;
+    this.defaultType = defaultType;
+    this.bulkActions = bulkActions;
+    this.bulkSize = bulkSize;
+    this.workers = workers;
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  public Result load(Path file) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    Result result = new Result();
+    BlockingQueue<Slice> slices = new ArrayBlockingQueue<>(workers);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < workers; i++) {
+        futures.add(executor.submit(() -> {
+          Slice slice;
+          while ((slice = slices.take()) != Slice.END) {
+            // after a failure keep draining so that the scanner never blocks
+            if (failure.get() == null) {
+              try {
+                send(channel, slice, result);
+              } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+              }
+            }
+          }
+          return null;
+        }));
+      }
+
+      try {
+        scan(channel, slices, failure);
+      } finally {
+        for (int i = 0; i < workers; i++) {
+          slices.put(Slice.END);
+        }
+      }
+
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          throw new IOException("slice worker failed", e.getCause());
+        }
+      }
+      if (failure.get() != null) {
+        throw new IOException("slice worker failed", failure.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    result.took = TimeValue.timeValueNanos(System.nanoTime() - start);
+    return result;
+  }
+
+  private void scan(FileChannel channel, BlockingQueue<Slice> slices,
+      AtomicReference<Throwable> failure) throws IOException, InterruptedException {
+    Scanner scanner = new Scanner(channel);
+    long size = channel.size();
+    long sliceStart = 0;
+    long position = 0;
+    int actions = 0;
+
+    while (position < size && failure.get() == null) {
+      long lineEnd = scanner.indexOfNewline(position);
+      if (lineEnd == position || scanner.isBlank(position, lineEnd)) {
+        // blank line between actions
+        position = lineEnd + 1;
+        continue;
+      }
+
+      boolean delete = scanner.isDeleteAction(position, lineEnd);
+      position = lineEnd + 1;
+      if (!delete && position < size) {
+        position = scanner.indexOfNewline(position) + 1;
+      }
+      actions++;
+
+      if (actions >= bulkActions || position - sliceStart >= bulkSize) {
+        slices.put(new Slice(sliceStart, Math.min(position, size) - sliceStart));
+        sliceStart = position;
+        actions = 0;
+      }
+    }
+
+    if (actions > 0 && failure.get() == null) {
+      slices.put(new Slice(sliceStart, size - sliceStart));
+    }
+  }
+
+  private void send(FileChannel channel, Slice slice, Result result) throws Exception {
+    MappedByteBuffer buffer =
+        channel.map(FileChannel.MapMode.READ_ONLY, slice.offset, slice.length);
+    BytesReference data;
+    if (slice.offset + slice.length == channel.size()
+        && buffer.get((int) slice.length - 1) != '\n') {
+      // the last action of the file has no trailing newline, BulkRequest would drop it
+      byte[] copy = new byte[(int) slice.length + 1];
+      buffer.get(copy, 0, (int) slice.length);
+      copy[copy.length - 1] = '\n';
+      data = new BytesArray(copy);
+    } else {
+      data = new ByteBufferBytesReference(buffer);
+    }
+
+    BulkRequest request = new BulkRequest();
+    request.add(data, false, defaultIndex, defaultType);
+
+    BulkResponse response =
+        retryHandler != null ? retryHandler.execute(client, request) : client.bulk(request)
+            .actionGet();
+
+    result.slices.incrementAndGet();
+    result.bytes.addAndGet(slice.length);
+    result.actions.addAndGet(request.numberOfActions());
+    if (response.hasFailures()) {
+      for (BulkItemResponse item : response) {
+        if (item.isFailed()) {
+          result.failedActions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the file through a sliding memory-mapped window.
+   */
+  private static class Scanner {
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private long windowEnd = 0;
+
+    Scanner(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+    }
+
+    byte get(long position) throws IOException {
+      if (position < windowStart || position >= windowEnd) {
+        windowStart = position;
+        windowEnd = Math.min(size, position + SCAN_WINDOW);
+        window =
+            channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+      }
+      return window.get((int) (position - windowStart));
+    }
+
+    /**
+     * Position of the next '\n' at or after position, or the file size if there is none.
+     */
+    long indexOfNewline(long position) throws IOException {
+      for (long i = position; i < size; i++) {
+        if (get(i) == '\n') {
+          return i;
+        }
+      }
+      return size;
+    }
+
+    boolean isBlank(long from, long to) throws IOException {
+      for (long i = from; i < to; i++) {
+        if (!Character.isWhitespace(get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Whether the action line starts with {"delete", the only action without a source line.
+     */
+    boolean isDeleteAction(long from, long to) throws IOException {
+      long i = skipWhitespace(from, to);
+      if (i >= to || get(i) != '{') {
+        throw new IOException("malformed action line at byte " + from);
+      }
+      i = skipWhitespace(i + 1, to);
+      for (int j = 0; j < DELETE.length; j++, i++) {
+        if (i >= to || get(i) != DELETE[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private long skipWhitespace(long from, long to) throws IOException {
+      long i = from;
+      while (i < to && Character.isWhitespace(get(i))) {
+        i++;
+      }
+      return i;
+    }
+  }
+
+  private static class Slice {
+    static final Slice END = new Slice(-1, 0);
+
+    final long offset;
+    final long length;
+
+    Slice(long offset, long length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  public static class Result {
+    final AtomicLong slices = new AtomicLong();
+    final AtomicLong actions = new AtomicLong();
+    final AtomicLong failedActions = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    TimeValue took;
+
+    public long getSlices() {
+      return slices.get();
+    }
+
+    public long getActions() {
+      return actions.get();
+    }
+
+    public long getFailedActions() {
+      return failedActions.get();
+    }
+
+    public long getBytes() {
+      return bytes.get();
+    }
+
+    public TimeValue getTook() {
+      return took;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("slices: %d, actions: %d (%d failed), bytes: %s, took: %s",
+          getSlices(), getActions(), getFailedActions(), new ByteSizeValue(getBytes()), took);
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private BulkRetryHandler retryHandler = null;
+    private String defaultIndex = null;
+    private String defaultType = null;
+    private int bulkActions = 1000;
+    private ByteSizeValue bulkSize = new ByteSizeValue(5, ByteSizeUnit.MB);
+    private int workers = Runtime.getRuntime().availableProcessors();
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * Index used for the actions that do not specify _index.
+     */
+    public Builder setDefaultIndex(String defaultIndex) {
+      this.defaultIndex = defaultIndex;
+      return this;
+    }
+
+    /**
+     * Type used for the actions that do not specify _type.
+     */
+    public Builder setDefaultType(String defaultType) {
+      this.defaultType = defaultType;
+      return this;
+    }
+
+    public Builder setBulkActions(int bulkActions) {
+      this.bulkActions = bulkActions;
+      return this;
+    }
+
+    public Builder setBulkSize(ByteSizeValue bulkSize) {
+      this.bulkSize = bulkSize;
+      return this;
+    }
+
+    /**
+     * Number of slices sent concurrently, each worker keeps one bulk in flight.
+     */
+    public Builder setWorkers(int workers) {
+      this.workers = workers;
+      return this;
+    }
+
+    public Builder setRetryHandler(BulkRetryHandler retryHandler) {
+      this.retryHandler = retryHandler;
+      return this;
+    }
+
+    public NdjsonBulkLoader build() {
+      if (workers < 1) {
+        throw new IllegalArgumentException("workers must be >= 1");
+      }
+      return new NdjsonBulkLoader(client, retryHandler, defaultIndex, defaultType, bulkActions,
+          bulkSize.bytes(), workers);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package es.bulk;
+
+/**
+ * Caps retries to a fraction of the original traffic. Every submitted action deposits ratio
+ * tokens, every retried item withdraws one; a small reserve allows retries before any deposit.
+ * When the cluster is overloaded for a long time the budget runs dry and rejected items go to
+ * the dead-letter sink instead of multiplying the load.
+ */
+public class RetryBudget {
+
+  private final double ratio;
+  private final double maxTokens;
+  private double tokens;
+
+  public RetryBudget(double ratio, int reserve) {
+    if (ratio < 0) {
+      throw new IllegalArgumentException("ratio must be >= 0");
+    }
+    this.ratio = ratio;
+    this.maxTokens = reserve + ratio * 10000;
+    this.tokens = reserve;
+  }
+
+  public static RetryBudget unlimited() {
+    return new RetryBudget(0, Integer.MAX_VALUE) {
+      @Override
+      public synchronized boolean tryWithdraw() {
+        return true;
+      }
+    };
+  }
+
+  public synchronized void deposit(int actions) {
+    tokens = Math.min(maxTokens, tokens + actions * ratio);
+  }
+
+  public synchronized boolean tryWithdraw() {
+    if (tokens < 1) {
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+
+  public synchronized double available() {
+    return tokens;
+  }
+}
@@ -0,0 +1,379 @@
+package es.bulk;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.routing.operation.hash.HashFunction;
+import org.elasticsearch.cluster.routing.operation.hash.djb.DjbHashFunction;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.shard.ShardId;
+
+/**
+ * Bulk indexer that groups actions by their target shard, so that every bulk is executed by a
+ * single primary instead of being fanned out to all of them and waiting for the slowest one.
+ *
+ * The shard is computed client-side the way PlainOperationRouting does it with the default
+ * settings: djb hash of the routing value, or of the id when there is no routing, modulo the
+ * number of shards. Alias routing is resolved from the cluster metadata, which is fetched once
+ * per index name. The grouping is only an optimization: actions whose shard cannot be computed
+ * (no id, index not created yet) go to a per-index batch, and a wrong guess, e.g. a routing
+ * taken from a _routing path in the mapping, still ends up on the right shard.
+ *
+ * Full per-shard batches are executed on a thread pool, at most concurrentRequests at a time;
+ * the producer calling {@link #add(ActionRequest)} blocks when all of them are busy.
+ */
+public class ShardBulkIndexer implements Closeable {
+
+  private static final int UNKNOWN_SHARD = -1;
+
+  private final Client client;
+  private final BulkProcessor.Listener listener;
+  private final BulkRetryHandler retryHandler;
+  private final HashFunction hashFunction = new DjbHashFunction();
+
+  private final int bulkActions;
+  private final long bulkSize;
+  private final int concurrentRequests;
+
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  private final Semaphore slots;
+
+  private final ConcurrentMap<String, IndexRouting> routings = new ConcurrentHashMap<>();
+  private final Map<ShardId, BulkRequest> batches = new HashMap<>();
+
+  private final AtomicLong executionIdGen = new AtomicLong();
+  private final BulkIngester.Stats stats = new BulkIngester.Stats();
+
+  private volatile boolean closed = false;
+
+  private ShardBulkIndexer(Client client, BulkProcessor.Listener listener,
+      BulkRetryHandler retryHandler, int bulkActions, ByteSizeValue bulkSize,
+      int concurrentRequests, ExecutorService executor) {
+    this.client = client;
+    this.listener = listener;
+    this.retryHandler = retryHandler;
+    this.bulkActions = bulkActions;
+    this.bulkSize = bulkSize.bytes();
+    this.concurrentRequests = concurrentRequests;
+    this.slots = new Semaphore(concurrentRequests);
+    if (executor != null) {
+      this.executor = executor;
+      this.ownsExecutor = false;
+    } else {
+      this.executor = Executors.newFixedThreadPool(concurrentRequests, r -> {
+        Thread t = new Thread(r, "shard-bulk");
+        t.setDaemon(true);
+        return t;
+      });
+      this.ownsExecutor = true;
+    }
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  /**
+   * Adds an index, delete or update request to the batch of its shard. Blocks while all
+   * concurrent requests are in flight.
+   */
+  public ShardBulkIndexer add(ActionRequest<?> request) {
+    if (closed) {
+      throw new IllegalStateException("shard bulk indexer already closed");
+    }
+    ShardId shardId = shardId(request);
+    BulkRequest full = null;
+    synchronized (this) {
+      BulkRequest batch = batches.get(shardId);
+      if (batch == null) {
+        batch = new BulkRequest();
+        batches.put(shardId, batch);
+      }
+      batch.add(request);
+      if (isOverTheLimit(batch)) {
+        batches.remove(shardId);
+        full = batch;
+      }
+    }
+    if (full != null) {
+      execute(shardId, full);
+    }
+    return this;
+  }
+
+  /**
+   * Sends every pending batch, regardless of the flush thresholds.
+   */
+  public void flush() {
+    Map<ShardId, BulkRequest> pending;
+    synchronized (this) {
+      pending = new HashMap<>(batches);
+      batches.clear();
+    }
+    for (Map.Entry<ShardId, BulkRequest> entry : pending.entrySet()) {
+      execute(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Flushes the pending batches and waits until every in-flight bulk has completed.
+   *
+   * @return true if all bulks completed before the timeout elapsed
+   */
+  public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+    synchronized (this) {
+      if (closed) {
+        return true;
+      }
+      closed = true;
+    }
+    flush();
+    try {
+      if (slots.tryAcquire(concurrentRequests, timeout, unit)) {
+        slots.release(concurrentRequests);
+        return true;
+      }
+      return false;
+    } finally {
+      if (ownsExecutor) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Flushes the pending batches without waiting for in-flight bulks, see
+   * {@link #awaitClose(long, TimeUnit)}.
+   */
+  @Override
+  public void close() {
+    try {
+      awaitClose(0, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public BulkIngester.Stats stats() {
+    return stats;
+  }
+
+  /**
+   * The shard the request is routed to, with {@link #UNKNOWN_SHARD} when it cannot be computed
+   * client-side.
+   */
+  public ShardId shardId(ActionRequest<?> request) {
+    String index;
+    String id;
+    String routing;
+    if (request instanceof IndexRequest) {
+      IndexRequest indexRequest = (IndexRequest) request;
+      index = indexRequest.index();
+      // ids are generated on the server, assigning one here would lose the create-only path
+      id = indexRequest.id();
+      routing = indexRequest.routing();
+    } else if (request instanceof DeleteRequest) {
+      DeleteRequest deleteRequest = (DeleteRequest) request;
+      index = deleteRequest.index();
+      id = deleteRequest.id();
+      routing = deleteRequest.routing();
+    } else if (request instanceof UpdateRequest) {
+      UpdateRequest updateRequest = (UpdateRequest) request;
+      index = updateRequest.index();
+      id = updateRequest.id();
+      routing = updateRequest.routing();
+    } else {
+      throw new IllegalArgumentException("No support for request [" + request + "]");
+    }
+
+    IndexRouting indexRouting = routing(index);
+    if (indexRouting.numberOfShards <= 0) {
+      return new ShardId(index, UNKNOWN_SHARD);
+    }
+    routing = indexRouting.metaData.resolveIndexRouting(routing, index);
+    if (routing == null && id == null) {
+      return new ShardId(indexRouting.index, UNKNOWN_SHARD);
+    }
+    int hash = hashFunction.hash(routing != null ? routing : id);
+    return new ShardId(indexRouting.index, Math.abs(hash % indexRouting.numberOfShards));
+  }
+
+  private IndexRouting routing(String index) {
+    IndexRouting routing = routings.get(index);
+    if (routing == null) {
+      MetaData metaData =
+          client.admin().cluster().prepareState().setRoutingTable(false).setNodes(false)
+              .setBlocks(false).get().getState().metaData();
+      String concreteIndex = index;
+      int numberOfShards = 0;
+      if (metaData.hasConcreteIndex(index)) {
+        concreteIndex = metaData.concreteSingleIndex(index);
+        IndexMetaData indexMetaData = metaData.index(concreteIndex);
+        numberOfShards = indexMetaData.numberOfShards();
+      }
+      routing = new IndexRouting(concreteIndex, numberOfShards, metaData);
+      routings.put(index, routing);
+    }
+    return routing;
+  }
+
+  private boolean isOverTheLimit(BulkRequest batch) {
+    if (bulkActions != -1 && batch.numberOfActions() >= bulkActions) {
+      return true;
+    }
+    if (bulkSize != -1 && batch.estimatedSizeInBytes() >= bulkSize) {
+      return true;
+    }
+    return false;
+  }
+
+  private void execute(ShardId shardId, BulkRequest request) {
+    final long executionId = executionIdGen.incrementAndGet();
+    slots.acquireUninterruptibly();
+    try {
+      executor.execute(() -> {
+        try {
+          runBulk(executionId, request);
+        } finally {
+          IndexRouting routing = routings.get(shardId.getIndex());
+          if (routing != null && routing.numberOfShards <= 0) {
+            // the index may have been auto-created by this bulk, look it up again
+            routings.remove(shardId.getIndex());
+          }
+          slots.release();
+        }
+      });
+    } catch (Throwable t) {
+      stats.failedBulks.incrementAndGet();
+      listener.afterBulk(executionId, request, t);
+      slots.release();
+    }
+  }
+
+  private void runBulk(long executionId, BulkRequest request) {
+    listener.beforeBulk(executionId, request);
+    long start = System.nanoTime();
+    BulkResponse response;
+    try {
+      response =
+          retryHandler != null ? retryHandler.execute(client, request) : client.bulk(request)
+              .actionGet();
+    } catch (Throwable t) {
+      stats.failedBulks.incrementAndGet();
+      listener.afterBulk(executionId, request, t);
+      return;
+    }
+    stats.bulks.incrementAndGet();
+    stats.actions.addAndGet(request.numberOfActions());
+    stats.bytes.addAndGet(request.estimatedSizeInBytes());
+    stats.tookNanos.addAndGet(System.nanoTime() - start);
+    for (BulkItemResponse item : response) {
+      if (item.isFailed()) {
+        stats.failedActions.incrementAndGet();
+      }
+    }
+    listener.afterBulk(executionId, request, response);
+  }
+
+  private static class IndexRouting {
+    final String index;
+    final int numberOfShards;
+    final MetaData metaData;
+
+    IndexRouting(String index, int numberOfShards, MetaData metaData) {
+      this.index = index;
+      this.numberOfShards = numberOfShards;
+      this.metaData = metaData;
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private BulkProcessor.Listener listener = new BulkIngester.NoopListener();
+    private BulkRetryHandler retryHandler = null;
+    private int bulkActions = 1000;
+    private ByteSizeValue bulkSize = new ByteSizeValue(5, ByteSizeUnit.MB);
+    private int concurrentRequests = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor = null;
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * Flush a shard batch when it holds this many actions, -1 to disable.
+     */
+    public Builder setBulkActions(int bulkActions) {
+      this.bulkActions = bulkActions;
+      return this;
+    }
+
+    /**
+     * Flush a shard batch when its estimated size reaches this value, -1 bytes to disable.
+     */
+    public Builder setBulkSize(ByteSizeValue bulkSize) {
+      this.bulkSize = bulkSize;
+      return this;
+    }
+
+    /**
+     * Maximum number of shard bulks in flight, defaults to the number of processors.
+     */
+    public Builder setConcurrentRequests(int concurrentRequests) {
+      this.concurrentRequests = concurrentRequests;
+      return this;
+    }
+
+    /**
+     * Executes the bulks on this executor, which is then not shut down on close. By default a
+     * fixed pool of concurrentRequests daemon threads is used.
+     */
+    public Builder setExecutor(ExecutorService executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    public Builder setListener(BulkProcessor.Listener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    /**
+     * Resubmit rejected items instead of reporting them as failed, null (default) to disable.
+     */
+    public Builder setRetryHandler(BulkRetryHandler retryHandler) {
+      this.retryHandler = retryHandler;
+      return this;
+    }
+
+    public ShardBulkIndexer build() {
+      if (concurrentRequests < 1) {
+        throw new IllegalArgumentException("concurrentRequests must be >= 1");
+      }
+      return new ShardBulkIndexer(client, listener, retryHandler, bulkActions, bulkSize,
+          concurrentRequests, executor);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package es.codec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * Typed source codec backed by jackson-databind: POJOs are written straight to the bytes given
+ * to IndexRequestBuilder.setSource(byte[]), and GetResponse / SearchHit source bytes are read
+ * straight into POJOs, without the Map or String the getSourceAsMap() and sourceAsString()
+ * paths build.
+ *
+ * One codec, with its ObjectReader and ObjectWriter, is cached per class; both are immutable
+ * and thread-safe.
+ */
+public class DocumentCodec<T> {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final ConcurrentMap<Class<?>, DocumentCodec<?>> CODECS =
+      new ConcurrentHashMap<>();
+
+  // the printer XContentBuilder uses for dates, so that dynamic mappings still see dates
+  private static final DateTimeFormatter DATE_PRINTER =
+      ISODateTimeFormat.dateTime().withZoneUTC();
+  private static final DateTimeFormatter DATE_PARSER =
+      ISODateTimeFormat.dateOptionalTimeParser().withZoneUTC();
+
+  static {
+    // SimpleDateFormat would be cloned for every date, Joda is thread-safe
+    SimpleModule dates = new SimpleModule("es-dates", Version.unknownVersion());
+    dates.addSerializer(Date.class, new JsonSerializer<Date>() {
+      @Override
+      public void serialize(Date value, JsonGenerator generator, SerializerProvider provider)
+          throws IOException {
+        generator.writeString(DATE_PRINTER.print(value.getTime()));
+      }
+    });
+    dates.addDeserializer(Date.class, new JsonDeserializer<Date>() {
+      @Override
+      public Date deserialize(JsonParser parser, DeserializationContext context)
+          throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+          return new Date(parser.getLongValue());
+        }
+        return new Date(parseDate(parser.getText()));
+      }
+    });
+    MAPPER.registerModule(dates);
+    // the index may hold more fields than the class declares
+    MAPPER.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+  }
+
+  /**
+   * Fast path for the yyyy-MM-dd'T'HH:mm:ss.SSS'Z' dates XContentBuilder writes, Joda for
+   * anything else.
+   */
+  static long parseDate(String text) {
+    if (text.length() != 24 || text.charAt(4) != '-' || text.charAt(7) != '-'
+        || text.charAt(10) != 'T' || text.charAt(13) != ':' || text.charAt(16) != ':'
+        || text.charAt(19) != '.' || text.charAt(23) != 'Z') {
+      return DATE_PARSER.parseMillis(text);
+    }
+    int year = digits(text, 0, 4), month = digits(text, 5, 2), day = digits(text, 8, 2);
+    int hour = digits(text, 11, 2), minute = digits(text, 14, 2), second = digits(text, 17, 2);
+    int millis = digits(text, 20, 3);
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+        || minute < 0 || minute > 59 || second < 0 || second > 59 || millis < 0) {
+      return DATE_PARSER.parseMillis(text);
+    }
+
+    // days since epoch of a proleptic gregorian date
+    int y = month <= 2 ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    long days = era * 146097L + dayOfEra - 719468;
+
+    return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+  }
+
+  private static int digits(String text, int offset, int length) {
+    int value = 0;
+    for (int i = offset; i < offset + length; i++) {
+      char c = text.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private final Class<T> type;
+  private final ObjectReader reader;
+  private final ObjectWriter writer;
+
+  private DocumentCodec(Class<T> type) {
+    this.type = type;
+    this.reader = MAPPER.reader(type);
+    this.writer = MAPPER.writerWithType(type);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> DocumentCodec<T> of(Class<T> type) {
+    DocumentCodec<?> codec = CODECS.get(type);
+    if (codec == null) {
+      codec = new DocumentCodec<>(type);
+      DocumentCodec<?> existing = CODECS.putIfAbsent(type, codec);
+      if (existing != null) {
+        codec = existing;
+      }
+    }
+    return (DocumentCodec<T>) codec;
+  }
+
+  public byte[] toBytes(T document) {
+    try {
+      return writer.writeValueAsBytes(document);
+    } catch (JsonProcessingException e) {
+      throw new ElasticsearchParseException("Failed to serialize " + type.getName(), e);
+    }
+  }
+
+  /**
+   * Sets the serialized document as the source of the request.
+   */
+  public IndexRequestBuilder setSource(IndexRequestBuilder request, T document) {
+    return request.setSource(toBytes(document));
+  }
+
+  /**
+   * @return null if the document does not exist or has no source
+   */
+  public T fromGet(GetResponse response) {
+    if (!response.isExists() || response.isSourceEmpty()) {
+      return null;
+    }
+    return fromBytes(response.getSourceAsBytesRef());
+  }
+
+  /**
+   * @return null if the hit has no source, e.g. _source disabled or filtered out
+   */
+  public T fromHit(SearchHit hit) {
+    if (hit.isSourceEmpty()) {
+      return null;
+    }
+    return fromBytes(hit.sourceRef());
+  }
+
+  public List<T> fromHits(SearchHits hits) {
+    List<T> documents = new ArrayList<>(hits.getHits().length);
+    for (SearchHit hit : hits.getHits()) {
+      documents.add(fromHit(hit));
+    }
+    return documents;
+  }
+
+  public T fromBytes(BytesReference source) {
+    try {
+      if (XContentFactory.xContentType(source) != XContentType.JSON) {
+        // smile/yaml sources are rare, go through the slow path
+        return reader.readValue(XContentHelper.convertToJson(source, false));
+      }
+      if (source.hasArray()) {
+        return reader.readValue(source.array(), source.arrayOffset(), source.length());
+      }
+      return reader.readValue(source.streamInput());
+    } catch (IOException e) {
+      throw new ElasticsearchParseException("Failed to parse source into " + type.getName(), e);
+    }
+  }
+}
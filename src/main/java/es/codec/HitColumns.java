@@ -0,0 +1,186 @@
+package es.codec;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+
+/**
+ * Declared source fields of a page of hits decoded into one primitive or String array per field,
+ * row i holding hit i, through a {@link HitDecoder}. The arrays are reused from page to page and
+ * only grow, so reading page after page of a scroll allocates nothing but the new Strings.
+ *
+ * A row without the field holds 0 in a long column, NaN in a double column and null in a string
+ * column; for an array the last element wins. Not thread-safe.
+ */
+public class HitColumns {
+
+  private final HitDecoder<HitColumns> decoder;
+  private final Map<String, Integer> longIndex;
+  private final Map<String, Integer> doubleIndex;
+  private final Map<String, Integer> stringIndex;
+
+  private long[][] longs;
+  private double[][] doubles;
+  private String[][] strings;
+  private int capacity = 0;
+  private int rows = 0;
+  private int row = 0;
+
+  private HitColumns(Builder builder) {
+    this.longIndex = new HashMap<>(builder.longs);
+    this.doubleIndex = new HashMap<>(builder.doubles);
+    this.stringIndex = new HashMap<>(builder.strings);
+    this.longs = new long[longIndex.size()][0];
+    this.doubles = new double[doubleIndex.size()][0];
+    this.strings = new String[stringIndex.size()][0];
+    HitDecoder.Builder<HitColumns> decoder = HitDecoder.builder();
+    for (Map.Entry<String, Integer> column : longIndex.entrySet()) {
+      int c = column.getValue();
+      decoder.setLong(column.getKey(), (columns, value) -> columns.longs[c][columns.row] = value);
+    }
+    for (Map.Entry<String, Integer> column : doubleIndex.entrySet()) {
+      int c = column.getValue();
+      decoder.setDouble(column.getKey(),
+          (columns, value) -> columns.doubles[c][columns.row] = value);
+    }
+    for (Map.Entry<String, Integer> column : stringIndex.entrySet()) {
+      int c = column.getValue();
+      HitDecoder.StringSetter<HitColumns> setter =
+          (columns, value) -> columns.strings[c][columns.row] = value;
+      if (builder.keywords.contains(column.getKey())) {
+        decoder.setKeyword(column.getKey(), setter);
+      } else {
+        decoder.setString(column.getKey(), setter);
+      }
+    }
+    this.decoder = decoder.build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Replaces the rows with the hits of the page.
+   *
+   * @return the number of rows
+   */
+  public int fill(SearchHits hits) {
+    return fill(hits.getHits());
+  }
+
+  public int fill(SearchHit[] hits) {
+    ensureCapacity(hits.length);
+    for (long[] column : longs) {
+      Arrays.fill(column, 0, hits.length, 0L);
+    }
+    for (double[] column : doubles) {
+      Arrays.fill(column, 0, hits.length, Double.NaN);
+    }
+    for (String[] column : strings) {
+      Arrays.fill(column, 0, hits.length, null);
+    }
+    for (row = 0; row < hits.length; row++) {
+      decoder.decode(hits[row], this);
+    }
+    rows = hits.length;
+    return rows;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  /**
+   * The column of the field, valid for getRows() rows until the next fill.
+   */
+  public long[] getLongs(String path) {
+    return longs[index(longIndex, path)];
+  }
+
+  public double[] getDoubles(String path) {
+    return doubles[index(doubleIndex, path)];
+  }
+
+  public String[] getStrings(String path) {
+    return strings[index(stringIndex, path)];
+  }
+
+  private static int index(Map<String, Integer> columns, String path) {
+    Integer index = columns.get(path);
+    if (index == null) {
+      throw new ElasticsearchIllegalArgumentException("No column of this type for [" + path
+          + "]");
+    }
+    return index;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= this.capacity) {
+      return;
+    }
+    this.capacity = capacity;
+    for (int c = 0; c < longs.length; c++) {
+      longs[c] = Arrays.copyOf(longs[c], capacity);
+    }
+    for (int c = 0; c < doubles.length; c++) {
+      doubles[c] = Arrays.copyOf(doubles[c], capacity);
+    }
+    for (int c = 0; c < strings.length; c++) {
+      strings[c] = Arrays.copyOf(strings[c], capacity);
+    }
+  }
+
+  public static class Builder {
+
+    private final Map<String, Integer> longs = new HashMap<>();
+    private final Map<String, Integer> doubles = new HashMap<>();
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Set<String> keywords = new HashSet<>();
+
+    Builder() {}
+
+    public Builder addLong(String path) {
+      checkNew(path);
+      longs.put(path, longs.size());
+      return this;
+    }
+
+    public Builder addDouble(String path) {
+      checkNew(path);
+      doubles.put(path, doubles.size());
+      return this;
+    }
+
+    public Builder addString(String path) {
+      checkNew(path);
+      strings.put(path, strings.size());
+      return this;
+    }
+
+    /**
+     * A string column with few distinct values, see {@link HitDecoder.Builder#setKeyword}.
+     */
+    public Builder addKeyword(String path) {
+      addString(path);
+      keywords.add(path);
+      return this;
+    }
+
+    private void checkNew(String path) {
+      if (longs.containsKey(path) || doubles.containsKey(path) || strings.containsKey(path)) {
+        throw new IllegalArgumentException("column [" + path + "] declared twice");
+      }
+    }
+
+    public HitColumns build() {
+      return new HitColumns(this);
+    }
+  }
+}
@@ -0,0 +1,653 @@
+package es.codec;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Decodes the JSON source bytes of hits in place, straight into a target the caller reuses from
+ * hit to hit, through one setter per declared field: no Map of the source, no String of it, and
+ * for numbers and booleans no boxing. Field names are matched against the declared paths as
+ * bytes, a dotted path descending into objects, and the fields that are not declared are
+ * skipped without being decoded.
+ *
+ * The bytes are scanned directly rather than through a Jackson parser: creating a JsonParser
+ * alone allocates about 500 bytes, more than the fields of a typical hit. Keyword fields, for
+ * the low-cardinality strings like names and tags, go through a table of the values already
+ * seen, so that a repeated value costs no String either. The setter of a field holding an array
+ * is called once per element. Smile and yaml sources are converted to JSON first.
+ *
+ * A decoder is immutable apart from its keyword tables, which are only read and filled by the
+ * thread decoding: use one decoder per thread.
+ */
+public class HitDecoder<T> {
+
+  public interface LongSetter<T> {
+    void set(T target, long value);
+  }
+
+  public interface DoubleSetter<T> {
+    void set(T target, double value);
+  }
+
+  public interface BooleanSetter<T> {
+    void set(T target, boolean value);
+  }
+
+  public interface StringSetter<T> {
+    void set(T target, String value);
+  }
+
+  // exact powers of ten of a double
+  private static final double[] POWERS_OF_TEN = new double[23];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final Node<T> root;
+
+  private HitDecoder(Node<T> root) {
+    this.root = root;
+  }
+
+  public static <T> Builder<T> builder() {
+    return new Builder<>();
+  }
+
+  /**
+   * Calls the setters of the fields found in the source of the hit.
+   *
+   * @return false if the hit has no source
+   */
+  public boolean decode(SearchHit hit, T target) {
+    if (hit.isSourceEmpty()) {
+      return false;
+    }
+    decode(hit.sourceRef(), target);
+    return true;
+  }
+
+  public void decode(BytesReference source, T target) {
+    if (XContentFactory.xContentType(source) != XContentType.JSON) {
+      try {
+        source = new BytesArray(XContentHelper.convertToJson(source, false));
+      } catch (IOException e) {
+        throw new ElasticsearchParseException("Failed to convert the source of the hit", e);
+      }
+    }
+    if (!source.hasArray()) {
+      source = source.toBytesArray();
+    }
+    byte[] buf = source.array();
+    int end = source.arrayOffset() + source.length();
+    try {
+      int pos = skipWhitespace(buf, source.arrayOffset(), end);
+      if (pos < end && buf[pos] == '{') {
+        decodeObject(buf, pos, end, root, target);
+      }
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      throw new ElasticsearchParseException("Failed to decode the source of the hit", e);
+    }
+  }
+
+  /**
+   * @param pos the offset of the opening brace
+   * @return the offset after the closing brace
+   */
+  private int decodeObject(byte[] buf, int pos, int end, Node<T> node, T target) {
+    pos = skipWhitespace(buf, pos + 1, end);
+    if (buf[pos] == '}') {
+      return pos + 1;
+    }
+    while (true) {
+      if (buf[pos] != '"') {
+        throw error(buf, pos, "field name");
+      }
+      int nameEnd = stringEnd(buf, pos + 1);
+      Node<T> child = node.child(buf, pos + 1, nameEnd);
+      pos = skipWhitespace(buf, nameEnd + 1, end);
+      if (buf[pos] != ':') {
+        throw error(buf, pos, "':'");
+      }
+      pos = skipWhitespace(buf, pos + 1, end);
+      if (child == null) {
+        pos = skipValue(buf, pos, end);
+      } else if (buf[pos] == '{') {
+        pos = child.isParent() ? decodeObject(buf, pos, end, child, target)
+            : skipValue(buf, pos, end);
+      } else if (buf[pos] == '[') {
+        pos = decodeArray(buf, pos, end, child, target);
+      } else {
+        pos = child.set(buf, pos, end, target);
+      }
+      pos = skipWhitespace(buf, pos, end);
+      if (buf[pos] == '}') {
+        return pos + 1;
+      }
+      if (buf[pos] != ',') {
+        throw error(buf, pos, "',' or '}'");
+      }
+      pos = skipWhitespace(buf, pos + 1, end);
+    }
+  }
+
+  private int decodeArray(byte[] buf, int pos, int end, Node<T> node, T target) {
+    pos = skipWhitespace(buf, pos + 1, end);
+    if (buf[pos] == ']') {
+      return pos + 1;
+    }
+    while (true) {
+      byte b = buf[pos];
+      if (b == '{') {
+        pos = node.isParent() ? decodeObject(buf, pos, end, node, target)
+            : skipValue(buf, pos, end);
+      } else if (b == '[') {
+        pos = decodeArray(buf, pos, end, node, target);
+      } else {
+        pos = node.set(buf, pos, end, target);
+      }
+      pos = skipWhitespace(buf, pos, end);
+      if (buf[pos] == ']') {
+        return pos + 1;
+      }
+      if (buf[pos] != ',') {
+        throw error(buf, pos, "',' or ']'");
+      }
+      pos = skipWhitespace(buf, pos + 1, end);
+    }
+  }
+
+  private static int skipValue(byte[] buf, int pos, int end) {
+    byte b = buf[pos];
+    if (b == '"') {
+      return stringEnd(buf, pos + 1) + 1;
+    }
+    if (b != '{' && b != '[') {
+      return scalarEnd(buf, pos, end);
+    }
+    int depth = 0;
+    do {
+      b = buf[pos];
+      if (b == '"') {
+        pos = stringEnd(buf, pos + 1);
+      } else if (b == '{' || b == '[') {
+        depth++;
+      } else if (b == '}' || b == ']') {
+        depth--;
+      }
+      pos++;
+    } while (depth > 0);
+    return pos;
+  }
+
+  /**
+   * @return the offset of the closing quote of the string starting at pos
+   */
+  private static int stringEnd(byte[] buf, int pos) {
+    while (true) {
+      byte b = buf[pos];
+      if (b == '"') {
+        return pos;
+      }
+      pos += b == '\\' ? 2 : 1;
+    }
+  }
+
+  /**
+   * @return the offset after the number or literal starting at pos
+   */
+  private static int scalarEnd(byte[] buf, int pos, int end) {
+    while (pos < end) {
+      byte b = buf[pos];
+      if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+        return pos;
+      }
+      pos++;
+    }
+    return pos;
+  }
+
+  private static int skipWhitespace(byte[] buf, int pos, int end) {
+    while (pos < end) {
+      byte b = buf[pos];
+      if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+        return pos;
+      }
+      pos++;
+    }
+    return pos;
+  }
+
+  private static ElasticsearchParseException error(byte[] buf, int pos, String expected) {
+    return new ElasticsearchParseException("Failed to decode the source of the hit: expected "
+        + expected + " at offset " + pos + " but got '" + (char) buf[pos] + "'");
+  }
+
+  private static boolean hasEscape(byte[] buf, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (buf[i] == '\\') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @SuppressWarnings("deprecation")
+  static String decodeString(byte[] buf, int start, int end) {
+    boolean ascii = true;
+    for (int i = start; i < end; i++) {
+      byte b = buf[i];
+      if (b == '\\') {
+        return unescape(buf, start, end);
+      }
+      ascii &= b >= 0;
+    }
+    // the charset decoder is several times slower than widening ASCII bytes
+    return ascii ? new String(buf, 0, start, end - start)
+        : new String(buf, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  private static String unescape(byte[] buf, int start, int end) {
+    StringBuilder text = new StringBuilder(end - start);
+    int from = start;
+    for (int i = start; i < end; i++) {
+      if (buf[i] != '\\') {
+        continue;
+      }
+      text.append(new String(buf, from, i - from, StandardCharsets.UTF_8));
+      byte escaped = buf[++i];
+      switch (escaped) {
+        case 'b':
+          text.append('\b');
+          break;
+        case 'f':
+          text.append('\f');
+          break;
+        case 'n':
+          text.append('\n');
+          break;
+        case 'r':
+          text.append('\r');
+          break;
+        case 't':
+          text.append('\t');
+          break;
+        case 'u':
+          text.append((char) Integer.parseInt(new String(buf, i + 1, 4,
+              StandardCharsets.US_ASCII), 16));
+          i += 4;
+          break;
+        default:
+          // '"', '\\' and '/'
+          text.append((char) escaped);
+      }
+      from = i + 1;
+    }
+    return text.append(new String(buf, from, end - from, StandardCharsets.UTF_8)).toString();
+  }
+
+  /**
+   * Parses the JSON number between start and end without allocating when it has at most 18
+   * significant digits.
+   */
+  static long parseLong(byte[] buf, int start, int end) {
+    int i = start;
+    boolean negative = buf[i] == '-';
+    if (negative || buf[i] == '+') {
+      i++;
+    }
+    if (end - i > 18) {
+      String text = new String(buf, start, end - start, StandardCharsets.US_ASCII);
+      try {
+        return Long.parseLong(text);
+      } catch (NumberFormatException e) {
+        return (long) Double.parseDouble(text);
+      }
+    }
+    long value = 0;
+    for (; i < end; i++) {
+      int digit = buf[i] - '0';
+      if (digit < 0 || digit > 9) {
+        // a fraction or an exponent
+        return (long) parseDouble(buf, start, end);
+      }
+      value = value * 10 + digit;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parses the JSON number between start and end, without allocating for up to 15 significant
+   * digits and a decimal exponent within 22, where the result is exact.
+   */
+  static double parseDouble(byte[] buf, int start, int end) {
+    int i = start;
+    boolean negative = buf[i] == '-';
+    if (negative || buf[i] == '+') {
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean fraction = false;
+    for (; i < end; i++) {
+      byte b = buf[i];
+      if (b >= '0' && b <= '9') {
+        if (mantissa != 0 || b != '0') {
+          digits++;
+        }
+        mantissa = mantissa * 10 + (b - '0');
+        if (fraction) {
+          exponent--;
+        }
+      } else if (b == '.' && !fraction) {
+        fraction = true;
+      } else if (b == 'e' || b == 'E') {
+        exponent += (int) parseLong(buf, i + 1, end);
+        break;
+      } else {
+        throw new NumberFormatException(new String(buf, start, end - start,
+            StandardCharsets.US_ASCII));
+      }
+      if (digits > 15) {
+        return Double.parseDouble(new String(buf, start, end - start,
+            StandardCharsets.US_ASCII));
+      }
+    }
+    if (exponent < -22 || exponent > 22) {
+      return Double.parseDouble(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+    }
+    double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]
+        : mantissa * POWERS_OF_TEN[exponent];
+    return negative ? -value : value;
+  }
+
+  /**
+   * A declared path, or a prefix of one.
+   */
+  private static class Node<T> {
+    final String name;
+    final byte[] nameBytes;
+    final List<Node<T>> childList = new ArrayList<>();
+    Node<T>[] children;
+    LongSetter<T> longSetter;
+    DoubleSetter<T> doubleSetter;
+    BooleanSetter<T> booleanSetter;
+    StringSetter<T> stringSetter;
+    KeywordTable keywords;
+
+    Node(String name) {
+      this.name = name;
+      this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A copy of the subtree, with empty keyword tables.
+     */
+    Node<T> copy() {
+      Node<T> copy = new Node<>(name);
+      copy.longSetter = longSetter;
+      copy.doubleSetter = doubleSetter;
+      copy.booleanSetter = booleanSetter;
+      copy.stringSetter = stringSetter;
+      copy.keywords = keywords == null ? null : new KeywordTable(keywords.maxValues);
+      for (Node<T> child : childList) {
+        copy.childList.add(child.copy());
+      }
+      return copy;
+    }
+
+    boolean isParent() {
+      return children.length > 0;
+    }
+
+    boolean isLeaf() {
+      return longSetter != null || doubleSetter != null || booleanSetter != null
+          || stringSetter != null;
+    }
+
+    // no generic array creation, the raw array only ever holds Node<T>
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    void freeze() {
+      children = childList.toArray(new Node[childList.size()]);
+      for (Node<T> child : children) {
+        child.freeze();
+      }
+    }
+
+    /**
+     * The child named by the bytes of a field name, null if not declared.
+     */
+    Node<T> child(byte[] buf, int start, int end) {
+      if (children.length == 0) {
+        return null;
+      }
+      if (hasEscape(buf, start, end)) {
+        String name = decodeString(buf, start, end);
+        for (Node<T> child : children) {
+          if (child.name.equals(name)) {
+            return child;
+          }
+        }
+        return null;
+      }
+      int length = end - start;
+      next: for (Node<T> child : children) {
+        byte[] bytes = child.nameBytes;
+        if (bytes.length != length) {
+          continue;
+        }
+        for (int i = 0; i < length; i++) {
+          if (bytes[i] != buf[start + i]) {
+            continue next;
+          }
+        }
+        return child;
+      }
+      return null;
+    }
+
+    /**
+     * Sets the scalar starting at pos.
+     *
+     * @return the offset after it
+     */
+    int set(byte[] buf, int pos, int end, T target) {
+      byte b = buf[pos];
+      if (b == '"') {
+        int stringEnd = stringEnd(buf, pos + 1);
+        if (stringSetter != null) {
+          stringSetter.set(target, keywords != null && !hasEscape(buf, pos + 1, stringEnd)
+              ? keywords.get(buf, pos + 1, stringEnd) : decodeString(buf, pos + 1, stringEnd));
+        } else if (longSetter != null || doubleSetter != null || booleanSetter != null) {
+          setText(decodeString(buf, pos + 1, stringEnd), target);
+        }
+        return stringEnd + 1;
+      }
+      int scalarEnd = scalarEnd(buf, pos, end);
+      if (b == 'n') {
+        return scalarEnd;
+      }
+      if (b == 't' || b == 'f') {
+        boolean value = b == 't';
+        if (booleanSetter != null) {
+          booleanSetter.set(target, value);
+        } else if (longSetter != null) {
+          longSetter.set(target, value ? 1 : 0);
+        } else if (doubleSetter != null) {
+          doubleSetter.set(target, value ? 1 : 0);
+        } else if (stringSetter != null) {
+          stringSetter.set(target, value ? "true" : "false");
+        }
+      } else if (longSetter != null) {
+        longSetter.set(target, parseLong(buf, pos, scalarEnd));
+      } else if (doubleSetter != null) {
+        doubleSetter.set(target, parseDouble(buf, pos, scalarEnd));
+      } else if (booleanSetter != null) {
+        booleanSetter.set(target, parseDouble(buf, pos, scalarEnd) != 0);
+      } else if (stringSetter != null) {
+        stringSetter.set(target, new String(buf, pos, scalarEnd - pos,
+            StandardCharsets.US_ASCII));
+      }
+      return scalarEnd;
+    }
+
+    /**
+     * A number or boolean field holding a string, e.g. "42".
+     */
+    private void setText(String text, T target) {
+      if (longSetter != null) {
+        longSetter.set(target, Long.parseLong(text));
+      } else if (doubleSetter != null) {
+        doubleSetter.set(target, Double.parseDouble(text));
+      } else {
+        booleanSetter.set(target, Boolean.parseBoolean(text));
+      }
+    }
+  }
+
+  /**
+   * The distinct values of a keyword field, looked up by their UTF-8 bytes without building a
+   * String, up to a fixed number of values.
+   */
+  static class KeywordTable {
+    private final byte[][] keys;
+    private final String[] values;
+    private final int[] hashes;
+    private final int maxValues;
+    private int size = 0;
+
+    KeywordTable(int maxValues) {
+      int capacity = Integer.highestOneBit(Math.max(maxValues, 8) * 2 - 1) << 1;
+      this.keys = new byte[capacity][];
+      this.values = new String[capacity];
+      this.hashes = new int[capacity];
+      this.maxValues = maxValues;
+    }
+
+    String get(byte[] buf, int start, int end) {
+      int hash = 0;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + buf[i];
+      }
+      int mask = values.length - 1;
+      for (int slot = (hash ^ (hash >>> 16)) & mask;; slot = (slot + 1) & mask) {
+        byte[] key = keys[slot];
+        if (key == null) {
+          String value = new String(buf, start, end - start, StandardCharsets.UTF_8);
+          if (size < maxValues) {
+            keys[slot] = Arrays.copyOfRange(buf, start, end);
+            values[slot] = value;
+            hashes[slot] = hash;
+            size++;
+          }
+          return value;
+        }
+        if (hashes[slot] == hash && equals(key, buf, start, end)) {
+          return values[slot];
+        }
+      }
+    }
+
+    private static boolean equals(byte[] key, byte[] buf, int start, int end) {
+      if (key.length != end - start) {
+        return false;
+      }
+      for (int i = 0; i < key.length; i++) {
+        if (key[i] != buf[start + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  public static class Builder<T> {
+
+    private final Node<T> root = new Node<>("");
+
+    Builder() {}
+
+    public Builder<T> setLong(String path, LongSetter<T> setter) {
+      node(path).longSetter = setter;
+      return this;
+    }
+
+    public Builder<T> setDouble(String path, DoubleSetter<T> setter) {
+      node(path).doubleSetter = setter;
+      return this;
+    }
+
+    public Builder<T> setBoolean(String path, BooleanSetter<T> setter) {
+      node(path).booleanSetter = setter;
+      return this;
+    }
+
+    public Builder<T> setString(String path, StringSetter<T> setter) {
+      node(path).stringSetter = setter;
+      return this;
+    }
+
+    /**
+     * A string field with few distinct values: the first 1024 of them are kept and handed out
+     * again instead of new Strings.
+     */
+    public Builder<T> setKeyword(String path, StringSetter<T> setter) {
+      return setKeyword(path, 1024, setter);
+    }
+
+    public Builder<T> setKeyword(String path, int maxValues, StringSetter<T> setter) {
+      Node<T> node = node(path);
+      node.stringSetter = setter;
+      node.keywords = new KeywordTable(maxValues);
+      return this;
+    }
+
+    private Node<T> node(String path) {
+      Node<T> node = root;
+      for (String name : path.split("\\.")) {
+        Node<T> child = null;
+        for (Node<T> existing : node.childList) {
+          if (existing.name.equals(name)) {
+            child = existing;
+          }
+        }
+        if (child == null) {
+          child = new Node<>(name);
+          node.childList.add(child);
+        }
+        node = child;
+      }
+      if (node.isLeaf()) {
+        throw new IllegalArgumentException("field [" + path + "] declared twice");
+      }
+      return node;
+    }
+
+    /**
+     * Every decoder built has keyword tables of its own, build one per thread.
+     */
+    public HitDecoder<T> build() {
+      if (root.childList.isEmpty()) {
+        throw new IllegalArgumentException("a decoder needs at least one field");
+      }
+      Node<T> copy = root.copy();
+      copy.freeze();
+      return new HitDecoder<>(copy);
+    }
+  }
+}
@@ -0,0 +1,343 @@
+package es.codec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchHits;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The few fields a search actually reads from its hits, declared once as typed {@link Field}s:
+ * source fields become the includes of the source filter and stored fields are asked for with
+ * addField, so the shards only send those, instead of the whole _source that sourceAsString()
+ * and getSource() read.
+ *
+ * The source of a {@link ProjectedHit} is not decoded until one of its source fields is read,
+ * and then in one streaming pass that only keeps the declared fields and stops once all of
+ * them were seen. No Map of the source is built.
+ */
+public class Projection {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final Field<?>[] fields;
+  private final String[] includes;
+  private final String[] excludes;
+  private final String[] storedFields;
+  private final int sourceFields;
+
+  private Projection(List<Field<?>> fields, String[] excludes) {
+    this.fields = fields.toArray(new Field<?>[fields.size()]);
+    List<String> includes = new ArrayList<>();
+    List<String> stored = new ArrayList<>();
+    for (Field<?> field : fields) {
+      (field.stored ? stored : includes).add(field.path);
+    }
+    this.includes = includes.toArray(new String[includes.size()]);
+    this.excludes = excludes;
+    this.storedFields = stored.toArray(new String[stored.size()]);
+    this.sourceFields = includes.size();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * A field read from the filtered _source, a dotted path for an object field.
+   */
+  public static <T> Field<T> sourceField(String path, Class<T> type) {
+    return new Field<>(path, type, false);
+  }
+
+  /**
+   * A field read from the stored fields of the hit, it must be stored in the mapping.
+   */
+  public static <T> Field<T> storedField(String name, Class<T> type) {
+    return new Field<>(name, type, true);
+  }
+
+  /**
+   * Restricts the fields the search returns to the declared ones.
+   */
+  public SearchRequestBuilder apply(SearchRequestBuilder search) {
+    if (includes.length == 0) {
+      search.setFetchSource(false);
+    } else {
+      search.setFetchSource(includes, excludes);
+    }
+    for (String field : storedFields) {
+      search.addField(field);
+    }
+    return search;
+  }
+
+  public ProjectedHit hit(SearchHit hit) {
+    return new ProjectedHit(hit);
+  }
+
+  public List<ProjectedHit> hits(SearchHits hits) {
+    List<ProjectedHit> projected = new ArrayList<>(hits.getHits().length);
+    for (SearchHit hit : hits.getHits()) {
+      projected.add(new ProjectedHit(hit));
+    }
+    return projected;
+  }
+
+  private int indexOf(Field<?> field) {
+    for (int i = 0; i < fields.length; i++) {
+      if (fields[i] == field) {
+        return i;
+      }
+    }
+    throw new ElasticsearchIllegalArgumentException("Field [" + field.path
+        + "] is not part of the projection");
+  }
+
+  /**
+   * A typed field of a projection, shared by the projections that declare it.
+   */
+  public static final class Field<T> {
+    final String path;
+    final Class<T> type;
+    final boolean stored;
+
+    private Field(String path, Class<T> type, boolean stored) {
+      this.path = path;
+      this.type = type;
+      this.stored = stored;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    @Override
+    public String toString() {
+      return (stored ? "stored:" : "source:") + path;
+    }
+  }
+
+  /**
+   * A hit whose declared fields are decoded on first access.
+   */
+  public final class ProjectedHit {
+
+    private final SearchHit hit;
+    // raw values of the source fields, in declaration order, once decoded
+    private Object[] values;
+
+    ProjectedHit(SearchHit hit) {
+      this.hit = hit;
+    }
+
+    public String getId() {
+      return hit.getId();
+    }
+
+    public SearchHit getHit() {
+      return hit;
+    }
+
+    /**
+     * @return null if the hit does not have the field
+     */
+    public <T> T get(Field<T> field) {
+      int index = indexOf(field);
+      if (field.stored) {
+        SearchHitField values = hit.field(field.path);
+        if (values == null) {
+          return null;
+        }
+        return convert(field, field.type == List.class ? values.getValues() : values.getValue());
+      }
+      if (values == null) {
+        values = decode(hit.sourceRef());
+      }
+      return convert(field, values[index]);
+    }
+
+    /**
+     * Maps the filtered source to a POJO, which only has the declared source fields set.
+     *
+     * @return null if the hit has no source
+     */
+    public <T> T as(Class<T> type) {
+      return DocumentCodec.of(type).fromHit(hit);
+    }
+  }
+
+  private Object[] decode(BytesReference source) {
+    Object[] values = new Object[fields.length];
+    if (source == null || source.length() == 0) {
+      return values;
+    }
+    try {
+      JsonParser parser;
+      if (XContentFactory.xContentType(source) != XContentType.JSON) {
+        parser = MAPPER.getFactory().createParser(XContentHelper.convertToJson(source, false));
+      } else if (source.hasArray()) {
+        parser = MAPPER.getFactory().createParser(source.array(), source.arrayOffset(),
+            source.length());
+      } else {
+        parser = MAPPER.getFactory().createParser(source.streamInput());
+      }
+      try {
+        if (parser.nextToken() == JsonToken.START_OBJECT) {
+          decodeObject(parser, "", values, new int[] {sourceFields});
+        }
+      } finally {
+        parser.close();
+      }
+    } catch (IOException e) {
+      throw new ElasticsearchParseException("Failed to parse the source of the hit", e);
+    }
+    return values;
+  }
+
+  /**
+   * Reads the fields of the object the parser is on.
+   *
+   * @param missing source fields not seen yet, decoding stops at 0
+   */
+  private void decodeObject(JsonParser parser, String prefix, Object[] values, int[] missing)
+      throws IOException {
+    while (missing[0] > 0 && parser.nextToken() == JsonToken.FIELD_NAME) {
+      String path = prefix.isEmpty() ? parser.getCurrentName() : prefix + parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      int index = sourceIndexOf(path);
+      if (index >= 0) {
+        values[index] = token.isScalarValue() ? scalar(parser, token)
+            : parser.readValueAs(Object.class);
+        missing[0]--;
+      } else if (token == JsonToken.START_OBJECT && isParent(path)) {
+        decodeObject(parser, path + ".", values, missing);
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private int sourceIndexOf(String path) {
+    for (int i = 0; i < fields.length; i++) {
+      if (!fields[i].stored && fields[i].path.equals(path)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private boolean isParent(String path) {
+    for (Field<?> field : fields) {
+      if (!field.stored && field.path.length() > path.length()
+          && field.path.charAt(path.length()) == '.' && field.path.startsWith(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Object scalar(JsonParser parser, JsonToken token) throws IOException {
+    switch (token) {
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        return parser.getNumberValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      default:
+        return null;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T convert(Field<T> field, Object value) {
+    Class<T> type = field.type;
+    if (value == null || type.isInstance(value)) {
+      return (T) value;
+    }
+    try {
+      if (type == List.class) {
+        return (T) Collections.singletonList(value);
+      }
+      if (type == String.class) {
+        return (T) String.valueOf(value);
+      }
+      if (type == Long.class) {
+        return (T) (value instanceof Number ? Long.valueOf(((Number) value).longValue())
+            : Long.valueOf(value.toString()));
+      }
+      if (type == Integer.class) {
+        return (T) (value instanceof Number ? Integer.valueOf(((Number) value).intValue())
+            : Integer.valueOf(value.toString()));
+      }
+      if (type == Double.class) {
+        return (T) (value instanceof Number ? Double.valueOf(((Number) value).doubleValue())
+            : Double.valueOf(value.toString()));
+      }
+      if (type == Float.class) {
+        return (T) (value instanceof Number ? Float.valueOf(((Number) value).floatValue())
+            : Float.valueOf(value.toString()));
+      }
+      if (type == Boolean.class) {
+        return (T) Boolean.valueOf(value.toString());
+      }
+      if (type == Date.class) {
+        return (T) new Date(value instanceof Number ? ((Number) value).longValue()
+            : DocumentCodec.parseDate(value.toString()));
+      }
+    } catch (IllegalArgumentException e) {
+      throw new ElasticsearchParseException("Failed to read field [" + field.path + "] as "
+          + type.getSimpleName(), e);
+    }
+    throw new ElasticsearchParseException("Cannot read field [" + field.path + "] of type "
+        + value.getClass().getSimpleName() + " as " + type.getSimpleName());
+  }
+
+  public static class Builder {
+
+    private final List<Field<?>> fields = new ArrayList<>();
+    private String[] excludes = null;
+
+    Builder() {}
+
+    public Builder add(Field<?>... fields) {
+      Collections.addAll(this.fields, fields);
+      return this;
+    }
+
+    /**
+     * Source filter patterns removed from the included fields, e.g. a large object under an
+     * included one.
+     */
+    public Builder setExcludes(String... excludes) {
+      this.excludes = excludes;
+      return this;
+    }
+
+    public Projection build() {
+      if (fields.isEmpty()) {
+        throw new IllegalArgumentException("a projection needs at least one field");
+      }
+      return new Projection(fields, excludes);
+    }
+  }
+}
@@ -0,0 +1,349 @@
+package es.scroll;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Full export reader that opens one SCAN per shard, restricted with the _shards:N preference,
+ * and drains the shards concurrently instead of walking one scroll on one thread.
+ *
+ * Hits are handed out either to a callback, called from the reader threads, or as a merged
+ * Stream read from the calling thread. Hits of one shard keep their order, hits of different
+ * shards are interleaved. Every scroll is cleared when its shard is drained, fails or the
+ * stream is closed early.
+ */
+public class ParallelScanReader {
+
+  private final Client client;
+  private final String[] indices;
+  private final String[] types;
+  private final QueryBuilder query;
+  private final int size;
+  private final TimeValue keepAlive;
+  private final int concurrency;
+
+  private ParallelScanReader(Client client, String[] indices, String[] types, QueryBuilder query,
+      int size, TimeValue keepAlive, int concurrency) {
+    this.client = client;
+    this.indices = indices;
+    this.types = types;
+    this.query = query;
+    this.size = size;
+    this.keepAlive = keepAlive;
+    this.concurrency = concurrency;
+  }
+
+  public static Builder builder(Client client, String... indices) {
+    return new Builder(client, indices);
+  }
+
+  /**
+   * Reads every hit and passes it to the consumer, concurrently from up to concurrency threads.
+   *
+   * @return the number of hits read
+   * @throws ElasticsearchException the first failure of a shard, the other shards are stopped
+   */
+  public long forEach(Consumer<SearchHit> consumer) throws InterruptedException {
+    AtomicLong hits = new AtomicLong();
+    Run run = new Run(page -> {
+      for (SearchHit hit : page) {
+        consumer.accept(hit);
+      }
+      hits.addAndGet(page.length);
+      return true;
+    });
+    run.await();
+    return hits.get();
+  }
+
+  /**
+   * Merged stream of all hits, produced by up to concurrency threads and buffered a few pages
+   * ahead. The stream must be closed, e.g. with try-with-resources, to stop the readers and
+   * clear the scrolls when it is not fully consumed.
+   */
+  public Stream<SearchHit> stream() {
+    BlockingQueue<Object> pages = new ArrayBlockingQueue<>(concurrency * 2);
+    Run run = new Run(page -> offer(pages, page));
+    run.whenDone(() -> offer(pages, END));
+    PageSpliterator spliterator = new PageSpliterator(pages, run);
+    return StreamSupport.stream(spliterator, false).onClose(() -> {
+      run.cancel();
+      // unblocks a reader still putting a page
+      pages.clear();
+    });
+  }
+
+  private static final Object END = new Object();
+
+  private static boolean offer(BlockingQueue<Object> pages, Object page) {
+    try {
+      pages.put(page);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * The (index, shard) pairs to scan.
+   */
+  List<String[]> slices() {
+    MetaData metaData =
+        client.admin().cluster().prepareState().setRoutingTable(false).setNodes(false)
+            .setBlocks(false).get().getState().metaData();
+    List<String[]> slices = new ArrayList<>();
+    for (String index : metaData.concreteIndices(IndicesOptions.strictExpandOpen(), indices)) {
+      IndexMetaData indexMetaData = metaData.index(index);
+      for (int shard = 0; shard < indexMetaData.numberOfShards(); shard++) {
+        slices.add(new String[] {index, String.valueOf(shard)});
+      }
+    }
+    return slices;
+  }
+
+  interface PageHandler {
+    /**
+     * @return false to stop reading
+     */
+    boolean handle(SearchHit[] page);
+  }
+
+  /**
+   * One read of all the slices.
+   */
+  private class Run {
+
+    private final PageHandler handler;
+    private final ExecutorService executor;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final List<Runnable> onDone = new ArrayList<>();
+    private volatile boolean cancelled = false;
+    private int remaining;
+
+    Run(PageHandler handler) {
+      this.handler = handler;
+      List<String[]> slices = slices();
+      this.remaining = slices.size();
+      this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency,
+          slices.size())), r -> {
+        Thread t = new Thread(r, "scan-reader");
+        t.setDaemon(true);
+        return t;
+      });
+      if (slices.isEmpty()) {
+        executor.shutdown();
+        return;
+      }
+      for (String[] slice : slices) {
+        executor.execute(() -> {
+          try {
+            scan(slice[0], slice[1]);
+          } catch (Throwable t) {
+            if (failure.compareAndSet(null, t)) {
+              cancelled = true;
+            }
+          } finally {
+            sliceDone();
+          }
+        });
+      }
+      executor.shutdown();
+    }
+
+    private void scan(String index, String shard) {
+      SearchRequestBuilder request =
+          client.prepareSearch(index).setSearchType(SearchType.SCAN).setScroll(keepAlive)
+              .setPreference("_shards:" + shard).setQuery(query).setSize(size);
+      if (types.length > 0) {
+        request.setTypes(types);
+      }
+      SearchResponse response = request.get();
+      String scrollId = response.getScrollId();
+      try {
+        while (!cancelled) {
+          response = client.prepareSearchScroll(scrollId).setScroll(keepAlive).get();
+          scrollId = response.getScrollId();
+          SearchHit[] page = response.getHits().getHits();
+          if (page.length == 0 || !handler.handle(page)) {
+            return;
+          }
+        }
+      } finally {
+        client.prepareClearScroll().addScrollId(scrollId).execute();
+      }
+    }
+
+    private void sliceDone() {
+      List<Runnable> callbacks = null;
+      synchronized (this) {
+        if (--remaining == 0) {
+          callbacks = onDone;
+          notifyAll();
+        }
+      }
+      if (callbacks != null) {
+        for (Runnable callback : callbacks) {
+          callback.run();
+        }
+      }
+    }
+
+    void whenDone(Runnable callback) {
+      boolean done;
+      synchronized (this) {
+        done = remaining == 0;
+        if (!done) {
+          onDone.add(callback);
+        }
+      }
+      if (done) {
+        callback.run();
+      }
+    }
+
+    void await() throws InterruptedException {
+      synchronized (this) {
+        while (remaining > 0) {
+          wait();
+        }
+      }
+      rethrow();
+    }
+
+    void rethrow() {
+      Throwable t = failure.get();
+      if (t instanceof ElasticsearchException) {
+        throw (ElasticsearchException) t;
+      } else if (t != null) {
+        throw new ElasticsearchException("Parallel scan failed", t);
+      }
+    }
+
+    void cancel() {
+      cancelled = true;
+      // readers blocked on a full queue
+      executor.shutdownNow();
+    }
+  }
+
+  private static class PageSpliterator extends Spliterators.AbstractSpliterator<SearchHit> {
+
+    private final BlockingQueue<Object> pages;
+    private final Run run;
+    private SearchHit[] page = new SearchHit[0];
+    private int next = 0;
+    private boolean ended = false;
+
+    PageSpliterator(BlockingQueue<Object> pages, Run run) {
+      super(Long.MAX_VALUE, Spliterator.NONNULL);
+      this.pages = pages;
+      this.run = run;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super SearchHit> action) {
+      while (next == page.length) {
+        if (ended) {
+          return false;
+        }
+        Object taken;
+        try {
+          taken = pages.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          run.cancel();
+          throw new ElasticsearchException("Interrupted while reading the scan", e);
+        }
+        if (taken == END) {
+          ended = true;
+          run.rethrow();
+          return false;
+        }
+        page = (SearchHit[]) taken;
+        next = 0;
+      }
+      action.accept(page[next++]);
+      return true;
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private final String[] indices;
+    private String[] types = new String[0];
+    private QueryBuilder query = QueryBuilders.matchAllQuery();
+    private int size = 500;
+    private TimeValue keepAlive = TimeValue.timeValueMinutes(1);
+    private int concurrency = Runtime.getRuntime().availableProcessors();
+
+    Builder(Client client, String[] indices) {
+      this.client = client;
+      this.indices = indices;
+    }
+
+    public Builder setTypes(String... types) {
+      this.types = types;
+      return this;
+    }
+
+    public Builder setQuery(QueryBuilder query) {
+      this.query = query;
+      return this;
+    }
+
+    /**
+     * Hits per scroll page of one shard, 500 by default.
+     */
+    public Builder setSize(int size) {
+      this.size = size;
+      return this;
+    }
+
+    public Builder setKeepAlive(TimeValue keepAlive) {
+      this.keepAlive = keepAlive;
+      return this;
+    }
+
+    /**
+     * Number of shards read at the same time, defaults to the number of processors.
+     */
+    public Builder setConcurrency(int concurrency) {
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    public ParallelScanReader build() {
+      if (concurrency < 1) {
+        throw new IllegalArgumentException("concurrency must be >= 1");
+      }
+      return new ParallelScanReader(client, indices, types, query, size, keepAlive,
+          concurrency);
+    }
+  }
+}
@@ -0,0 +1,351 @@
+package es.scroll;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Exports the source of every hit of a scroll to NDJSON files, copying the source bytes of each
+ * hit into a fixed block buffer that is written to a FileChannel when full; no String or Map is
+ * built per hit. Memory stays bounded by the block buffers and the scroll look-ahead, whatever
+ * the number of hits.
+ *
+ * With GZIP compression every block is written as one gzip member, so each file is a valid
+ * gzip stream readable by zcat or any gzip reader. Files are rotated at a block boundary once
+ * they reach maxFileSize, and named prefix-00000.ndjson[.gz], prefix-00001... in the directory.
+ *
+ * JSON sources are copied as they are, with raw line breaks, which can only be whitespace in
+ * JSON, replaced by spaces. Sources stored in another content type are converted to JSON.
+ */
+public class ScrollExporter {
+
+  public enum Compression {
+    NONE(""), GZIP(".gz");
+
+    final String extension;
+
+    Compression(String extension) {
+      this.extension = extension;
+    }
+  }
+
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0,
+      0, 0, (byte) 0xff};
+  private static final byte[] NEWLINE = {'\n'};
+
+  private final ScrollIterator.Builder scroll;
+  private final Path directory;
+  private final String prefix;
+  private final Compression compression;
+  private final long maxFileSize;
+
+  private final byte[] block;
+  private int blockLength = 0;
+  private final byte[] compressed;
+  private final Deflater deflater;
+  private final CRC32 crc = new CRC32();
+  private final byte[] trailer = new byte[8];
+
+  private final List<Path> files = new ArrayList<>();
+  private FileChannel channel;
+  private long fileSize;
+
+  private long docs = 0;
+  private long sourceBytes = 0;
+  private long writtenBytes = 0;
+
+  private ScrollExporter(ScrollIterator.Builder scroll, Path directory, String prefix,
+      Compression compression, int blockSize, long maxFileSize, int compressionLevel) {
+    this.scroll = scroll;
+    this.directory = directory;
+    this.prefix = prefix;
+    this.compression = compression;
+    this.maxFileSize = maxFileSize;
+    this.block = new byte[blockSize];
+    if (compression == Compression.GZIP) {
+      this.deflater = new Deflater(compressionLevel, true);
+      this.compressed = new byte[blockSize];
+    } else {
+      this.deflater = null;
+      this.compressed = null;
+    }
+  }
+
+  public static Builder builder(Client client, SearchRequestBuilder search, Path directory,
+      String prefix) {
+    return new Builder(client, search, directory, prefix);
+  }
+
+  /**
+   * Runs the scroll to the end and writes every hit; the exporter can only be run once.
+   *
+   * @return the files written, in order
+   */
+  public List<Path> export() throws IOException {
+    if (!files.isEmpty()) {
+      throw new IllegalStateException("export already run");
+    }
+    try (ScrollIterator hits = scroll.build()) {
+      openFile();
+      while (hits.hasNext()) {
+        write(hits.next());
+      }
+      flushBlock();
+      if (fileSize == 0 && files.size() > 1) {
+        // opened by a rotation after the last block
+        closeFile();
+        Files.delete(files.remove(files.size() - 1));
+      } else if (fileSize == 0 && compression == Compression.GZIP) {
+        // no hits, an empty member keeps the file a valid gzip stream
+        writeGzipMember(NEWLINE, 0, 0, false);
+      }
+    } finally {
+      closeFile();
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+    return files;
+  }
+
+  public long getDocs() {
+    return docs;
+  }
+
+  /**
+   * Bytes of NDJSON exported, before compression.
+   */
+  public long getSourceBytes() {
+    return sourceBytes;
+  }
+
+  /**
+   * Bytes written to the files.
+   */
+  public long getWrittenBytes() {
+    return writtenBytes;
+  }
+
+  private void write(SearchHit hit) throws IOException {
+    BytesReference source = hit.sourceRef();
+    if (source == null) {
+      return;
+    }
+    if (XContentFactory.xContentType(source) != XContentType.JSON) {
+      source = new BytesArray(XContentHelper.convertToJson(source, false));
+    }
+    int length = source.length() + 1;
+    if (length > block.length - blockLength) {
+      flushBlock();
+      if (length > block.length) {
+        // larger than a block, written as a block of its own; from a copy, as its line breaks
+        // are replaced in place and toBytes() may return the array of the hit
+        writeBlock(source.copyBytesArray().toBytes(), 0, source.length(), true);
+        docs++;
+        return;
+      }
+    }
+    if (source.hasArray()) {
+      System.arraycopy(source.array(), source.arrayOffset(), block, blockLength, source.length());
+    } else {
+      System.arraycopy(source.toBytes(), 0, block, blockLength, source.length());
+    }
+    for (int i = blockLength; i < blockLength + source.length(); i++) {
+      if (block[i] == '\n' || block[i] == '\r') {
+        block[i] = ' ';
+      }
+    }
+    blockLength += length;
+    block[blockLength - 1] = '\n';
+    docs++;
+  }
+
+  private void flushBlock() throws IOException {
+    if (blockLength == 0) {
+      return;
+    }
+    writeBlock(block, 0, blockLength, false);
+    blockLength = 0;
+  }
+
+  private void writeBlock(byte[] bytes, int offset, int length, boolean appendNewline)
+      throws IOException {
+    if (appendNewline) {
+      for (int i = offset; i < offset + length; i++) {
+        if (bytes[i] == '\n' || bytes[i] == '\r') {
+          bytes[i] = ' ';
+        }
+      }
+    }
+    sourceBytes += length + (appendNewline ? 1 : 0);
+    if (compression == Compression.GZIP) {
+      writeGzipMember(bytes, offset, length, appendNewline);
+    } else {
+      writeFully(bytes, offset, length);
+      if (appendNewline) {
+        writeFully(NEWLINE, 0, 1);
+      }
+    }
+    if (maxFileSize > 0 && fileSize >= maxFileSize) {
+      closeFile();
+      openFile();
+    }
+  }
+
+  private void writeGzipMember(byte[] bytes, int offset, int length, boolean appendNewline)
+      throws IOException {
+    writeFully(GZIP_HEADER, 0, GZIP_HEADER.length);
+    crc.reset();
+    deflater.reset();
+    deflate(bytes, offset, length);
+    if (appendNewline) {
+      deflate(NEWLINE, 0, 1);
+    }
+    deflater.finish();
+    while (!deflater.finished()) {
+      drainDeflater();
+    }
+    // crc and uncompressed size, little endian
+    putIntLE(trailer, 0, (int) crc.getValue());
+    putIntLE(trailer, 4, length + (appendNewline ? 1 : 0));
+    writeFully(trailer, 0, trailer.length);
+  }
+
+  private void deflate(byte[] bytes, int offset, int length) throws IOException {
+    crc.update(bytes, offset, length);
+    deflater.setInput(bytes, offset, length);
+    while (!deflater.needsInput()) {
+      drainDeflater();
+    }
+  }
+
+  private void drainDeflater() throws IOException {
+    int n = deflater.deflate(compressed, 0, compressed.length);
+    writeFully(compressed, 0, n);
+  }
+
+  private void writeFully(byte[] bytes, int offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+    while (buffer.hasRemaining()) {
+      int n = channel.write(buffer);
+      fileSize += n;
+      writtenBytes += n;
+    }
+  }
+
+  private static void putIntLE(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >>> 8);
+    bytes[offset + 2] = (byte) (value >>> 16);
+    bytes[offset + 3] = (byte) (value >>> 24);
+  }
+
+  private void openFile() throws IOException {
+    Path file =
+        directory.resolve(String.format(Locale.ROOT, "%s-%05d.ndjson%s", prefix, files.size(),
+            compression.extension));
+    channel =
+        FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    fileSize = 0;
+    files.add(file);
+  }
+
+  private void closeFile() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  public static class Builder {
+
+    private final ScrollIterator.Builder scroll;
+    private final Path directory;
+    private final String prefix;
+    private Compression compression = Compression.NONE;
+    private int compressionLevel = Deflater.BEST_SPEED;
+    private ByteSizeValue blockSize = new ByteSizeValue(1, ByteSizeUnit.MB);
+    private ByteSizeValue maxFileSize = new ByteSizeValue(-1);
+
+    Builder(Client client, SearchRequestBuilder search, Path directory, String prefix) {
+      this.scroll = ScrollIterator.builder(client, search);
+      this.directory = directory;
+      this.prefix = prefix;
+    }
+
+    /**
+     * NONE (default) or GZIP, one gzip member per block.
+     */
+    public Builder setCompression(Compression compression) {
+      this.compression = compression;
+      return this;
+    }
+
+    /**
+     * Deflate level of GZIP compression, {@link Deflater#BEST_SPEED} by default.
+     */
+    public Builder setCompressionLevel(int compressionLevel) {
+      this.compressionLevel = compressionLevel;
+      return this;
+    }
+
+    /**
+     * Size of the buffer written at once and of a compressed block, 1mb by default.
+     */
+    public Builder setBlockSize(ByteSizeValue blockSize) {
+      this.blockSize = blockSize;
+      return this;
+    }
+
+    /**
+     * Start a new file once this many bytes are written, -1 bytes (default) for a single file.
+     * A file may exceed it by up to one block.
+     */
+    public Builder setMaxFileSize(ByteSizeValue maxFileSize) {
+      this.maxFileSize = maxFileSize;
+      return this;
+    }
+
+    public Builder setKeepAlive(TimeValue keepAlive) {
+      scroll.setKeepAlive(keepAlive);
+      return this;
+    }
+
+    /**
+     * Pages fetched ahead while a page is written, see {@link ScrollIterator}.
+     */
+    public Builder setLookAhead(int lookAhead) {
+      scroll.setLookAhead(lookAhead);
+      return this;
+    }
+
+    public ScrollExporter build() {
+      if (blockSize.bytes() < 1 || blockSize.bytes() > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("invalid block size [" + blockSize + "]");
+      }
+      return new ScrollExporter(scroll, directory, prefix, compression,
+          (int) blockSize.bytes(), maxFileSize.bytes(), compressionLevel);
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package es.scroll;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Iterator over all the hits of a scroll that fetches the next pages in the background while the
+ * current one is consumed, instead of only asking for a page once the previous one is processed.
+ *
+ * At most lookAhead pages are buffered; the next scroll request is only sent once the consumer
+ * takes a page, so a slow consumer never holds more than lookAhead + 1 pages. The scroll is
+ * cleared once the last page is read, when a request fails, or on close(), which must be called
+ * when the iteration is left early.
+ *
+ * <pre>
+ * try (ScrollIterator hits = ScrollIterator.builder(client, search).build()) {
+ *   while (hits.hasNext()) {
+ *     process(hits.next());
+ *   }
+ * }
+ * </pre>
+ */
+public class ScrollIterator implements Iterator<SearchHit>, Closeable {
+
+  private final Client client;
+  private final TimeValue keepAlive;
+  private final int lookAhead;
+
+  // guarded by this
+  private final Deque<SearchHit[]> pages = new ArrayDeque<>();
+  private String scrollId;
+  private boolean fetching = false;
+  private boolean exhausted = false;
+  private boolean closed = false;
+  private boolean cleared = false;
+  private Throwable failure;
+  private long totalHits = -1;
+
+  private SearchHit[] page = new SearchHit[0];
+  private int next = 0;
+
+  private ScrollIterator(Client client, SearchRequestBuilder search, TimeValue keepAlive,
+      int lookAhead) {
+    this.client = client;
+    this.keepAlive = keepAlive;
+    this.lookAhead = lookAhead;
+
+    // the first response of a scan only carries the total and the scroll id
+    boolean scan = search.request().searchType() == SearchType.SCAN;
+    fetching = true;
+    search.setScroll(keepAlive).execute(new ActionListener<SearchResponse>() {
+      @Override
+      public void onResponse(SearchResponse response) {
+        onPage(response, scan);
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        onFetchFailure(e);
+      }
+    });
+  }
+
+  public static Builder builder(Client client, SearchRequestBuilder search) {
+    return new Builder(client, search);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (next == page.length) {
+      SearchHit[] taken;
+      synchronized (this) {
+        while (pages.isEmpty() && !exhausted && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new ElasticsearchException("Interrupted while waiting for a scroll page", e);
+          }
+        }
+        taken = pages.poll();
+        if (taken == null) {
+          if (failure != null) {
+            Throwable t = failure;
+            failure = null;
+            if (t instanceof ElasticsearchException) {
+              throw (ElasticsearchException) t;
+            }
+            throw new ElasticsearchException("Scroll failed", t);
+          }
+          return false;
+        }
+        fetchNext();
+      }
+      page = taken;
+      next = 0;
+    }
+    return true;
+  }
+
+  @Override
+  public SearchHit next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return page[next++];
+  }
+
+  /**
+   * Total number of hits, blocks until the first response is received.
+   */
+  public synchronized long getTotalHits() throws InterruptedException {
+    while (totalHits < 0 && failure == null && !closed) {
+      wait();
+    }
+    return totalHits;
+  }
+
+  /**
+   * Sequential stream over the remaining hits, closing it closes this iterator.
+   */
+  public Stream<SearchHit> stream() {
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL),
+        false).onClose(this::close);
+  }
+
+  /**
+   * Stops fetching and clears the scroll; a request still in flight clears it when it returns.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    pages.clear();
+    if (!fetching) {
+      clearScroll();
+    }
+    notifyAll();
+  }
+
+  private synchronized void onPage(SearchResponse response, boolean first) {
+    fetching = false;
+    scrollId = response.getScrollId();
+    if (totalHits < 0) {
+      totalHits = response.getHits().getTotalHits();
+    }
+    SearchHit[] hits = response.getHits().getHits();
+    if (hits.length > 0) {
+      if (!closed) {
+        pages.add(hits);
+      }
+    } else if (!first) {
+      exhausted = true;
+    }
+    if (closed || exhausted) {
+      clearScroll();
+    } else {
+      fetchNext();
+    }
+    notifyAll();
+  }
+
+  private synchronized void onFetchFailure(Throwable e) {
+    fetching = false;
+    exhausted = true;
+    if (!closed) {
+      failure = e;
+    }
+    clearScroll();
+    notifyAll();
+  }
+
+  private void fetchNext() {
+    if (fetching || exhausted || closed || pages.size() >= lookAhead) {
+      return;
+    }
+    fetching = true;
+    client.prepareSearchScroll(scrollId).setScroll(keepAlive)
+        .execute(new ActionListener<SearchResponse>() {
+          @Override
+          public void onResponse(SearchResponse response) {
+            onPage(response, false);
+          }
+
+          @Override
+          public void onFailure(Throwable e) {
+            onFetchFailure(e);
+          }
+        });
+  }
+
+  private void clearScroll() {
+    if (cleared || scrollId == null) {
+      return;
+    }
+    cleared = true;
+    client.prepareClearScroll().addScrollId(scrollId).execute();
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private final SearchRequestBuilder search;
+    private TimeValue keepAlive = TimeValue.timeValueMinutes(1);
+    private int lookAhead = 1;
+
+    Builder(Client client, SearchRequestBuilder search) {
+      this.client = client;
+      this.search = search;
+    }
+
+    /**
+     * Scroll keep-alive of every request, 1m by default. It must cover the time needed to
+     * consume lookAhead + 1 pages.
+     */
+    public Builder setKeepAlive(TimeValue keepAlive) {
+      this.keepAlive = keepAlive;
+      return this;
+    }
+
+    /**
+     * Number of pages fetched ahead of the one being consumed, 1 by default.
+     */
+    public Builder setLookAhead(int lookAhead) {
+      this.lookAhead = lookAhead;
+      return this;
+    }
+
+    /**
+     * Sends the search request, the first page is fetched in the background.
+     */
+    public ScrollIterator build() {
+      if (lookAhead < 1) {
+        throw new IllegalArgumentException("lookAhead must be >= 1");
+      }
+      return new ScrollIterator(client, search, keepAlive, lookAhead);
+    }
+  }
+}
@@ -0,0 +1,469 @@
+package es.scroll;
+
+import java.io.Closeable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Hands out scrolls whose search contexts are released as soon as they are no longer needed,
+ * instead of pinning segments and heap on the data nodes until a hard-coded keep-alive expires.
+ *
+ * <ul>
+ * <li>The keep-alive of each scroll request is derived from how long the consumer took to
+ * process the previous pages: keepAliveFactor times their moving average, between
+ * minKeepAlive and maxKeepAlive. The first request uses initialKeepAlive.</li>
+ * <li>The scroll is cleared when the last page is read, when a request fails, on close(), and
+ * by a background reaper once the {@link Scroll} handle has been garbage collected without
+ * being closed.</li>
+ * <li>The reaper also reports, once, every scroll open for longer than leakThreshold to the
+ * leak listener, and clears the scrolls idle for longer than their keep-alive: the nodes only
+ * free expired contexts on their own reaper run, about once a minute.</li>
+ * </ul>
+ */
+public class ScrollManager implements Closeable {
+
+  /**
+   * Receives the scrolls open for longer than the leak threshold.
+   */
+  public interface LeakListener {
+
+    /**
+     * Prints the scroll to stderr.
+     */
+    LeakListener STDERR = info -> System.err.println("Scroll open for too long: " + info);
+
+    void onLeak(ScrollInfo info);
+  }
+
+  private static final double EWMA_ALPHA = 0.3;
+
+  private final Client client;
+  private final TimeValue initialKeepAlive;
+  private final TimeValue minKeepAlive;
+  private final TimeValue maxKeepAlive;
+  private final double keepAliveFactor;
+  private final long leakThresholdMillis;
+  private final LeakListener leakListener;
+
+  private final Map<State, Boolean> open = new ConcurrentHashMap<>();
+  private final ReferenceQueue<Scroll> collected = new ReferenceQueue<>();
+  private final ScheduledExecutorService reaper;
+
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong finished = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong closed = new AtomicLong();
+  private final AtomicLong abandoned = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  private ScrollManager(Client client, TimeValue initialKeepAlive, TimeValue minKeepAlive,
+      TimeValue maxKeepAlive, double keepAliveFactor, TimeValue leakThreshold,
+      LeakListener leakListener, TimeValue checkInterval) {
+    this.client = client;
+    this.initialKeepAlive = initialKeepAlive;
+    this.minKeepAlive = minKeepAlive;
+    this.maxKeepAlive = maxKeepAlive;
+    this.keepAliveFactor = keepAliveFactor;
+    this.leakThresholdMillis = leakThreshold.millis();
+    this.leakListener = leakListener;
+    this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "scroll-reaper");
+      t.setDaemon(true);
+      return t;
+    });
+    reaper.scheduleWithFixedDelay(this::reap, checkInterval.millis(), checkInterval.millis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  /**
+   * Sends the search request with the initial keep-alive; the scroll must be read to the end or
+   * closed.
+   */
+  public Scroll open(SearchRequestBuilder search) {
+    String description = Arrays.toString(search.request().indices());
+    boolean scan = search.request().searchType() == SearchType.SCAN;
+    SearchResponse response = search.setScroll(initialKeepAlive).get();
+    State state = new State(description, response, initialKeepAlive);
+    opened.incrementAndGet();
+    Scroll scroll = new Scroll(state, scan ? null : response.getHits().getHits());
+    state.reference = new HandleReference(scroll, state, collected);
+    open.put(state, Boolean.TRUE);
+    if (!scan && response.getHits().getHits().length == 0) {
+      release(state, finished);
+    }
+    return scroll;
+  }
+
+  /**
+   * Number of scrolls neither read to the end nor closed.
+   */
+  public int getOpenScrolls() {
+    return open.size();
+  }
+
+  /**
+   * Number of search contexts held on the data nodes by the open scrolls, one per shard.
+   */
+  public int getOpenContexts() {
+    int contexts = 0;
+    for (State state : open.keySet()) {
+      contexts += state.shards;
+    }
+    return contexts;
+  }
+
+  /**
+   * The open scrolls opened more than age ago, oldest first.
+   */
+  public List<ScrollInfo> olderThan(TimeValue age) {
+    long now = System.currentTimeMillis();
+    List<ScrollInfo> infos = new ArrayList<>();
+    for (State state : open.keySet()) {
+      if (now - state.openedAt >= age.millis()) {
+        infos.add(state.info(now));
+      }
+    }
+    infos.sort((a, b) -> Long.compare(b.ageMillis, a.ageMillis));
+    return infos;
+  }
+
+  public long getOpened() {
+    return opened.get();
+  }
+
+  /**
+   * Scrolls cleared after their last page.
+   */
+  public long getFinished() {
+    return finished.get();
+  }
+
+  /**
+   * Scrolls cleared after a failed request.
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Scrolls cleared by close() before their last page.
+   */
+  public long getClosed() {
+    return closed.get();
+  }
+
+  /**
+   * Scrolls cleared by the reaper because their handle was collected without being closed.
+   */
+  public long getAbandoned() {
+    return abandoned.get();
+  }
+
+  /**
+   * Scrolls cleared by the reaper because they were idle for longer than their keep-alive.
+   */
+  public long getExpired() {
+    return expired.get();
+  }
+
+  /**
+   * Stops the reaper and clears every open scroll.
+   */
+  @Override
+  public void close() {
+    reaper.shutdownNow();
+    for (State state : open.keySet()) {
+      release(state, closed);
+    }
+  }
+
+  /**
+   * One pass of the reaper, run every checkInterval.
+   */
+  private void reap() {
+    Reference<? extends Scroll> reference;
+    while ((reference = collected.poll()) != null) {
+      release(((HandleReference) reference).state, abandoned);
+    }
+    long now = System.currentTimeMillis();
+    for (State state : open.keySet()) {
+      if (now - state.lastAccess > state.keepAlive.millis()) {
+        state.expired = true;
+        release(state, expired);
+      } else if (now - state.openedAt >= leakThresholdMillis && !state.reported) {
+        state.reported = true;
+        leakListener.onLeak(state.info(now));
+      }
+    }
+  }
+
+  private void release(State state, AtomicLong reason) {
+    if (state.done.compareAndSet(false, true)) {
+      open.remove(state);
+      reason.incrementAndGet();
+      client.prepareClearScroll().addScrollId(state.scrollId).execute();
+    }
+  }
+
+  private TimeValue nextKeepAlive(State state) {
+    if (state.processingNanos < 0) {
+      return initialKeepAlive;
+    }
+    long millis = (long) (keepAliveFactor * state.processingNanos / 1000000);
+    millis = Math.max(minKeepAlive.millis(), Math.min(maxKeepAlive.millis(), millis));
+    // whole seconds, the nodes only check expiry once a minute by default anyway
+    return TimeValue.timeValueSeconds((millis + 999) / 1000);
+  }
+
+  /**
+   * A scroll read page by page by a single consumer.
+   */
+  public class Scroll implements Closeable {
+
+    private final State state;
+    private SearchHit[] firstPage;
+
+    Scroll(State state, SearchHit[] firstPage) {
+      this.state = state;
+      this.firstPage = firstPage;
+    }
+
+    /**
+     * The next page of hits, empty once the scroll is exhausted or closed.
+     *
+     * @throws ElasticsearchException if the request failed or the scroll expired, the scroll
+     *         is then cleared
+     */
+    public SearchHit[] nextPage() {
+      if (firstPage != null) {
+        SearchHit[] page = firstPage;
+        firstPage = null;
+        state.lastAccess = System.currentTimeMillis();
+        state.returnedAt = System.nanoTime();
+        return page;
+      }
+      // a scroll reaped after its keep-alive is still requested, the node reports it missing
+      if (state.done.get() && !state.expired) {
+        return new SearchHit[0];
+      }
+      long now = System.nanoTime();
+      if (state.returnedAt > 0) {
+        long processing = now - state.returnedAt;
+        state.processingNanos =
+            state.processingNanos < 0 ? processing : (long) (EWMA_ALPHA * processing
+                + (1 - EWMA_ALPHA) * state.processingNanos);
+      }
+      state.keepAlive = nextKeepAlive(state);
+      state.lastAccess = System.currentTimeMillis();
+
+      SearchResponse response;
+      try {
+        response = client.prepareSearchScroll(state.scrollId).setScroll(state.keepAlive).get();
+      } catch (RuntimeException e) {
+        release(state, failed);
+        throw e;
+      }
+      state.scrollId = response.getScrollId();
+      state.pages++;
+      state.lastAccess = System.currentTimeMillis();
+      state.returnedAt = System.nanoTime();
+      SearchHit[] page = response.getHits().getHits();
+      if (page.length == 0) {
+        release(state, finished);
+      }
+      return page;
+    }
+
+    /**
+     * Keep-alive sent with the last request.
+     */
+    public TimeValue getKeepAlive() {
+      return state.keepAlive;
+    }
+
+    public long getTotalHits() {
+      return state.totalHits;
+    }
+
+    /**
+     * Clears the scroll if it was not read to the end.
+     */
+    @Override
+    public void close() {
+      release(state, closed);
+      state.reference.clear();
+    }
+  }
+
+  /**
+   * What a scroll looked like when it was reported.
+   */
+  public static class ScrollInfo {
+
+    public final String indices;
+    public final long ageMillis;
+    public final long idleMillis;
+    public final int pages;
+    public final int shards;
+    public final TimeValue keepAlive;
+
+    ScrollInfo(String indices, long ageMillis, long idleMillis, int pages, int shards,
+        TimeValue keepAlive) {
+      this.indices = indices;
+      this.ageMillis = ageMillis;
+      this.idleMillis = idleMillis;
+      this.pages = pages;
+      this.shards = shards;
+      this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("indices %s, age %dms, idle %dms, %d pages, %d shards, keep-alive %s",
+          indices, ageMillis, idleMillis, pages, shards, keepAlive);
+    }
+  }
+
+  /**
+   * Everything about a scroll except its handle, so that the handle can be collected.
+   */
+  private static class State {
+    final String description;
+    final long openedAt = System.currentTimeMillis();
+    final int shards;
+    final long totalHits;
+    final AtomicBoolean done = new AtomicBoolean();
+    volatile String scrollId;
+    volatile long lastAccess = openedAt;
+    volatile TimeValue keepAlive;
+    volatile int pages = 0;
+    volatile boolean reported = false;
+    volatile boolean expired = false;
+    // consumer thread only
+    long returnedAt = 0;
+    long processingNanos = -1;
+    HandleReference reference;
+
+    State(String description, SearchResponse response, TimeValue keepAlive) {
+      this.description = description;
+      this.scrollId = response.getScrollId();
+      this.shards = response.getSuccessfulShards();
+      this.totalHits = response.getHits().getTotalHits();
+      this.keepAlive = keepAlive;
+    }
+
+    ScrollInfo info(long now) {
+      return new ScrollInfo(description, now - openedAt, now - lastAccess, pages, shards,
+          keepAlive);
+    }
+  }
+
+  private static class HandleReference extends WeakReference<Scroll> {
+    final State state;
+
+    HandleReference(Scroll scroll, State state, ReferenceQueue<Scroll> queue) {
+      super(scroll, queue);
+      this.state = state;
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private TimeValue initialKeepAlive = TimeValue.timeValueMinutes(1);
+    private TimeValue minKeepAlive = TimeValue.timeValueSeconds(10);
+    private TimeValue maxKeepAlive = TimeValue.timeValueMinutes(10);
+    private double keepAliveFactor = 3;
+    private TimeValue leakThreshold = TimeValue.timeValueMinutes(10);
+    private LeakListener leakListener = LeakListener.STDERR;
+    private TimeValue checkInterval = TimeValue.timeValueSeconds(10);
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * Keep-alive of the search request and of the first scroll request, 1m by default.
+     */
+    public Builder setInitialKeepAlive(TimeValue initialKeepAlive) {
+      this.initialKeepAlive = initialKeepAlive;
+      return this;
+    }
+
+    /**
+     * Lower bound of the adaptive keep-alive, 10s by default.
+     */
+    public Builder setMinKeepAlive(TimeValue minKeepAlive) {
+      this.minKeepAlive = minKeepAlive;
+      return this;
+    }
+
+    /**
+     * Upper bound of the adaptive keep-alive, 10m by default.
+     */
+    public Builder setMaxKeepAlive(TimeValue maxKeepAlive) {
+      this.maxKeepAlive = maxKeepAlive;
+      return this;
+    }
+
+    /**
+     * Keep-alive as a multiple of the average time spent processing a page, 3 by default.
+     */
+    public Builder setKeepAliveFactor(double keepAliveFactor) {
+      this.keepAliveFactor = keepAliveFactor;
+      return this;
+    }
+
+    /**
+     * Age from which an open scroll is reported to the leak listener, 10m by default.
+     */
+    public Builder setLeakThreshold(TimeValue leakThreshold) {
+      this.leakThreshold = leakThreshold;
+      return this;
+    }
+
+    public Builder setLeakListener(LeakListener leakListener) {
+      this.leakListener = leakListener;
+      return this;
+    }
+
+    /**
+     * How often the reaper looks for abandoned, expired and leaked scrolls, 10s by default.
+     */
+    public Builder setCheckInterval(TimeValue checkInterval) {
+      this.checkInterval = checkInterval;
+      return this;
+    }
+
+    public ScrollManager build() {
+      if (minKeepAlive.millis() > maxKeepAlive.millis()) {
+        throw new IllegalArgumentException("minKeepAlive must be <= maxKeepAlive");
+      }
+      return new ScrollManager(client, initialKeepAlive, minKeepAlive, maxKeepAlive,
+          keepAliveFactor, leakThreshold, leakListener, checkInterval);
+    }
+  }
+}
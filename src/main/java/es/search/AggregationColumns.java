@@ -0,0 +1,414 @@
+package es.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.SingleBucketAggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.bucket.terms.DoubleTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.InternalNumericMetricsAggregation;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.elasticsearch.search.aggregations.metrics.stats.extended.ExtendedStats;
+
+/**
+ * An aggregation tree flattened in one pass into one primitive or String array per column, row
+ * i holding bucket i of the deepest bucket aggregation, like the rows of a SQL group by: no
+ * bucket objects, boxed keys or per-bucket maps of sub-aggregations for the caller to walk.
+ *
+ * The flattened chain of bucket aggregations is the only bucket aggregation at each level, or
+ * the one named by a path like "makes>colors". The columns are named after the aggregations:
+ *
+ * <ul>
+ * <li>"makes", "makes>colors": the keys of the buckets, long[] for long terms and (date)
+ * histograms, double[] for double terms, String[] otherwise; single-bucket aggregations such as
+ * filter have no key column</li>
+ * <li>"makes._count", "makes>colors._count": long[] doc counts</li>
+ * <li>"makes>avg_price": double[] values of the single-value metrics (avg, sum, min, max,
+ * value_count, cardinality) under the level, "avg_price" for a top-level one</li>
+ * <li>"makes>price_stats.avg": double[] values of the stats and extended_stats, suffixed with
+ * count, min, max, avg, sum and, when extended, sum_of_squares, variance and std_deviation</li>
+ * </ul>
+ *
+ * The values of a level are repeated on the rows of its sub-buckets. A bucket without
+ * sub-buckets still gets a row, whose deeper keys are null, 0 or NaN and deeper counts 0. Other
+ * aggregations, e.g. percentiles, are skipped. The arrays are valid for getRows() entries.
+ */
+public class AggregationColumns {
+
+  private static final String[] STATS = {"count", "min", "max", "avg", "sum"};
+  private static final String[] EXTENDED_STATS = {"count", "min", "max", "avg", "sum",
+      "sum_of_squares", "variance", "std_deviation"};
+
+  private final Map<String, Column> columns = new LinkedHashMap<>();
+  private final List<Level> levels = new ArrayList<>();
+  private final String[] path;
+  private int rows = 0;
+  private int capacity = 16;
+
+  private AggregationColumns(String[] path) {
+    this.path = path;
+  }
+
+  /**
+   * Flattens the chain of the only bucket aggregation at each level.
+   */
+  public static AggregationColumns of(Aggregations aggregations) {
+    return of(aggregations, null);
+  }
+
+  /**
+   * Flattens the chain of bucket aggregations named by the path, e.g. "makes>colors".
+   */
+  public static AggregationColumns of(Aggregations aggregations, String path) {
+    AggregationColumns columns =
+        new AggregationColumns(path == null ? null : path.split(">"));
+    // sized once, growing the columns would allocate them about twice
+    columns.capacity = Math.max(1, columns.countRows(aggregations, 0));
+    Level root = columns.level(0, null, null);
+    root.reset();
+    columns.walk(aggregations, root);
+    return columns;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  public Set<String> getColumns() {
+    return columns.keySet();
+  }
+
+  public long[] getLongs(String column) {
+    return column(column, Column.LONG).longs;
+  }
+
+  public double[] getDoubles(String column) {
+    return column(column, Column.DOUBLE).doubles;
+  }
+
+  public String[] getStrings(String column) {
+    return column(column, Column.STRING).strings;
+  }
+
+  private Column column(String name, int type) {
+    Column column = columns.get(name);
+    if (column == null) {
+      throw new ElasticsearchIllegalArgumentException("No column [" + name + "], columns are "
+          + columns.keySet());
+    }
+    if (column.type != type) {
+      throw new ElasticsearchIllegalArgumentException("Column [" + name + "] holds "
+          + Column.TYPES[column.type] + " values");
+    }
+    return column;
+  }
+
+  /**
+   * Reads the metrics of a bucket into the current values of its level, and goes down the
+   * bucket aggregation of the chain, emitting a row per leaf bucket.
+   */
+  private void walk(Aggregations aggregations, Level level) {
+    Aggregation next = null;
+    List<Aggregation> list = aggregations.asList();
+    for (int i = 0; i < list.size(); i++) {
+      Aggregation aggregation = list.get(i);
+      if (aggregation instanceof MultiBucketsAggregation
+          || aggregation instanceof SingleBucketAggregation) {
+        if (follows(level.depth, aggregation.getName())) {
+          if (next != null) {
+            throw new ElasticsearchIllegalArgumentException("Several bucket aggregations under ["
+                + level.prefix + "], give the path to flatten");
+          }
+          next = aggregation;
+        }
+      } else {
+        level.metric(aggregation);
+      }
+    }
+    if (next == null) {
+      if (path != null && level.depth < path.length) {
+        throw new ElasticsearchIllegalArgumentException("No bucket aggregation ["
+            + path[level.depth] + "] under [" + level.prefix + "]");
+      }
+      emit(level.depth);
+      return;
+    }
+    Level child = level(level.depth + 1, level, next.getName());
+    if (next instanceof SingleBucketAggregation) {
+      SingleBucketAggregation bucket = (SingleBucketAggregation) next;
+      child.reset();
+      child.count.currentLong = bucket.getDocCount();
+      walk(bucket.getAggregations(), child);
+      return;
+    }
+    int keyType = next instanceof LongTerms || next instanceof Histogram ? Column.LONG
+        : next instanceof DoubleTerms ? Column.DOUBLE : Column.STRING;
+    boolean empty = true;
+    for (MultiBucketsAggregation.Bucket bucket : ((MultiBucketsAggregation) next).getBuckets()) {
+      empty = false;
+      child.reset();
+      Column key = child.key(keyType);
+      if (keyType == Column.LONG) {
+        key.currentLong = bucket instanceof Histogram.Bucket
+            ? ((Histogram.Bucket) bucket).getKeyAsNumber().longValue()
+            : ((Terms.Bucket) bucket).getKeyAsNumber().longValue();
+      } else if (keyType == Column.DOUBLE) {
+        key.currentDouble = ((Terms.Bucket) bucket).getKeyAsNumber().doubleValue();
+      } else {
+        key.currentString = bucket.getKey();
+      }
+      child.count.currentLong = bucket.getDocCount();
+      walk(bucket.getAggregations(), child);
+    }
+    if (empty) {
+      child.reset();
+      emit(level.depth);
+    }
+  }
+
+  /**
+   * The number of rows the aggregations flatten to, only looking at the first bucket of the
+   * deepest level, as all the buckets of an aggregation have the same sub-aggregations.
+   */
+  private int countRows(Aggregations aggregations, int depth) {
+    Aggregation next = next(aggregations, depth);
+    if (next == null) {
+      return 1;
+    }
+    if (next instanceof SingleBucketAggregation) {
+      return countRows(((SingleBucketAggregation) next).getAggregations(), depth + 1);
+    }
+    Collection<? extends MultiBucketsAggregation.Bucket> buckets =
+        ((MultiBucketsAggregation) next).getBuckets();
+    if (buckets.isEmpty()) {
+      return 1;
+    }
+    if (next(buckets.iterator().next().getAggregations(), depth + 1) == null) {
+      return buckets.size();
+    }
+    int rows = 0;
+    for (MultiBucketsAggregation.Bucket bucket : buckets) {
+      rows += countRows(bucket.getAggregations(), depth + 1);
+    }
+    return rows;
+  }
+
+  private Aggregation next(Aggregations aggregations, int depth) {
+    List<Aggregation> list = aggregations.asList();
+    for (int i = 0; i < list.size(); i++) {
+      Aggregation aggregation = list.get(i);
+      if ((aggregation instanceof MultiBucketsAggregation
+          || aggregation instanceof SingleBucketAggregation)
+          && follows(depth, aggregation.getName())) {
+        return aggregation;
+      }
+    }
+    return null;
+  }
+
+  private boolean follows(int depth, String name) {
+    return path == null || depth < path.length && path[depth].equals(name);
+  }
+
+  /**
+   * Adds a row with the current values of the levels down to depth, the deeper ones empty.
+   */
+  private void emit(int depth) {
+    if (rows == capacity) {
+      capacity *= 2;
+      for (Column column : columns.values()) {
+        column.grow(capacity);
+      }
+    }
+    for (int l = 0; l < levels.size(); l++) {
+      Level level = levels.get(l);
+      boolean set = level.depth <= depth;
+      if (level.key != null) {
+        level.key.write(rows, set);
+      }
+      if (level.count != null) {
+        level.count.write(rows, set);
+      }
+      for (int i = 0; i < level.metrics.size(); i++) {
+        level.metrics.get(i).write(rows, set);
+      }
+    }
+    rows++;
+  }
+
+  private Level level(int depth, Level parent, String name) {
+    if (depth < levels.size()) {
+      return levels.get(depth);
+    }
+    Level level;
+    if (parent == null) {
+      level = new Level(depth, "", null);
+    } else {
+      level = new Level(depth, parent.prefix + name + ">", parent.prefix + name);
+      level.count = newColumn(level.name + "._count", Column.LONG);
+    }
+    levels.add(level);
+    return level;
+  }
+
+  private Column newColumn(String name, int type) {
+    Column column = new Column(type, capacity);
+    columns.put(name, column);
+    return column;
+  }
+
+  /**
+   * The columns of the aggregations at one depth of the chain.
+   */
+  private class Level {
+    final int depth;
+    final String prefix;
+    final String name;
+    Column key;
+    Column count;
+    final List<Column> metrics = new ArrayList<>();
+    final Map<String, Column[]> metricsByName = new HashMap<>();
+
+    Level(int depth, String prefix, String name) {
+      this.depth = depth;
+      this.prefix = prefix;
+      this.name = name;
+    }
+
+    Column key(int type) {
+      if (key == null) {
+        key = newColumn(name, type);
+      }
+      return key;
+    }
+
+    void reset() {
+      if (key != null) {
+        key.clear();
+      }
+      if (count != null) {
+        count.clear();
+      }
+      for (int i = 0; i < metrics.size(); i++) {
+        metrics.get(i).clear();
+      }
+    }
+
+    void metric(Aggregation aggregation) {
+      Column[] columns = metricsByName.get(aggregation.getName());
+      if (aggregation instanceof Stats) {
+        boolean extended = aggregation instanceof ExtendedStats;
+        if (columns == null) {
+          columns = metricColumns(aggregation.getName(), extended ? EXTENDED_STATS : STATS);
+        }
+        Stats stats = (Stats) aggregation;
+        columns[0].currentDouble = stats.getCount();
+        columns[1].currentDouble = stats.getMin();
+        columns[2].currentDouble = stats.getMax();
+        columns[3].currentDouble = stats.getAvg();
+        columns[4].currentDouble = stats.getSum();
+        if (extended) {
+          ExtendedStats extendedStats = (ExtendedStats) aggregation;
+          columns[5].currentDouble = extendedStats.getSumOfSquares();
+          columns[6].currentDouble = extendedStats.getVariance();
+          columns[7].currentDouble = extendedStats.getStdDeviation();
+        }
+      } else if (aggregation instanceof InternalNumericMetricsAggregation.SingleValue) {
+        if (columns == null) {
+          columns = metricColumns(aggregation.getName(), null);
+        }
+        columns[0].currentDouble =
+            ((InternalNumericMetricsAggregation.SingleValue) aggregation).value();
+      }
+    }
+
+    private Column[] metricColumns(String name, String[] suffixes) {
+      Column[] columns;
+      if (suffixes == null) {
+        columns = new Column[] {newColumn(prefix + name, Column.DOUBLE)};
+      } else {
+        columns = new Column[suffixes.length];
+        for (int i = 0; i < suffixes.length; i++) {
+          columns[i] = newColumn(prefix + name + "." + suffixes[i], Column.DOUBLE);
+        }
+      }
+      for (Column column : columns) {
+        column.clear();
+        metrics.add(column);
+      }
+      metricsByName.put(name, columns);
+      return columns;
+    }
+  }
+
+  /**
+   * The values of a column, and the value of the current bucket of its level.
+   */
+  private static class Column {
+    static final int LONG = 0;
+    static final int DOUBLE = 1;
+    static final int STRING = 2;
+    static final String[] TYPES = {"long", "double", "String"};
+
+    final int type;
+    long[] longs;
+    double[] doubles;
+    String[] strings;
+    long currentLong;
+    double currentDouble;
+    String currentString;
+
+    Column(int type, int capacity) {
+      this.type = type;
+      if (type == LONG) {
+        longs = new long[capacity];
+      } else if (type == DOUBLE) {
+        doubles = new double[capacity];
+        // rows emitted before the column was seen
+        Arrays.fill(doubles, Double.NaN);
+      } else {
+        strings = new String[capacity];
+      }
+    }
+
+    void clear() {
+      currentLong = 0;
+      currentDouble = Double.NaN;
+      currentString = null;
+    }
+
+    void write(int row, boolean set) {
+      if (type == LONG) {
+        longs[row] = set ? currentLong : 0;
+      } else if (type == DOUBLE) {
+        doubles[row] = set ? currentDouble : Double.NaN;
+      } else {
+        strings[row] = set ? currentString : null;
+      }
+    }
+
+    void grow(int capacity) {
+      if (type == LONG && longs.length < capacity) {
+        longs = Arrays.copyOf(longs, capacity);
+      } else if (type == DOUBLE && doubles.length < capacity) {
+        int length = doubles.length;
+        doubles = Arrays.copyOf(doubles, capacity);
+        Arrays.fill(doubles, length, capacity, Double.NaN);
+      } else if (type == STRING && strings.length < capacity) {
+        strings = Arrays.copyOf(strings, capacity);
+      }
+    }
+  }
+}
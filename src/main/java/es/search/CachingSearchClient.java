@@ -0,0 +1,597 @@
+package es.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
+import org.elasticsearch.action.admin.indices.close.CloseIndexAction;
+import org.elasticsearch.action.admin.indices.close.CloseIndexRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexAction;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshAction;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+
+/**
+ * Client that answers repeated searches, typically the count and aggregation searches of
+ * dashboards, from a client-side cache. Every other request goes through unchanged.
+ *
+ * The key is the search type, routing, preference, sorted indices and types, and the source
+ * with its object keys sorted, so that builders producing the same query in another order
+ * share an entry; the objects whose key order matters, sort, order, fields and functions, are
+ * kept as they are. Entries are bounded by their serialized size, evicted least recently used
+ * first, and expire after the TTL. Scrolls, scans, templates and responses with shard failures
+ * or a timeout are never cached.
+ *
+ * Index, delete, update, bulk and delete-by-query requests, refreshes, index deletes and closes
+ * sent through this client invalidate the entries of the indices they touch: every concrete
+ * index has a generation that they bump, and an entry is only served while the generations it
+ * was computed with are current. A response is not cached either while an index it covers was
+ * written less than quietPeriod ago, the time the write needs to become visible with the
+ * default refresh interval, unless a refresh sent through this client has completed since.
+ * Writes from other clients are only caught by the TTL.
+ *
+ * Indices are resolved with cluster metadata fetched at most once per metaDataMaxAge, in the
+ * background of a miss, so a new index or alias is only seen once it is refreshed.
+ *
+ * Every caller hitting an entry gets the same SearchResponse instance: treat the responses as
+ * immutable.
+ */
+public class CachingSearchClient extends FilterClient {
+
+  // objects whose key order is a priority, e.g. {"sort": {"a": "asc", "b": "desc"}}
+  private static final Set<String> ORDERED = new HashSet<>(Arrays.asList("sort", "order",
+      "fields", "functions"));
+
+  private final Cache<String, Entry> cache;
+  private final long quietPeriodNanos;
+  private final long metaDataMaxAgeNanos;
+  private final IndicesAdmin indicesAdmin;
+
+  private final ConcurrentMap<String, IndexState> indexStates = new ConcurrentHashMap<>();
+  // aliases and wildcards of the searched and written index names are resolved with it
+  private volatile MetaData metaData;
+  private volatile long metaDataNanos;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong uncacheable = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong savedNanos = new AtomicLong();
+
+  private CachingSearchClient(Client in, ByteSizeValue maxSize, TimeValue ttl,
+      TimeValue quietPeriod, TimeValue metaDataMaxAge) {
+    super(in);
+    this.cache =
+        CacheBuilder.newBuilder().maximumWeight(maxSize.bytes())
+            .weigher((String key, Entry entry) -> entry.weight)
+            .expireAfterWrite(ttl.millis(), TimeUnit.MILLISECONDS).recordStats().build();
+    this.quietPeriodNanos = quietPeriod.nanos();
+    this.metaDataMaxAgeNanos = metaDataMaxAge.nanos();
+    this.indicesAdmin = new CachingIndicesAdmin(in.admin().indices());
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  // the bound of Request is raw in Client, an override must repeat it
+  @Override
+  @SuppressWarnings("rawtypes")
+  public <Request extends ActionRequest, Response extends ActionResponse,
+      RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>>
+      ActionFuture<Response> execute(
+      Action<Request, Response, RequestBuilder, Client> action, Request request) {
+    PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+    execute(action, request, future);
+    return future;
+  }
+
+  @Override
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public <Request extends ActionRequest, Response extends ActionResponse,
+      RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>>
+      void execute(
+      Action<Request, Response, RequestBuilder, Client> action, Request request,
+      ActionListener<Response> listener) {
+    if (action == SearchAction.INSTANCE) {
+      cachedSearch((SearchRequest) request, (ActionListener<SearchResponse>) listener);
+    } else {
+      Collection<String> written = writtenIndices(request);
+      if (written.isEmpty()) {
+        super.execute(action, request, listener);
+      } else {
+        written(written);
+        // once more when the write is done, for the searches sent in between
+        super.execute(action, request, invalidating(written, listener));
+      }
+    }
+  }
+
+  @Override
+  public IndicesAdminClient indices() {
+    return indicesAdmin;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Hits over hits and misses, searches that cannot be cached excluded.
+   */
+  public double getHitRate() {
+    long lookups = hits.get() + misses.get();
+    return lookups == 0 ? 0 : (double) hits.get() / lookups;
+  }
+
+  /**
+   * Searches sent without looking at the cache: scrolls, scans, templates.
+   */
+  public long getUncacheable() {
+    return uncacheable.get();
+  }
+
+  /**
+   * Entries found but dropped because an index they cover was written or refreshed since.
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public long getEvictions() {
+    return cache.stats().evictionCount();
+  }
+
+  /**
+   * Sum of the latencies of the original searches, for every hit.
+   */
+  public TimeValue getSavedLatency() {
+    return TimeValue.timeValueNanos(savedNanos.get());
+  }
+
+  /**
+   * Serialized size of the cached responses and their keys.
+   */
+  public long getCachedBytes() {
+    long bytes = 0;
+    for (Entry entry : cache.asMap().values()) {
+      bytes += entry.weight;
+    }
+    return bytes;
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  private void cachedSearch(SearchRequest request, ActionListener<SearchResponse> listener) {
+    String key = key(request);
+    if (key == null) {
+      uncacheable.incrementAndGet();
+      super.execute(SearchAction.INSTANCE, request, listener);
+      return;
+    }
+
+    Entry entry = cache.getIfPresent(key);
+    if (entry != null) {
+      if (isCurrent(entry.indices, entry.generations)) {
+        hits.incrementAndGet();
+        savedNanos.addAndGet(entry.tookNanos);
+        listener.onResponse(entry.response);
+        return;
+      }
+      invalidations.incrementAndGet();
+      cache.invalidate(key);
+    }
+    misses.incrementAndGet();
+
+    MetaData current = metaData;
+    if (current != null && System.nanoTime() - metaDataNanos < metaDataMaxAgeNanos) {
+      search(key, request, current, listener);
+      return;
+    }
+    // without blocking, this may run on a network thread
+    in().admin().cluster().prepareState().setRoutingTable(false).setNodes(false)
+        .setBlocks(false).execute(new ActionListener<ClusterStateResponse>() {
+          @Override
+          public void onResponse(ClusterStateResponse response) {
+            MetaData fetched = response.getState().metaData();
+            metaData = fetched;
+            metaDataNanos = System.nanoTime();
+            search(key, request, fetched, listener);
+          }
+
+          @Override
+          public void onFailure(Throwable e) {
+            CachingSearchClient.super.execute(SearchAction.INSTANCE, request, listener);
+          }
+        });
+  }
+
+  private void search(String key, SearchRequest request, MetaData current,
+      ActionListener<SearchResponse> listener) {
+    String[] indices;
+    try {
+      indices = current.concreteIndices(request.indicesOptions(), request.indices());
+    } catch (RuntimeException e) {
+      // e.g. missing index, the search reports it
+      super.execute(SearchAction.INSTANCE, request, listener);
+      return;
+    }
+    long[] generations = generations(indices);
+    long start = System.nanoTime();
+    super.execute(SearchAction.INSTANCE, request, new ActionListener<SearchResponse>() {
+      @Override
+      public void onResponse(SearchResponse response) {
+        long tookNanos = System.nanoTime() - start;
+        if (response.getFailedShards() == 0 && !response.isTimedOut()
+            && isCurrent(indices, generations) && !recentlyWritten(indices)) {
+          put(key, response, indices, generations, tookNanos);
+        }
+        listener.onResponse(response);
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        listener.onFailure(e);
+      }
+    });
+  }
+
+  private void put(String key, SearchResponse response, String[] indices, long[] generations,
+      long tookNanos) {
+    BytesStreamOutput out = new BytesStreamOutput();
+    try {
+      response.writeTo(out);
+    } catch (IOException e) {
+      return;
+    }
+    // keys are chars
+    int weight = (int) Math.min(Integer.MAX_VALUE, out.size() + 2L * key.length());
+    cache.put(key, new Entry(response, indices, generations, tookNanos, weight));
+  }
+
+  /**
+   * The normalized request, or null if the search must not be cached.
+   */
+  private String key(SearchRequest request) {
+    if (request.scroll() != null || request.searchType() == SearchType.SCAN
+        || request.templateSource() != null || request.templateName() != null) {
+      return null;
+    }
+    StringBuilder key = new StringBuilder();
+    key.append(request.searchType()).append('|').append(request.routing()).append('|')
+        .append(request.preference()).append('|').append(sorted(request.indices()))
+        .append('|').append(sorted(request.types())).append('|');
+    try {
+      appendNormalized(key, request.source());
+      key.append('|');
+      appendNormalized(key, request.extraSource());
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+    return key.toString();
+  }
+
+  private static String sorted(String[] names) {
+    String[] copy = names.clone();
+    Arrays.sort(copy);
+    return Arrays.toString(copy);
+  }
+
+  private static void appendNormalized(StringBuilder key, BytesReference source)
+      throws IOException {
+    if (source == null || source.length() == 0) {
+      return;
+    }
+    // ordered, for the sections kept as they are
+    Map<String, Object> map = XContentHelper.convertToMap(source, true).v2();
+    key.append(XContentFactory.jsonBuilder().value(sortKeys(map)).string());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object sortKeys(Object value) {
+    if (value instanceof Map) {
+      Map<String, Object> sorted = new TreeMap<>();
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+        sorted.put(entry.getKey(), ORDERED.contains(entry.getKey()) ? entry.getValue()
+            : sortKeys(entry.getValue()));
+      }
+      return sorted;
+    } else if (value instanceof List) {
+      // order matters in arrays, e.g. sort clauses
+      List<Object> list = (List<Object>) value;
+      for (int i = 0; i < list.size(); i++) {
+        list.set(i, sortKeys(list.get(i)));
+      }
+    }
+    return value;
+  }
+
+  private Collection<String> writtenIndices(ActionRequest<?> request) {
+    Set<String> indices = new HashSet<>();
+    if (request instanceof IndexRequest) {
+      indices.add(((IndexRequest) request).index());
+    } else if (request instanceof DeleteRequest) {
+      indices.add(((DeleteRequest) request).index());
+    } else if (request instanceof UpdateRequest) {
+      indices.add(((UpdateRequest) request).index());
+    } else if (request instanceof BulkRequest) {
+      for (ActionRequest<?> item : ((BulkRequest) request).requests()) {
+        indices.addAll(writtenIndices(item));
+      }
+    } else if (request instanceof DeleteByQueryRequest) {
+      indices.addAll(Arrays.asList(((DeleteByQueryRequest) request).indices()));
+    } else if (request instanceof RefreshRequest) {
+      indices.addAll(Arrays.asList(((RefreshRequest) request).indices()));
+    }
+    if (request instanceof DeleteIndexRequest || request instanceof CloseIndexRequest
+        || (request instanceof RefreshRequest && indices.isEmpty())) {
+      // the indices of delete and close requests are not public, invalidate all of them
+      indices.add("_all");
+    }
+    return indices;
+  }
+
+  private void written(Collection<String> names) {
+    long now = System.nanoTime();
+    for (String index : resolve(names)) {
+      IndexState state = state(index);
+      state.generation.incrementAndGet();
+      state.lastWriteNanos = now;
+      state.visible = false;
+    }
+  }
+
+  /**
+   * A refresh makes the writes sent before it visible, they no longer hold back caching.
+   */
+  private void refreshed(Collection<String> names, long startNanos) {
+    for (String index : resolve(names)) {
+      IndexState state = state(index);
+      state.generation.incrementAndGet();
+      if (state.lastWriteNanos - startNanos < 0) {
+        state.visible = true;
+      }
+    }
+  }
+
+  private IndexState state(String index) {
+    IndexState state = indexStates.get(index);
+    if (state == null) {
+      IndexState created = new IndexState();
+      state = indexStates.putIfAbsent(index, created);
+      if (state == null) {
+        state = created;
+      }
+    }
+    return state;
+  }
+
+  private Collection<String> resolve(Collection<String> names) {
+    MetaData current = metaData;
+    Set<String> indices = new HashSet<>(names);
+    if (current != null) {
+      try {
+        indices.addAll(Arrays.asList(current.concreteIndices(IndicesOptions.lenientExpandOpen(),
+            names.toArray(new String[names.size()]))));
+      } catch (RuntimeException e) {
+        // new index, only known by its name
+      }
+    }
+    return indices;
+  }
+
+  private long[] generations(String[] indices) {
+    long[] generations = new long[indices.length];
+    for (int i = 0; i < indices.length; i++) {
+      IndexState state = indexStates.get(indices[i]);
+      generations[i] = state == null ? 0 : state.generation.get();
+    }
+    return generations;
+  }
+
+  private boolean isCurrent(String[] indices, long[] generations) {
+    return Arrays.equals(generations, generations(indices));
+  }
+
+  private boolean recentlyWritten(String[] indices) {
+    long now = System.nanoTime();
+    for (String index : indices) {
+      IndexState state = indexStates.get(index);
+      if (state != null && !state.visible && now - state.lastWriteNanos < quietPeriodNanos) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private <Response> ActionListener<Response> invalidating(Collection<String> written,
+      ActionListener<Response> listener) {
+    return new ActionListener<Response>() {
+      @Override
+      public void onResponse(Response response) {
+        written(written);
+        listener.onResponse(response);
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        written(written);
+        listener.onFailure(e);
+      }
+    };
+  }
+
+  private class CachingIndicesAdmin extends IndicesAdmin {
+
+    CachingIndicesAdmin(IndicesAdminClient in) {
+      super(in);
+    }
+
+    // the bound of Request is raw in IndicesAdminClient, an override must repeat it
+    @Override
+    @SuppressWarnings("rawtypes")
+    public <Request extends ActionRequest, Response extends ActionResponse,
+        RequestBuilder extends
+        ActionRequestBuilder<Request, Response, RequestBuilder, IndicesAdminClient>>
+        ActionFuture<Response> execute(
+        Action<Request, Response, RequestBuilder, IndicesAdminClient> action, Request request) {
+      PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+      execute(action, request, future);
+      return future;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public <Request extends ActionRequest, Response extends ActionResponse,
+        RequestBuilder extends
+        ActionRequestBuilder<Request, Response, RequestBuilder, IndicesAdminClient>>
+        void execute(
+        Action<Request, Response, RequestBuilder, IndicesAdminClient> action, Request request,
+        ActionListener<Response> listener) {
+      if (action == RefreshAction.INSTANCE) {
+        Collection<String> refreshed = writtenIndices(request);
+        long start = System.nanoTime();
+        super.execute(action, request, new ActionListener<Response>() {
+          @Override
+          public void onResponse(Response response) {
+            refreshed(refreshed, start);
+            listener.onResponse(response);
+          }
+
+          @Override
+          public void onFailure(Throwable e) {
+            written(refreshed);
+            listener.onFailure(e);
+          }
+        });
+      } else if (action == DeleteIndexAction.INSTANCE || action == CloseIndexAction.INSTANCE) {
+        Collection<String> written = writtenIndices(request);
+        written(written);
+        super.execute(action, request, invalidating(written, listener));
+      } else {
+        super.execute(action, request, listener);
+      }
+    }
+  }
+
+  private static class Entry {
+    final SearchResponse response;
+    final String[] indices;
+    final long[] generations;
+    final long tookNanos;
+    final int weight;
+
+    Entry(SearchResponse response, String[] indices, long[] generations, long tookNanos,
+        int weight) {
+      this.response = response;
+      this.indices = indices;
+      this.generations = generations;
+      this.tookNanos = tookNanos;
+      this.weight = weight;
+    }
+  }
+
+  private static class IndexState {
+    final AtomicLong generation = new AtomicLong();
+    volatile long lastWriteNanos;
+    volatile boolean visible = true;
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private ByteSizeValue maxSize = new ByteSizeValue(64, ByteSizeUnit.MB);
+    private TimeValue ttl = TimeValue.timeValueMinutes(5);
+    private TimeValue quietPeriod = TimeValue.timeValueSeconds(1);
+    private TimeValue metaDataMaxAge = TimeValue.timeValueSeconds(1);
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * Maximum serialized size of the cached responses, 64mb by default.
+     */
+    public Builder setMaxSize(ByteSizeValue maxSize) {
+      this.maxSize = maxSize;
+      return this;
+    }
+
+    /**
+     * How long a response is served after it was cached, 5m by default. It bounds how stale a
+     * response can be after writes from other clients.
+     */
+    public Builder setTtl(TimeValue ttl) {
+      this.ttl = ttl;
+      return this;
+    }
+
+    /**
+     * How long after a write through this client the indices it touched are not cached, 1s by
+     * default; raise it with the refresh interval.
+     */
+    public Builder setQuietPeriod(TimeValue quietPeriod) {
+      this.quietPeriod = quietPeriod;
+      return this;
+    }
+
+    /**
+     * How long the cluster metadata resolving aliases and wildcards is reused before a miss
+     * fetches it again, 1s by default.
+     */
+    public Builder setMetaDataMaxAge(TimeValue metaDataMaxAge) {
+      this.metaDataMaxAge = metaDataMaxAge;
+      return this;
+    }
+
+    public CachingSearchClient build() {
+      return new CachingSearchClient(client, maxSize, ttl, quietPeriod, metaDataMaxAge);
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package es.search;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.elasticsearch.search.aggregations.metrics.cardinality.HyperLogLogPlusPlus;
+import org.elasticsearch.search.aggregations.metrics.cardinality.InternalCardinality;
+import org.elasticsearch.search.aggregations.support.format.ValueFormatterStreams;
+
+/**
+ * Distinct counts over any union of partitions, e.g. days of a tenant, from HyperLogLog++
+ * sketches kept on the client, without searching the documents again. Each partition keeps the
+ * registers of the sketch a cardinality aggregation computed for it on the server, or of values
+ * added here with the same hashing as the aggregation: MurmurHash3 x64 128 of the UTF-8 bytes
+ * for strings, its 64-bit finalizer for longs and the bits of doubles. A union is the merge of
+ * its partitions, so a value counted in several partitions is counted once, and its error is
+ * the one of a single sketch, about 1.04 / sqrt(2^precision).
+ *
+ * All the sketches have the precision of precisionThreshold, computed as the server does, and
+ * the cardinality aggregations loaded must use the same threshold. A sketch of precision p
+ * takes up to 2^p bytes, 1kb for a threshold of 100.
+ */
+public class CardinalitySketchStore {
+
+  private final Client client;
+  private final long precisionThreshold;
+  private final int precision;
+  private final ConcurrentMap<String, HyperLogLogPlusPlus> sketches = new ConcurrentHashMap<>();
+
+  private CardinalitySketchStore(Client client, long precisionThreshold) {
+    this.client = client;
+    this.precisionThreshold = precisionThreshold;
+    this.precision = HyperLogLogPlusPlus.precisionFromThreshold(precisionThreshold);
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  /**
+   * Replaces the sketch of partition with the one of the distinct values of field in the
+   * documents of index matching query, and returns their count.
+   */
+  public long load(String partition, String index, QueryBuilder query, String field) {
+    SearchResponse response =
+        client.prepareSearch(index).setSearchType(SearchType.COUNT).setQuery(query)
+            .addAggregation(AggregationBuilders.cardinality("distinct").field(field)
+                .precisionThreshold(precisionThreshold)).get();
+    if (response.getFailedShards() > 0) {
+      throw new ElasticsearchException("Failed to load [" + partition + "] on "
+          + response.getFailedShards() + " shards: "
+          + Arrays.toString(response.getShardFailures()));
+    }
+    Cardinality cardinality = response.getAggregations().get("distinct");
+    put(partition, cardinality);
+    return cardinality.getValue();
+  }
+
+  /**
+   * Replaces the sketch of partition with the one of a cardinality aggregation, e.g. of the
+   * daily buckets of a date_histogram, which must use the precisionThreshold of the store.
+   */
+  public void put(String partition, Cardinality cardinality) {
+    if (!(cardinality instanceof InternalCardinality)) {
+      throw new ElasticsearchIllegalArgumentException("Not a cardinality aggregation result: "
+          + cardinality);
+    }
+    HyperLogLogPlusPlus sketch = read((InternalCardinality) cardinality);
+    if (sketch.precision() != precision) {
+      sketch.close();
+      throw new ElasticsearchIllegalArgumentException("Cardinality [" + cardinality.getName()
+          + "] has precision " + sketch.precision() + ", the store " + precision
+          + ": use a precision_threshold of " + precisionThreshold);
+    }
+    HyperLogLogPlusPlus previous = sketches.put(partition, sketch);
+    if (previous != null) {
+      previous.close();
+    }
+  }
+
+  public void add(String partition, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    collect(partition,
+        MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1);
+  }
+
+  public void add(String partition, long value) {
+    collect(partition, org.elasticsearch.common.hppc.hash.MurmurHash3.hash(value));
+  }
+
+  public void add(String partition, double value) {
+    add(partition, Double.doubleToLongBits(value));
+  }
+
+  /**
+   * The estimated number of distinct values over the partitions, unknown ones counting none.
+   */
+  public long cardinality(String... partitions) {
+    return cardinality(Arrays.asList(partitions));
+  }
+
+  public long cardinality(Collection<String> partitions) {
+    HyperLogLogPlusPlus union = new HyperLogLogPlusPlus(precision,
+        BigArrays.NON_RECYCLING_INSTANCE, 1);
+    try {
+      for (String partition : partitions) {
+        HyperLogLogPlusPlus sketch = sketches.get(partition);
+        if (sketch != null) {
+          synchronized (sketch) {
+            union.merge(0, sketch, 0);
+          }
+        }
+      }
+      return union.cardinality(0);
+    } finally {
+      union.close();
+    }
+  }
+
+  public Set<String> getPartitions() {
+    return sketches.keySet();
+  }
+
+  public void remove(String partition) {
+    HyperLogLogPlusPlus sketch = sketches.remove(partition);
+    if (sketch != null) {
+      sketch.close();
+    }
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  /**
+   * Upper bound of the memory the sketches take.
+   */
+  public long getSizeInBytes() {
+    return sketches.size() * HyperLogLogPlusPlus.memoryUsage(precision);
+  }
+
+  private void collect(String partition, long hash) {
+    HyperLogLogPlusPlus sketch = sketches.get(partition);
+    if (sketch == null) {
+      HyperLogLogPlusPlus created =
+          new HyperLogLogPlusPlus(precision, BigArrays.NON_RECYCLING_INSTANCE, 1);
+      sketch = sketches.putIfAbsent(partition, created);
+      if (sketch == null) {
+        sketch = created;
+      } else {
+        created.close();
+      }
+    }
+    synchronized (sketch) {
+      sketch.collect(0, hash);
+    }
+  }
+
+  /**
+   * The registers of the aggregation, read back from its wire format as they are not public.
+   */
+  private HyperLogLogPlusPlus read(InternalCardinality cardinality) {
+    try {
+      BytesStreamOutput out = new BytesStreamOutput();
+      cardinality.writeTo(out);
+      BytesStreamInput in = new BytesStreamInput(out.bytes());
+      in.readString();
+      ValueFormatterStreams.readOptional(in);
+      if (in.readBoolean()) {
+        return HyperLogLogPlusPlus.readFrom(in, BigArrays.NON_RECYCLING_INSTANCE);
+      }
+    } catch (IOException e) {
+      throw new ElasticsearchException("Failed to read the sketch of [" + cardinality.getName()
+          + "]", e);
+    }
+    // an unmapped field
+    return new HyperLogLogPlusPlus(precision, BigArrays.NON_RECYCLING_INSTANCE, 1);
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private long precisionThreshold = 3000;
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * The precision_threshold of the cardinality aggregations loaded, 3000 by default. Set it
+     * on the aggregations too, the server default depends on where the aggregation is.
+     */
+    public Builder setPrecisionThreshold(long precisionThreshold) {
+      this.precisionThreshold = precisionThreshold;
+      return this;
+    }
+
+    public CardinalitySketchStore build() {
+      return new CardinalitySketchStore(client, precisionThreshold);
+    }
+  }
+}
@@ -0,0 +1,332 @@
+package es.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.rounding.DateTimeUnit;
+import org.elasticsearch.common.rounding.Rounding;
+import org.elasticsearch.common.rounding.TimeZoneRounding;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeFilterBuilder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogram;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramBuilder;
+
+/**
+ * Answers date_histogram aggregations over append-only indices by searching only the intervals
+ * that can still change: the buckets of the closed intervals, those that ended more than
+ * settleTime ago, are kept per index, query and histogram, and each call only searches the
+ * documents from the end of the cached intervals on, through a range filter on the histogram
+ * field added to the query. A dashboard over years then costs about as much as its last
+ * interval.
+ *
+ * The cached part is kept as the histogram ES returned for the closed intervals, and merged
+ * with the fresh part by the same reduce that merges the results of the shards, so counts,
+ * metrics and sub-aggregations, min_doc_count 0 and extended_bounds come out as from one
+ * search. When intervals close between two calls, only those are searched and reduced into the
+ * cached part.
+ *
+ * Histograms with a script, a time zone, an offset or a factor are searched every time, as are
+ * the intervals of documents indexed with a timestamp more than settleTime in the past; call
+ * invalidate() after such writes or deletes.
+ */
+public class DateHistogramCache {
+
+  private static final Map<String, DateTimeUnit> UNITS = new HashMap<>();
+  private static final String[] UNCACHEABLE = {"script", "pre_zone", "post_zone", "time_zone",
+      "pre_offset", "post_offset", "factor"};
+
+  static {
+    UNITS.put("year", DateTimeUnit.YEAR_OF_CENTURY);
+    UNITS.put("1y", DateTimeUnit.YEAR_OF_CENTURY);
+    UNITS.put("quarter", DateTimeUnit.QUARTER);
+    UNITS.put("1q", DateTimeUnit.QUARTER);
+    UNITS.put("month", DateTimeUnit.MONTH_OF_YEAR);
+    UNITS.put("1M", DateTimeUnit.MONTH_OF_YEAR);
+    UNITS.put("week", DateTimeUnit.WEEK_OF_WEEKYEAR);
+    UNITS.put("1w", DateTimeUnit.WEEK_OF_WEEKYEAR);
+    UNITS.put("day", DateTimeUnit.DAY_OF_MONTH);
+    UNITS.put("1d", DateTimeUnit.DAY_OF_MONTH);
+    UNITS.put("hour", DateTimeUnit.HOUR_OF_DAY);
+    UNITS.put("1h", DateTimeUnit.HOUR_OF_DAY);
+    UNITS.put("minute", DateTimeUnit.MINUTES_OF_HOUR);
+    UNITS.put("1m", DateTimeUnit.MINUTES_OF_HOUR);
+    UNITS.put("second", DateTimeUnit.SECOND_OF_MINUTE);
+    UNITS.put("1s", DateTimeUnit.SECOND_OF_MINUTE);
+  }
+
+  private final Client client;
+  private final long settleMillis;
+  private final Cache<String, Entry> cache;
+
+  private final AtomicLong searches = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong extended = new AtomicLong();
+  private final AtomicLong uncacheable = new AtomicLong();
+
+  private DateHistogramCache(Client client, TimeValue settleTime, int maxEntries) {
+    this.client = client;
+    this.settleMillis = settleTime.millis();
+    this.cache = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  /**
+   * The histogram of the documents of index matching all documents.
+   */
+  public DateHistogram search(String index, DateHistogramBuilder histogram) {
+    return search(index, QueryBuilders.matchAllQuery(), histogram);
+  }
+
+  /**
+   * The histogram of the documents of index matching query, as a count search with the
+   * aggregation would return it.
+   */
+  public DateHistogram search(String index, QueryBuilder query, DateHistogramBuilder histogram) {
+    searches.incrementAndGet();
+    Map<String, Object> aggregation = toMap(histogram);
+    String name = aggregation.keySet().iterator().next();
+    Histogram parsed = parse(aggregation.get(name));
+    if (parsed == null) {
+      uncacheable.incrementAndGet();
+      return (DateHistogram) request(index, query, null, null, null, histogram).get()
+          .getAggregations().get(name);
+    }
+
+    String key = index + '|' + query + '|' + aggregation;
+    long until = parsed.rounding.round(System.currentTimeMillis() - settleMillis);
+    Entry entry = cache.getIfPresent(key);
+    InternalAggregation closed;
+    InternalAggregation open;
+    if (entry != null && entry.until >= until) {
+      hits.incrementAndGet();
+      closed = entry.closed;
+      open = histogram(request(index, query, parsed.field, entry.until, null, histogram).get(),
+          name);
+    } else {
+      // the closed part is searched from where the cached one stops, all of it on a miss
+      Long from = entry == null ? null : entry.until;
+      if (entry == null) {
+        misses.incrementAndGet();
+      } else {
+        extended.incrementAndGet();
+      }
+      MultiSearchResponse.Item[] items = client.prepareMultiSearch()
+          .add(request(index, query, parsed.field, from, until, histogram))
+          .add(request(index, query, parsed.field, until, null, histogram)).get()
+          .getResponses();
+      InternalAggregation newlyClosed = histogram(response(items[0]), name);
+      closed = entry == null ? newlyClosed : reduce(entry.closed, newlyClosed);
+      open = histogram(response(items[1]), name);
+      cache.put(key, new Entry(until, closed));
+    }
+    return (DateHistogram) reduce(closed, open);
+  }
+
+  public void invalidate(String index) {
+    String prefix = index + '|';
+    cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public long getSearches() {
+    return searches.get();
+  }
+
+  /**
+   * Searches answered with the cached intervals and a search of the open ones.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Searches of a histogram not cached yet, which search the closed intervals once.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Searches that found intervals closed since the last one, and searched them too.
+   */
+  public long getExtended() {
+    return extended.get();
+  }
+
+  /**
+   * Searches of a histogram with a script, a time zone, an offset or a factor.
+   */
+  public long getUncacheable() {
+    return uncacheable.get();
+  }
+
+  private SearchRequestBuilder request(String index, QueryBuilder query, String field,
+      Long from, Long to, DateHistogramBuilder histogram) {
+    SearchRequestBuilder search =
+        client.prepareSearch(index).setSearchType(SearchType.COUNT).addAggregation(histogram);
+    if (from == null && to == null) {
+      return search.setQuery(query);
+    }
+    RangeFilterBuilder range = FilterBuilders.rangeFilter(field);
+    if (from != null) {
+      range.gte(from);
+    }
+    if (to != null) {
+      range.lt(to);
+    }
+    return search.setQuery(QueryBuilders.filteredQuery(query, range));
+  }
+
+  private static SearchResponse response(MultiSearchResponse.Item item) {
+    if (item.isFailure()) {
+      throw new ElasticsearchException("Failed to search the histogram: "
+          + item.getFailureMessage());
+    }
+    return item.getResponse();
+  }
+
+  private static InternalAggregation histogram(SearchResponse response, String name) {
+    if (response.getFailedShards() > 0) {
+      // a partial closed part would be cached for good
+      throw new ElasticsearchException("Failed to search the histogram on "
+          + response.getFailedShards() + " shards: "
+          + Arrays.toString(response.getShardFailures()));
+    }
+    return (InternalAggregation) response.getAggregations().get(name);
+  }
+
+  private static InternalAggregation reduce(InternalAggregation closed,
+      InternalAggregation open) {
+    InternalAggregations reduced = InternalAggregations.reduce(
+        Arrays.asList(new InternalAggregations(Collections.singletonList(closed)),
+            new InternalAggregations(Collections.singletonList(open))),
+        BigArrays.NON_RECYCLING_INSTANCE);
+    return reduced.get(closed.getName());
+  }
+
+  private static Map<String, Object> toMap(DateHistogramBuilder histogram) {
+    try {
+      XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+      histogram.toXContent(builder, ToXContent.EMPTY_PARAMS);
+      return XContentHelper.convertToMap(builder.endObject().bytes(), true).v2();
+    } catch (IOException e) {
+      throw new ElasticsearchException("Failed to read the histogram", e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> settings(Object aggregation) {
+    return (Map<String, Object>) ((Map<String, Object>) aggregation).get("date_histogram");
+  }
+
+  /**
+   * The field and rounding of the histogram, or null if its buckets cannot be computed here.
+   */
+  private static Histogram parse(Object aggregation) {
+    Map<String, Object> settings = settings(aggregation);
+    if (!(settings.get("field") instanceof String)) {
+      return null;
+    }
+    for (String option : UNCACHEABLE) {
+      if (settings.containsKey(option)) {
+        return null;
+      }
+    }
+    Object interval = settings.get("interval");
+    Rounding rounding;
+    if (interval instanceof Number) {
+      rounding = TimeZoneRounding.builder(
+          TimeValue.timeValueMillis(((Number) interval).longValue())).build();
+    } else if (UNITS.containsKey(interval)) {
+      rounding = TimeZoneRounding.builder(UNITS.get(interval)).build();
+    } else if (interval instanceof String) {
+      rounding = TimeZoneRounding.builder(
+          TimeValue.parseTimeValue((String) interval, null)).build();
+    } else {
+      return null;
+    }
+    return new Histogram((String) settings.get("field"), rounding);
+  }
+
+  private static class Histogram {
+    final String field;
+    final Rounding rounding;
+
+    Histogram(String field, Rounding rounding) {
+      this.field = field;
+      this.rounding = rounding;
+    }
+  }
+
+  private static class Entry {
+    // the intervals before until are closed and reduced in closed
+    final long until;
+    final InternalAggregation closed;
+
+    Entry(long until, InternalAggregation closed) {
+      this.until = until;
+      this.closed = closed;
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private TimeValue settleTime = TimeValue.timeValueMinutes(1);
+    private int maxEntries = 256;
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * How long after its end an interval may still get documents, and is searched again, 1m by
+     * default. It should cover the refresh interval and how late documents arrive.
+     */
+    public Builder setSettleTime(TimeValue settleTime) {
+      this.settleTime = settleTime;
+      return this;
+    }
+
+    /**
+     * Number of histograms whose closed intervals are kept, 256 by default.
+     */
+    public Builder setMaxEntries(int maxEntries) {
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    public DateHistogramCache build() {
+      return new DateHistogramCache(client, settleTime, maxEntries);
+    }
+  }
+}
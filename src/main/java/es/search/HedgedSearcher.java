@@ -0,0 +1,385 @@
+package es.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Sends read-only searches and gets once, and a second time to other shard copies if the first
+ * attempt has not answered after the percentile of the recent latencies: whichever attempt
+ * answers first completes the caller, the other is ignored (1.x cannot cancel a running search),
+ * so one slow copy, in a GC pause or behind a merge, no longer sets the tail latency.
+ *
+ * The first attempt prefers the data nodes in turn and the hedge the next data node, so with
+ * replicas on other nodes it reads other copies of the shards; both are copies, the request
+ * given is left as it is. Requests with a preference of their own, e.g. _primary, _shards or a
+ * session string, are sent once: another copy could answer differently.
+ *
+ * The hedging delay is the given percentile of the last window latencies of first attempts, at
+ * least minDelay, and initialDelay until enough were seen. At most maxHedgeRate of the requests
+ * are hedged, so that an overloaded cluster does not get twice the load. Scrolls and scans are
+ * sent once too.
+ */
+public class HedgedSearcher implements Closeable {
+
+  private static final int MIN_SAMPLES = 20;
+
+  private final Client client;
+  private final double percentile;
+  private final long minDelayNanos;
+  private final long initialDelayNanos;
+  private final double maxHedgeRate;
+  private final ScheduledExecutorService timer;
+
+  // guarded by latencies
+  private final long[] latencies;
+  private int samples = 0;
+  private volatile long delayNanos;
+
+  private volatile String[] dataNodes = new String[0];
+  private final AtomicLong nextNode = new AtomicLong();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong hedged = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+  private final AtomicLong budgetSkips = new AtomicLong();
+
+  private HedgedSearcher(Client client, double percentile, TimeValue minDelay,
+      TimeValue initialDelay, int window, double maxHedgeRate, TimeValue nodesRefreshInterval) {
+    this.client = client;
+    this.percentile = percentile;
+    this.minDelayNanos = minDelay.nanos();
+    this.initialDelayNanos = initialDelay.nanos();
+    this.delayNanos = initialDelayNanos;
+    this.maxHedgeRate = maxHedgeRate;
+    this.latencies = new long[window];
+    this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "search-hedger");
+      t.setDaemon(true);
+      return t;
+    });
+    refreshNodes();
+    timer.scheduleWithFixedDelay(this::refreshNodes, nodesRefreshInterval.millis(),
+        nodesRefreshInterval.millis(), TimeUnit.MILLISECONDS);
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  public CompletableFuture<SearchResponse> search(SearchRequestBuilder search) {
+    return search(search.request());
+  }
+
+  public CompletableFuture<SearchResponse> search(SearchRequest request) {
+    if (request.scroll() != null || request.searchType() == SearchType.SCAN) {
+      CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+      client.search(request, listener(future));
+      return future;
+    }
+    return hedge(request, client::search, () -> copy(request, new SearchRequest()),
+        SearchRequest::preference, SearchRequest::preference);
+  }
+
+  public CompletableFuture<GetResponse> get(GetRequestBuilder get) {
+    return get(get.request());
+  }
+
+  public CompletableFuture<GetResponse> get(GetRequest request) {
+    return hedge(request, client::get, () -> copy(request, new GetRequest(request.index())),
+        GetRequest::preference, GetRequest::preference);
+  }
+
+  /**
+   * The delay after which a request is hedged, in milliseconds.
+   */
+  public double getDelayMillis() {
+    return delayNanos / 1e6;
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getHedged() {
+    return hedged.get();
+  }
+
+  /**
+   * Hedged requests answered by the hedge first.
+   */
+  public long getHedgeWins() {
+    return hedgeWins.get();
+  }
+
+  public double getHedgeRate() {
+    long total = requests.get();
+    return total == 0 ? 0 : (double) hedged.get() / total;
+  }
+
+  /**
+   * Requests that were not hedged because maxHedgeRate was reached.
+   */
+  public long getBudgetSkips() {
+    return budgetSkips.get();
+  }
+
+  @Override
+  public void close() {
+    timer.shutdownNow();
+  }
+
+  interface Preference<R> {
+    String get(R request);
+  }
+
+  interface SetPreference<R> {
+    R set(R request, String preference);
+  }
+
+  private <R extends ActionRequest<R>, T> CompletableFuture<T> hedge(R request,
+      BiConsumer<R, ActionListener<T>> send, Supplier<R> copy, Preference<R> preference,
+      SetPreference<R> setPreference) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    if (preference.get(request) != null) {
+      send.accept(request, listener(future));
+      return future;
+    }
+    requests.incrementAndGet();
+    String[] nodes = dataNodes;
+    int node = (int) (nextNode.getAndIncrement() % Math.max(1, nodes.length));
+    R first = request;
+    if (nodes.length > 0) {
+      // a copy, so that a request sent again is not pinned to this node
+      first = copy.get();
+      setPreference.set(first, "_prefer_node:" + nodes[node]);
+    }
+
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicLong failures = new AtomicLong();
+    AtomicBoolean hedgeSent = new AtomicBoolean();
+    long start = System.nanoTime();
+    ScheduledFuture<?> timeout = timer.schedule(() -> {
+      if (done.get()) {
+        return;
+      }
+      if (hedged.get() >= maxHedgeRate * requests.get() + 1) {
+        budgetSkips.incrementAndGet();
+        return;
+      }
+      R hedgeRequest = copy.get();
+      if (nodes.length > 0) {
+        setPreference.set(hedgeRequest, "_prefer_node:" + nodes[(node + 1) % nodes.length]);
+      }
+      hedgeSent.set(true);
+      hedged.incrementAndGet();
+      send.accept(hedgeRequest, new Attempt<>(future, done, failures, hedgeSent, true));
+    }, delayNanos, TimeUnit.NANOSECONDS);
+
+    send.accept(first, new Attempt<T>(future, done, failures, hedgeSent, false) {
+      @Override
+      public void onResponse(T response) {
+        record(System.nanoTime() - start);
+        timeout.cancel(false);
+        super.onResponse(response);
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        timeout.cancel(false);
+        super.onFailure(e);
+      }
+    });
+    return future;
+  }
+
+  private class Attempt<T> implements ActionListener<T> {
+    private final CompletableFuture<T> future;
+    private final AtomicBoolean done;
+    private final AtomicLong failures;
+    private final AtomicBoolean hedgeSent;
+    private final boolean isHedge;
+
+    Attempt(CompletableFuture<T> future, AtomicBoolean done, AtomicLong failures,
+        AtomicBoolean hedgeSent, boolean isHedge) {
+      this.future = future;
+      this.done = done;
+      this.failures = failures;
+      this.hedgeSent = hedgeSent;
+      this.isHedge = isHedge;
+    }
+
+    @Override
+    public void onResponse(T response) {
+      if (done.compareAndSet(false, true)) {
+        if (isHedge) {
+          hedgeWins.incrementAndGet();
+        }
+        future.complete(response);
+      }
+    }
+
+    @Override
+    public void onFailure(Throwable e) {
+      long failed = failures.incrementAndGet();
+      // once hedged, the other attempt may still answer
+      if ((failed == 2 || !hedgeSent.get()) && done.compareAndSet(false, true)) {
+        future.completeExceptionally(e);
+      }
+    }
+  }
+
+  private void record(long nanos) {
+    synchronized (latencies) {
+      latencies[samples % latencies.length] = nanos;
+      samples++;
+      int count = Math.min(samples, latencies.length);
+      if (count < MIN_SAMPLES || samples % 16 != 0) {
+        return;
+      }
+      long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+      delayNanos = Math.max(minDelayNanos, sorted[Math.max(0, Math.min(count - 1, rank))]);
+    }
+  }
+
+  private void refreshNodes() {
+    try {
+      String[] nodes =
+          client.admin().cluster().prepareState().setMetaData(false).setRoutingTable(false)
+              .setBlocks(false).get().getState().nodes().dataNodes().keys()
+              .toArray(String.class);
+      Arrays.sort(nodes);
+      dataNodes = nodes;
+    } catch (ElasticsearchException e) {
+      // keep the nodes known, the next refresh may succeed
+    }
+  }
+
+  /**
+   * A copy of the request, for the hedge.
+   */
+  private static <R extends ActionRequest<R>> R copy(R request, R copy) {
+    try {
+      BytesStreamOutput out = new BytesStreamOutput();
+      request.writeTo(out);
+      copy.readFrom(new BytesStreamInput(out.bytes()));
+      return copy;
+    } catch (IOException e) {
+      throw new ElasticsearchException("Failed to copy the request", e);
+    }
+  }
+
+  private static <T> ActionListener<T> listener(CompletableFuture<T> future) {
+    return new ActionListener<T>() {
+      @Override
+      public void onResponse(T response) {
+        future.complete(response);
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        future.completeExceptionally(e);
+      }
+    };
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private double percentile = 95;
+    private TimeValue minDelay = TimeValue.timeValueMillis(2);
+    private TimeValue initialDelay = TimeValue.timeValueMillis(50);
+    private int window = 1000;
+    private double maxHedgeRate = 0.1;
+    private TimeValue nodesRefreshInterval = TimeValue.timeValueSeconds(30);
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * Percentile of the recent latencies after which a request is hedged, 95 by default.
+     */
+    public Builder setPercentile(double percentile) {
+      this.percentile = percentile;
+      return this;
+    }
+
+    /**
+     * Lower bound of the hedging delay, 2ms by default.
+     */
+    public Builder setMinDelay(TimeValue minDelay) {
+      this.minDelay = minDelay;
+      return this;
+    }
+
+    /**
+     * Hedging delay until 20 latencies were seen, 50ms by default.
+     */
+    public Builder setInitialDelay(TimeValue initialDelay) {
+      this.initialDelay = initialDelay;
+      return this;
+    }
+
+    /**
+     * Number of recent latencies the percentile is computed on, 1000 by default.
+     */
+    public Builder setWindow(int window) {
+      this.window = window;
+      return this;
+    }
+
+    /**
+     * Largest share of the requests hedged, 0.1 by default.
+     */
+    public Builder setMaxHedgeRate(double maxHedgeRate) {
+      this.maxHedgeRate = maxHedgeRate;
+      return this;
+    }
+
+    /**
+     * How often the data nodes are read from the cluster state, 30s by default.
+     */
+    public Builder setNodesRefreshInterval(TimeValue nodesRefreshInterval) {
+      this.nodesRefreshInterval = nodesRefreshInterval;
+      return this;
+    }
+
+    public HedgedSearcher build() {
+      if (percentile <= 0 || percentile >= 100) {
+        throw new IllegalArgumentException("percentile must be between 0 and 100");
+      }
+      if (window < MIN_SAMPLES) {
+        throw new IllegalArgumentException("window must be >= " + MIN_SAMPLES);
+      }
+      return new HedgedSearcher(client, percentile, minDelay, initialDelay, window,
+          maxHedgeRate, nodesRefreshInterval);
+    }
+  }
+}
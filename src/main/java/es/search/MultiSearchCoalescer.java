@@ -0,0 +1,250 @@
+package es.search;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Coalesces independent searches submitted concurrently into multi-search requests: a search is
+ * held for at most window, or until maxBatch searches are pending, and all the pending searches
+ * are then sent in one round trip. Each caller gets its own {@link MultiSearchResponse.Item}.
+ *
+ * A failed item only fails its own caller; a failure of the whole multi-search fails every
+ * search of the batch. The window is the latency added to a search when the traffic is too low
+ * to fill a batch, so it should stay well below the search latency itself.
+ */
+public class MultiSearchCoalescer implements Closeable {
+
+  private final Client client;
+  private final long windowNanos;
+  private final int maxBatch;
+  private final ScheduledExecutorService timer;
+
+  // guarded by this
+  private Batch pending = null;
+  private boolean closed = false;
+
+  private final AtomicLong searches = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong failedItems = new AtomicLong();
+
+  private MultiSearchCoalescer(Client client, TimeValue window, int maxBatch) {
+    this.client = client;
+    this.windowNanos = window.nanos();
+    this.maxBatch = maxBatch;
+    this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "msearch-coalescer");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  /**
+   * Adds the search to the pending batch.
+   *
+   * @return completed with the item of the search, which may be a failure
+   */
+  public CompletableFuture<MultiSearchResponse.Item> submit(SearchRequest request) {
+    CompletableFuture<MultiSearchResponse.Item> future = new CompletableFuture<>();
+    Batch full = null;
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("multi-search coalescer already closed");
+      }
+      if (pending == null) {
+        Batch batch = new Batch();
+        pending = batch;
+        timer.schedule(() -> flush(batch), windowNanos, TimeUnit.NANOSECONDS);
+      }
+      pending.add(request, future);
+      if (pending.size() >= maxBatch) {
+        full = pending;
+        pending = null;
+      }
+    }
+    searches.incrementAndGet();
+    if (full != null) {
+      execute(full);
+    }
+    return future;
+  }
+
+  public CompletableFuture<MultiSearchResponse.Item> submit(SearchRequestBuilder request) {
+    return submit(request.request());
+  }
+
+  /**
+   * Submits the search and waits for its response.
+   *
+   * @throws ElasticsearchException if the search failed
+   */
+  public SearchResponse search(SearchRequestBuilder request) {
+    MultiSearchResponse.Item item;
+    try {
+      item = submit(request).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ElasticsearchException("Interrupted while waiting for the search", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ElasticsearchException) {
+        throw (ElasticsearchException) e.getCause();
+      }
+      throw new ElasticsearchException("Multi-search failed", e.getCause());
+    }
+    if (item.isFailure()) {
+      throw new ElasticsearchException(item.getFailureMessage());
+    }
+    return item.getResponse();
+  }
+
+  /**
+   * Sends the pending searches without waiting for the window to elapse.
+   */
+  public void flush() {
+    Batch batch;
+    synchronized (this) {
+      batch = pending;
+      pending = null;
+    }
+    if (batch != null) {
+      execute(batch);
+    }
+  }
+
+  /**
+   * Sends the pending searches and stops accepting new ones.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    flush();
+    timer.shutdown();
+  }
+
+  public long getSearches() {
+    return searches.get();
+  }
+
+  /**
+   * Multi-search requests sent, one round trip each.
+   */
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getFailedItems() {
+    return failedItems.get();
+  }
+
+  private void flush(Batch batch) {
+    synchronized (this) {
+      if (pending != batch) {
+        // already sent because it was full or flushed
+        return;
+      }
+      pending = null;
+    }
+    execute(batch);
+  }
+
+  private void execute(Batch batch) {
+    batches.incrementAndGet();
+    try {
+      client.multiSearch(batch.request, new ActionListener<MultiSearchResponse>() {
+        @Override
+        public void onResponse(MultiSearchResponse response) {
+          MultiSearchResponse.Item[] items = response.getResponses();
+          for (int i = 0; i < batch.futures.size(); i++) {
+            if (items[i].isFailure()) {
+              failedItems.incrementAndGet();
+            }
+            batch.futures.get(i).complete(items[i]);
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+          failedItems.addAndGet(batch.size());
+          for (CompletableFuture<MultiSearchResponse.Item> future : batch.futures) {
+            future.completeExceptionally(e);
+          }
+        }
+      });
+    } catch (Throwable t) {
+      failedItems.addAndGet(batch.size());
+      for (CompletableFuture<MultiSearchResponse.Item> future : batch.futures) {
+        future.completeExceptionally(t);
+      }
+    }
+  }
+
+  private static class Batch {
+    final MultiSearchRequest request = new MultiSearchRequest();
+    final List<CompletableFuture<MultiSearchResponse.Item>> futures = new ArrayList<>();
+
+    void add(SearchRequest search, CompletableFuture<MultiSearchResponse.Item> future) {
+      request.add(search);
+      futures.add(future);
+    }
+
+    int size() {
+      return futures.size();
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private TimeValue window = TimeValue.timeValueMillis(2);
+    private int maxBatch = 32;
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * How long the first search of a batch waits for others, 2ms by default.
+     */
+    public Builder setWindow(TimeValue window) {
+      this.window = window;
+      return this;
+    }
+
+    /**
+     * Number of pending searches sent right away, 32 by default.
+     */
+    public Builder setMaxBatch(int maxBatch) {
+      this.maxBatch = maxBatch;
+      return this;
+    }
+
+    public MultiSearchCoalescer build() {
+      if (maxBatch < 1) {
+        throw new IllegalArgumentException("maxBatch must be >= 1");
+      }
+      return new MultiSearchCoalescer(client, window, maxBatch);
+    }
+  }
+}
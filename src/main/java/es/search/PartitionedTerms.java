@@ -0,0 +1,448 @@
+package es.search;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsBuilder;
+
+/**
+ * Iterator over all the terms of a string field, with their doc counts and sub-aggregations,
+ * however many there are: instead of one terms aggregation with a size of millions, whose
+ * buckets all sit at once on the shards, the coordinating node and the client, the term space
+ * is cut into ranges searched concurrently, each in pages of at most size buckets.
+ *
+ * The ranges are cut at the quantiles of a sample, the most frequent terms, so that they hold
+ * about as many terms each. A page is a terms aggregation ordered by term, with shard_size equal
+ * to size, over the documents of a range filter from the last term of the previous page on: as
+ * a term among the first size of the range is among the first size of every shard, its count
+ * is exact, and a range is done when a page is not full. With multi-valued fields, the other
+ * values of the documents in the range would take the place of the next terms, so an include
+ * regex matching the terms after the last one is added; setSingleValued() drops it, as
+ * evaluating it on every term of the shards makes the pages slower.
+ *
+ * At most concurrency pages are searched at once and lookAhead pages are buffered, so a slow
+ * consumer holds at most lookAhead + concurrency + 1 pages. The buckets of a range come in term
+ * order, the ranges interleaved.
+ *
+ * <pre>
+ * try (PartitionedTerms terms = PartitionedTerms.builder(client, "users", "user_id").build()) {
+ *   while (terms.hasNext()) {
+ *     process(terms.next());
+ *   }
+ * }
+ * </pre>
+ */
+public class PartitionedTerms implements Iterator<Terms.Bucket>, Closeable {
+
+  private static final String NAME = "terms";
+
+  private final Client client;
+  private final String[] indices;
+  private final QueryBuilder query;
+  private final String field;
+  private final int size;
+  private final int concurrency;
+  private final int lookAhead;
+  private final boolean singleValued;
+  private final List<AbstractAggregationBuilder> subAggregations;
+
+  // guarded by this
+  private final Deque<Range> ranges = new ArrayDeque<>();
+  private final Deque<List<Terms.Bucket>> pages = new ArrayDeque<>();
+  private int inFlight = 0;
+  private boolean closed = false;
+  private Throwable failure;
+
+  private List<Terms.Bucket> page = Collections.emptyList();
+  private int next = 0;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong buckets = new AtomicLong();
+
+  private PartitionedTerms(Client client, String[] indices, QueryBuilder query, String field,
+      int partitions, int size, int concurrency, int lookAhead, boolean singleValued,
+      List<AbstractAggregationBuilder> subAggregations) {
+    this.client = client;
+    this.indices = indices;
+    this.query = query;
+    this.field = field;
+    this.size = size;
+    this.concurrency = concurrency;
+    this.lookAhead = lookAhead;
+    this.singleValued = singleValued;
+    this.subAggregations = subAggregations;
+
+    String[] bounds = bounds(partitions);
+    for (int i = 0; i <= bounds.length; i++) {
+      ranges.add(new Range(i == 0 ? null : bounds[i - 1], true,
+          i == bounds.length ? null : bounds[i]));
+    }
+    synchronized (this) {
+      fetch();
+    }
+  }
+
+  public static Builder builder(Client client, String index, String field) {
+    return new Builder(client, new String[] {index}, field);
+  }
+
+  public static Builder builder(Client client, String[] indices, String field) {
+    return new Builder(client, indices, field);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (next == page.size()) {
+      List<Terms.Bucket> taken;
+      synchronized (this) {
+        while (pages.isEmpty() && failure == null && !closed
+            && (inFlight > 0 || !ranges.isEmpty())) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new ElasticsearchException("Interrupted while waiting for terms", e);
+          }
+        }
+        if (failure != null) {
+          Throwable t = failure;
+          failure = null;
+          close();
+          if (t instanceof ElasticsearchException) {
+            throw (ElasticsearchException) t;
+          }
+          throw new ElasticsearchException("Terms aggregation failed", t);
+        }
+        taken = pages.poll();
+        if (taken == null) {
+          return false;
+        }
+        fetch();
+      }
+      page = taken;
+      next = 0;
+    }
+    return true;
+  }
+
+  @Override
+  public Terms.Bucket next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return page.get(next++);
+  }
+
+  /**
+   * Sequential stream over the remaining buckets, closing it closes this iterator.
+   */
+  public Stream<Terms.Bucket> stream() {
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(this, Spliterator.NONNULL), false).onClose(
+        this::close);
+  }
+
+  /**
+   * Pages searched so far.
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Buckets received so far.
+   */
+  public long getBuckets() {
+    return buckets.get();
+  }
+
+  /**
+   * Stops searching, the pages in flight are dropped when they return.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    ranges.clear();
+    pages.clear();
+    notifyAll();
+  }
+
+  /**
+   * The terms cutting the term space in partitions, at the quantiles of the most frequent
+   * terms.
+   */
+  private String[] bounds(int partitions) {
+    if (partitions == 1) {
+      return new String[0];
+    }
+    SearchResponse response = client.prepareSearch(indices).setSearchType(SearchType.COUNT)
+        .setQuery(query).addAggregation(AggregationBuilders.terms(NAME).field(field)
+            .size(partitions * 16)).get();
+    Terms sample = response.getAggregations().get(NAME);
+    if (!(sample instanceof StringTerms) && !sample.getBuckets().isEmpty()) {
+      throw new ElasticsearchIllegalArgumentException("[" + field + "] is not a string field");
+    }
+    List<String> terms = new ArrayList<>();
+    for (Terms.Bucket bucket : sample.getBuckets()) {
+      terms.add(bucket.getKey());
+    }
+    Collections.sort(terms, PartitionedTerms::compareCodePoints);
+    List<String> bounds = new ArrayList<>();
+    for (int i = 1; i < partitions && !terms.isEmpty(); i++) {
+      String bound = terms.get(i * terms.size() / partitions);
+      if (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(bound)) {
+        bounds.add(bound);
+      }
+    }
+    return bounds.toArray(new String[bounds.size()]);
+  }
+
+  /**
+   * Searches the next pages of the ranges, as long as concurrency and lookAhead allow.
+   */
+  private void fetch() {
+    while (!closed && !ranges.isEmpty() && inFlight < concurrency
+        && pages.size() + inFlight < lookAhead) {
+      Range range = ranges.poll();
+      inFlight++;
+      requests.incrementAndGet();
+      TermsBuilder terms = AggregationBuilders.terms(NAME).field(field).size(size)
+          .shardSize(size).order(Terms.Order.term(true));
+      if (!singleValued && range.from != null) {
+        terms.include(after(range.from, range.fromInclusive));
+      }
+      for (AbstractAggregationBuilder subAggregation : subAggregations) {
+        terms.subAggregation(subAggregation);
+      }
+      client.prepareSearch(indices).setSearchType(SearchType.COUNT)
+          .setQuery(QueryBuilders.filteredQuery(query, FilterBuilders.rangeFilter(field)
+              .from(range.from).includeLower(range.fromInclusive).to(range.to)
+              .includeUpper(false)))
+          .addAggregation(terms).execute(new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+              onPage(range, response);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+              onPageFailure(e);
+            }
+          });
+    }
+  }
+
+  private synchronized void onPage(Range range, SearchResponse response) {
+    if (response.getFailedShards() > 0) {
+      // a page missing shards would miss terms for good
+      onPageFailure(new ElasticsearchException("Failed to search the terms on "
+          + response.getFailedShards() + " shards: "
+          + Arrays.toString(response.getShardFailures())));
+      return;
+    }
+    inFlight--;
+    Terms terms = response.getAggregations().get(NAME);
+    List<Terms.Bucket> received = new ArrayList<>(terms.getBuckets());
+    boolean full = received.size() >= size;
+    // the other values of multi-valued documents, after the range
+    int inRange = received.size();
+    while (range.to != null && inRange > 0
+        && compareCodePoints(received.get(inRange - 1).getKey(), range.to) >= 0) {
+      inRange--;
+    }
+    if (full && inRange == received.size()) {
+      ranges.addFirst(new Range(received.get(inRange - 1).getKey(), false, range.to));
+    }
+    if (inRange > 0 && !closed) {
+      List<Terms.Bucket> kept = inRange == received.size() ? received
+          : received.subList(0, inRange);
+      pages.add(kept);
+      buckets.addAndGet(inRange);
+    }
+    fetch();
+    notifyAll();
+  }
+
+  private synchronized void onPageFailure(Throwable e) {
+    inFlight--;
+    if (!closed && failure == null) {
+      failure = e;
+    }
+    ranges.clear();
+    notifyAll();
+  }
+
+  /**
+   * Compares as the terms aggregation and the range filter do, by UTF-8 bytes, which sort as the
+   * code points; String.compareTo sorts supplementary characters before U+E000-U+FFFF.
+   */
+  static int compareCodePoints(String a, String b) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length() && j < b.length()) {
+      int codePointA = a.codePointAt(i);
+      int codePointB = b.codePointAt(j);
+      if (codePointA != codePointB) {
+        return Integer.compare(codePointA, codePointB);
+      }
+      i += Character.charCount(codePointA);
+      j += Character.charCount(codePointB);
+    }
+    return Boolean.compare(i < a.length(), j < b.length());
+  }
+
+  /**
+   * A regex matching the terms after from, in the order of the terms aggregation: the code
+   * points, as the UTF-8 bytes of the terms sort the same.
+   */
+  static String after(String from, boolean inclusive) {
+    StringBuilder regex = new StringBuilder("(?s)");
+    appendAfter(regex, from.codePoints().toArray(), 0, inclusive);
+    return regex.toString();
+  }
+
+  private static void appendAfter(StringBuilder regex, int[] codePoints, int i,
+      boolean inclusive) {
+    if (i == codePoints.length) {
+      regex.append(inclusive ? ".*" : ".+");
+      return;
+    }
+    int codePoint = codePoints[i];
+    regex.append("(?:");
+    if (codePoint < Character.MAX_CODE_POINT) {
+      regex.append("[\\x{").append(Integer.toHexString(codePoint + 1))
+          .append("}-\\x{10ffff}].*|");
+    }
+    regex.append("\\x{").append(Integer.toHexString(codePoint)).append('}');
+    appendAfter(regex, codePoints, i + 1, inclusive);
+    regex.append(')');
+  }
+
+  private static class Range {
+    // null for the first and last ranges
+    final String from;
+    final boolean fromInclusive;
+    final String to;
+
+    Range(String from, boolean fromInclusive, String to) {
+      this.from = from;
+      this.fromInclusive = fromInclusive;
+      this.to = to;
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private final String[] indices;
+    private final String field;
+    private QueryBuilder query = QueryBuilders.matchAllQuery();
+    private int partitions = 8;
+    private int size = 10000;
+    private int concurrency = 2;
+    private int lookAhead = 4;
+    private boolean singleValued = false;
+    private final List<AbstractAggregationBuilder> subAggregations = new ArrayList<>();
+
+    Builder(Client client, String[] indices, String field) {
+      this.client = client;
+      this.indices = indices;
+      this.field = field;
+    }
+
+    /**
+     * The documents whose terms are returned, all by default.
+     */
+    public Builder setQuery(QueryBuilder query) {
+      this.query = query;
+      return this;
+    }
+
+    /**
+     * Number of ranges the term space is cut into, 8 by default.
+     */
+    public Builder setPartitions(int partitions) {
+      this.partitions = partitions;
+      return this;
+    }
+
+    /**
+     * Largest number of buckets of a page, also its shard_size, 10000 by default.
+     */
+    public Builder setSize(int size) {
+      this.size = size;
+      return this;
+    }
+
+    /**
+     * Number of pages searched at once, 2 by default.
+     */
+    public Builder setConcurrency(int concurrency) {
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * Number of pages received ahead of the one being consumed, 4 by default, at least
+     * concurrency.
+     */
+    public Builder setLookAhead(int lookAhead) {
+      this.lookAhead = lookAhead;
+      return this;
+    }
+
+    /**
+     * Whether every document has at most one term, which makes the include regex useless;
+     * false by default.
+     */
+    public Builder setSingleValued(boolean singleValued) {
+      this.singleValued = singleValued;
+      return this;
+    }
+
+    public Builder addSubAggregation(AbstractAggregationBuilder subAggregation) {
+      subAggregations.add(subAggregation);
+      return this;
+    }
+
+    /**
+     * Samples the terms to cut the ranges, the first pages are searched in the background.
+     */
+    public PartitionedTerms build() {
+      if (partitions < 1 || size < 1 || concurrency < 1) {
+        throw new IllegalArgumentException("partitions, size and concurrency must be >= 1");
+      }
+      if (lookAhead < concurrency) {
+        throw new IllegalArgumentException("lookAhead must be >= concurrency");
+      }
+      return new PartitionedTerms(client, indices, query, field, partitions, size,
+          concurrency, lookAhead, singleValued, subAggregations);
+    }
+  }
+}
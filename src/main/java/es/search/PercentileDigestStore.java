@@ -0,0 +1,622 @@
+package es.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogram;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.metrics.percentiles.tdigest.TDigestState;
+import org.elasticsearch.search.aggregations.support.format.ValueFormatterStreams;
+
+import es.scroll.ScrollIterator;
+
+/**
+ * Percentiles and percentile ranks of a field over rolling windows, e.g. the latencies of the
+ * last hour, day and week every minute, answered by merging t-digests kept on the client instead
+ * of running the percentiles aggregation over the whole window each time.
+ *
+ * refresh() searches the slots closed since the last refresh, 1m by default, with a
+ * date_histogram and a percentiles aggregation under it, and keeps the t-digest of every slot,
+ * merged as well into the digests of its hour and day. A window is then the merge of the day
+ * digests it covers in full, the hour digests of the hours left, and the slot digests of the
+ * edges: 7 days take about 90 merges rather than 10080. The slot, hour and day digests are kept
+ * for their retention, 1d, 8d and 32d by default; a window starting further back than the slots
+ * are kept starts at the hour, further back than the hours at the day. The first refresh
+ * searches the whole retention, older parts directly by hour and by day.
+ *
+ * The digests are the ones of the aggregation, with its compression, so a merged window has the
+ * accuracy of the aggregation over it, and percentileRank() is its percentile_ranks. With a side
+ * index, refresh() also indexes the digests it changed there, and a new store reads them back
+ * on its first refresh rather than searching the retention again.
+ */
+public class PercentileDigestStore implements Closeable {
+
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+  // buckets per date_histogram of a refresh
+  private static final int MAX_BUCKETS = 1440;
+  private static final String DIGEST_TYPE = "digest";
+  private static final String STATE_ID = "collected";
+
+  private final Client client;
+  private final String index;
+  private final QueryBuilder query;
+  private final String timestampField;
+  private final String valueField;
+  private final double compression;
+  private final long settleMillis;
+  private final String sideIndex;
+  // finest first
+  private final Level[] levels;
+  private final ScheduledExecutorService timer;
+
+  private volatile long collectedUntil = Long.MIN_VALUE;
+  private final AtomicLong refreshes = new AtomicLong();
+  private final AtomicLong collectedSlots = new AtomicLong();
+  private final AtomicLong failedRefreshes = new AtomicLong();
+  private volatile RuntimeException lastRefreshFailure;
+
+  private PercentileDigestStore(Client client, String index, QueryBuilder query,
+      String timestampField, String valueField, double compression, TimeValue slot,
+      TimeValue settleTime, TimeValue[] retentions, String sideIndex, TimeValue refreshInterval) {
+    this.client = client;
+    this.index = index;
+    this.query = query;
+    this.timestampField = timestampField;
+    this.valueField = valueField;
+    this.compression = compression;
+    this.settleMillis = settleTime.millis();
+    this.sideIndex = sideIndex;
+    this.levels = new Level[] {new Level(slot.millis(), retentions[0].millis()),
+        new Level(HOUR, retentions[1].millis()), new Level(DAY, retentions[2].millis())};
+    if (refreshInterval == null) {
+      this.timer = null;
+    } else {
+      this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "percentile-digests");
+        t.setDaemon(true);
+        return t;
+      });
+      timer.scheduleWithFixedDelay(() -> {
+        try {
+          refresh();
+        } catch (RuntimeException e) {
+          // the next refresh searches the same slots again; thrown out of the task, it would
+          // cancel the refreshes for good while window() kept answering from old digests
+          failedRefreshes.incrementAndGet();
+          lastRefreshFailure = e;
+        }
+      }, 0, refreshInterval.millis(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public static Builder builder(Client client, String index, String timestampField,
+      String valueField) {
+    return new Builder(client, index, timestampField, valueField);
+  }
+
+  /**
+   * Searches the slots closed since the last refresh, and returns how many, the older ones
+   * searched by hour and by day included.
+   */
+  public synchronized int refresh() {
+    long closedUntil = alignDown(System.currentTimeMillis() - settleMillis, levels[0].size);
+    if (collectedUntil == Long.MIN_VALUE && sideIndex != null) {
+      restore();
+    }
+    Level coarsest = levels[levels.length - 1];
+    long start = collectedUntil == Long.MIN_VALUE
+        ? alignDown(closedUntil - coarsest.retention, coarsest.size) : collectedUntil;
+    if (start >= closedUntil) {
+      return 0;
+    }
+
+    Set<Digest> changed = new HashSet<>();
+    int slots = 0;
+    // older parts of the first refresh by day and by hour, what the slots still keep by slot
+    for (int i = levels.length - 1; i >= 0; i--) {
+      long end = i == 0 ? closedUntil
+          : Math.max(start, alignDown(closedUntil - levels[i - 1].retention, levels[i].size));
+      if (end > start && start % levels[i].size != 0) {
+        // after a gap, the hour or day of start already holds the slots before it: collecting
+        // it whole would replace them, so its rest goes by slot and is merged into it
+        long boundary = Math.min(end, alignDown(start, levels[i].size) + levels[i].size);
+        collect(0, start, boundary, changed);
+        slots += (boundary - start) / levels[0].size;
+        start = boundary;
+      }
+      if (end > start) {
+        collect(i, start, end, changed);
+        slots += (end - start) / levels[0].size;
+        start = end;
+      }
+    }
+    collectedUntil = closedUntil;
+    for (Level level : levels) {
+      level.digests.headMap(closedUntil - level.retention - level.size).clear();
+    }
+    if (sideIndex != null) {
+      persist(changed);
+    }
+    refreshes.incrementAndGet();
+    collectedSlots.addAndGet(slots);
+    return slots;
+  }
+
+  /**
+   * The window of the given length ending with the last slot collected.
+   */
+  public Window window(TimeValue length) {
+    long until = collectedUntil;
+    return window(until - length.millis(), until);
+  }
+
+  /**
+   * The window from, inclusive, to to, exclusive, in epoch milliseconds, starting at the
+   * beginning of the slot, hour or day of from and ending with the last slot collected before
+   * to.
+   */
+  public Window window(long from, long to) {
+    long until = collectedUntil;
+    if (until == Long.MIN_VALUE) {
+      throw new ElasticsearchIllegalArgumentException("No slot collected yet, call refresh()");
+    }
+    to = alignDown(Math.min(to, until), levels[0].size);
+    for (Level level : levels) {
+      if (from >= until - level.retention || level == levels[levels.length - 1]) {
+        from = alignDown(Math.max(from, until - level.retention), level.size);
+        break;
+      }
+    }
+
+    TDigestState merged = new TDigestState(compression);
+    int merges = 0;
+    long t = from;
+    while (t < to) {
+      Level cover = null;
+      for (int i = levels.length - 1; i >= 0; i--) {
+        Level level = levels[i];
+        if (t % level.size == 0 && t + level.size <= to && t >= until - level.retention) {
+          cover = level;
+          break;
+        }
+      }
+      if (cover == null) {
+        // a short window older than the slots: the interval of t of the finest level kept
+        for (Level level : levels) {
+          if (t >= until - level.retention || level == levels[levels.length - 1]) {
+            cover = level;
+            break;
+          }
+        }
+        t = alignDown(t, cover.size);
+      }
+      TDigestState digest = cover.digests.get(t);
+      if (digest != null) {
+        synchronized (digest) {
+          merged.add(digest);
+        }
+        merges++;
+      }
+      t += cover.size;
+    }
+    return new Window(from, to, merged, merges);
+  }
+
+  /**
+   * End of the last slot collected, in epoch milliseconds, or Long.MIN_VALUE before the first
+   * refresh.
+   */
+  public long getCollectedUntil() {
+    return collectedUntil;
+  }
+
+  public long getRefreshes() {
+    return refreshes.get();
+  }
+
+  public long getCollectedSlots() {
+    return collectedSlots.get();
+  }
+
+  /**
+   * Background refreshes that failed; getCollectedUntil() tells how far behind the store is.
+   */
+  public long getFailedRefreshes() {
+    return failedRefreshes.get();
+  }
+
+  /**
+   * The failure of the last background refresh that failed, null if none did.
+   */
+  public RuntimeException getLastRefreshFailure() {
+    return lastRefreshFailure;
+  }
+
+  /**
+   * Number of digests kept, slots, hours and days.
+   */
+  public int getDigests() {
+    int digests = 0;
+    for (Level level : levels) {
+      digests += level.digests.size();
+    }
+    return digests;
+  }
+
+  /**
+   * Serialized size of the digests kept.
+   */
+  public long getSizeInBytes() {
+    long bytes = 0;
+    for (Level level : levels) {
+      for (TDigestState digest : level.digests.values()) {
+        synchronized (digest) {
+          bytes += digest.smallByteSize();
+        }
+      }
+    }
+    return bytes;
+  }
+
+  @Override
+  public void close() {
+    if (timer != null) {
+      timer.shutdownNow();
+    }
+  }
+
+  /**
+   * Percentiles over a window, as the percentiles and percentile_ranks aggregations over its
+   * documents would compute them.
+   */
+  public static class Window {
+    private final long from;
+    private final long to;
+    private final TDigestState digest;
+    private final int merges;
+
+    Window(long from, long to, TDigestState digest, int merges) {
+      this.from = from;
+      this.to = to;
+      this.digest = digest;
+      this.merges = merges;
+    }
+
+    public long getFrom() {
+      return from;
+    }
+
+    public long getTo() {
+      return to;
+    }
+
+    public long getCount() {
+      return digest.size();
+    }
+
+    /**
+     * Number of digests merged.
+     */
+    public int getMerges() {
+      return merges;
+    }
+
+    /**
+     * The value below which percent of the values are, NaN for an empty window.
+     */
+    public double percentile(double percent) {
+      return digest.quantile(percent / 100);
+    }
+
+    /**
+     * The percentage of the values below value, NaN for an empty window.
+     */
+    public double percentileRank(double value) {
+      return digest.cdf(value) * 100;
+    }
+  }
+
+  /**
+   * Adds the digests of the buckets of level between start and end to that level and the
+   * coarser ones.
+   */
+  private void collect(int level, long start, long end, Set<Digest> changed) {
+    long size = levels[level].size;
+    for (long from = start; from < end; from += MAX_BUCKETS * size) {
+      long to = Math.min(end, from + MAX_BUCKETS * size);
+      SearchResponse response = client.prepareSearch(index).setSearchType(SearchType.COUNT)
+          .setQuery(QueryBuilders.filteredQuery(query,
+              FilterBuilders.rangeFilter(timestampField).gte(from).lt(to)))
+          .addAggregation(AggregationBuilders.dateHistogram("slots").field(timestampField)
+              .interval(DateHistogram.Interval.seconds((int) (size / 1000)))
+              .subAggregation(AggregationBuilders.percentiles("values").field(valueField)
+                  .compression(compression))).get();
+      if (response.getFailedShards() > 0) {
+        // a partial slot would be kept for good
+        throw new ElasticsearchException("Failed to collect the digests on "
+            + response.getFailedShards() + " shards");
+      }
+      Histogram slots = response.getAggregations().get("slots");
+      for (Histogram.Bucket bucket : slots.getBuckets()) {
+        TDigestState digest = read(bucket.getAggregations().get("values"));
+        long key = bucket.getKeyAsNumber().longValue();
+        for (int i = level; i < levels.length; i++) {
+          Level coarser = levels[i];
+          long coarserKey = alignDown(key, coarser.size);
+          if (i == level) {
+            coarser.digests.put(coarserKey, digest);
+          } else {
+            TDigestState merged = coarser.digests.computeIfAbsent(coarserKey,
+                k -> new TDigestState(compression));
+            synchronized (merged) {
+              merged.add(digest);
+            }
+          }
+          changed.add(new Digest(i, coarserKey));
+        }
+      }
+    }
+  }
+
+  /**
+   * The digest of a percentiles aggregation, read back from its wire format as it is not
+   * public.
+   */
+  private static TDigestState read(InternalAggregation percentiles) {
+    try {
+      BytesStreamOutput out = new BytesStreamOutput();
+      percentiles.writeTo(out);
+      BytesStreamInput in = new BytesStreamInput(out.bytes());
+      in.readString();
+      ValueFormatterStreams.readOptional(in);
+      int keys = in.readInt();
+      for (int i = 0; i < keys; i++) {
+        in.readDouble();
+      }
+      return TDigestState.read(in);
+    } catch (IOException e) {
+      throw new ElasticsearchException("Failed to read the digest of [" + percentiles.getName()
+          + "]", e);
+    }
+  }
+
+  private void persist(Set<Digest> changed) {
+    try {
+      if (!client.admin().indices().prepareExists(sideIndex).get().isExists()) {
+        client.admin().indices().prepareCreate(sideIndex).addMapping(DIGEST_TYPE,
+            XContentFactory.jsonBuilder().startObject().startObject(DIGEST_TYPE)
+                .startObject("properties")
+                .startObject("digest").field("type", "binary").endObject()
+                .endObject().endObject().endObject()).get();
+      }
+      BulkRequestBuilder bulk = client.prepareBulk();
+      for (Digest changedDigest : changed) {
+        Level level = levels[changedDigest.level];
+        TDigestState digest = level.digests.get(changedDigest.start);
+        if (digest == null) {
+          continue;
+        }
+        BytesStreamOutput out = new BytesStreamOutput();
+        synchronized (digest) {
+          TDigestState.write(digest, out);
+        }
+        bulk.add(client.prepareIndex(sideIndex, DIGEST_TYPE,
+            level.size + "-" + changedDigest.start).setSource(XContentFactory.jsonBuilder()
+            .startObject().field("level", level.size).field("start", changedDigest.start)
+            .field("digest", out.bytes().toBytes()).endObject()));
+      }
+      bulk.add(client.prepareIndex(sideIndex, DIGEST_TYPE, STATE_ID).setSource(
+          XContentFactory.jsonBuilder().startObject().field("until", collectedUntil)
+              .endObject()));
+      // visible to a store restoring right after
+      BulkResponse response = bulk.setRefresh(true).get();
+      if (response.hasFailures()) {
+        throw new ElasticsearchException("Failed to persist the digests: "
+            + response.buildFailureMessage());
+      }
+    } catch (IOException e) {
+      throw new ElasticsearchException("Failed to persist the digests", e);
+    }
+  }
+
+  private void restore() {
+    if (!client.admin().indices().prepareExists(sideIndex).get().isExists()) {
+      return;
+    }
+    long until = Long.MIN_VALUE;
+    List<Object[]> digests = new ArrayList<>();
+    try (ScrollIterator hits = ScrollIterator.builder(client,
+        client.prepareSearch(sideIndex).setTypes(DIGEST_TYPE).setSize(500)).build()) {
+      while (hits.hasNext()) {
+        SearchHit hit = hits.next();
+        Map<String, Object> source = hit.getSource();
+        if (STATE_ID.equals(hit.getId())) {
+          until = ((Number) source.get("until")).longValue();
+        } else {
+          digests.add(new Object[] {((Number) source.get("level")).longValue(),
+              ((Number) source.get("start")).longValue(), source.get("digest")});
+        }
+      }
+    }
+    if (until == Long.MIN_VALUE) {
+      return;
+    }
+    for (Object[] digest : digests) {
+      for (Level level : levels) {
+        if (level.size == (Long) digest[0]) {
+          level.digests.put((Long) digest[1],
+              decode(Base64.getDecoder().decode((String) digest[2])));
+        }
+      }
+    }
+    collectedUntil = until;
+  }
+
+  private static TDigestState decode(byte[] bytes) {
+    try {
+      return TDigestState.read(new BytesStreamInput(bytes, false));
+    } catch (IOException e) {
+      throw new ElasticsearchException("Failed to read a persisted digest", e);
+    }
+  }
+
+  private static long alignDown(long millis, long size) {
+    return Math.floorDiv(millis, size) * size;
+  }
+
+  private static class Level {
+    final long size;
+    final long retention;
+    final ConcurrentNavigableMap<Long, TDigestState> digests = new ConcurrentSkipListMap<>();
+
+    Level(long size, long retention) {
+      this.size = size;
+      this.retention = retention;
+    }
+  }
+
+  private static class Digest {
+    final int level;
+    final long start;
+
+    Digest(int level, long start) {
+      this.level = level;
+      this.start = start;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Digest && ((Digest) o).level == level && ((Digest) o).start == start;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * level + Long.hashCode(start);
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private final String index;
+    private final String timestampField;
+    private final String valueField;
+    private QueryBuilder query = QueryBuilders.matchAllQuery();
+    private double compression = 100;
+    private TimeValue slot = TimeValue.timeValueMinutes(1);
+    private TimeValue settleTime = TimeValue.timeValueMinutes(1);
+    private TimeValue[] retentions = {TimeValue.timeValueHours(24), TimeValue.timeValueHours(
+        8 * 24), TimeValue.timeValueHours(32 * 24)};
+    private String sideIndex;
+    private TimeValue refreshInterval;
+
+    Builder(Client client, String index, String timestampField, String valueField) {
+      this.client = client;
+      this.index = index;
+      this.timestampField = timestampField;
+      this.valueField = valueField;
+    }
+
+    /**
+     * The documents whose values are counted, all by default.
+     */
+    public Builder setQuery(QueryBuilder query) {
+      this.query = query;
+      return this;
+    }
+
+    /**
+     * Compression of the digests, 100 by default as in the aggregation.
+     */
+    public Builder setCompression(double compression) {
+      this.compression = compression;
+      return this;
+    }
+
+    /**
+     * Finest interval of the digests, 1m by default; a whole number of seconds dividing an
+     * hour.
+     */
+    public Builder setSlot(TimeValue slot) {
+      this.slot = slot;
+      return this;
+    }
+
+    /**
+     * How long after its end a slot may still get documents, 1m by default: it is collected
+     * once this is over.
+     */
+    public Builder setSettleTime(TimeValue settleTime) {
+      this.settleTime = settleTime;
+      return this;
+    }
+
+    /**
+     * How long the slot, hour and day digests are kept, 1d, 8d and 32d by default.
+     */
+    public Builder setRetentions(TimeValue slots, TimeValue hours, TimeValue days) {
+      this.retentions = new TimeValue[] {slots, hours, days};
+      return this;
+    }
+
+    /**
+     * Index the digests are persisted to and restored from, none by default.
+     */
+    public Builder setSideIndex(String sideIndex) {
+      this.sideIndex = sideIndex;
+      return this;
+    }
+
+    /**
+     * Refreshes in the background at this interval, from build() on, none by default.
+     */
+    public Builder setRefreshInterval(TimeValue refreshInterval) {
+      this.refreshInterval = refreshInterval;
+      return this;
+    }
+
+    public PercentileDigestStore build() {
+      long slotMillis = slot.millis();
+      if (slotMillis < 1000 || slotMillis % 1000 != 0 || HOUR % slotMillis != 0) {
+        throw new IllegalArgumentException("slot must be a whole number of seconds dividing "
+            + "an hour");
+      }
+      if (retentions[0].millis() > retentions[1].millis()
+          || retentions[1].millis() > retentions[2].millis()) {
+        throw new IllegalArgumentException("retentions must grow from slots to days");
+      }
+      return new PercentileDigestStore(client, index, query, timestampField, valueField,
+          compression, slot, settleTime, retentions, sideIndex, refreshInterval);
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package es.search;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+/**
+ * Picks the search type of a search from what it asks for and the indices it runs on, instead of
+ * copying DFS_QUERY_THEN_FETCH everywhere: the DFS phase is one more round trip to every shard,
+ * to gather term statistics that only matter when hits are sorted by score and the shards are
+ * too small for their local statistics to be representative.
+ *
+ * <ul>
+ * <li>no hits asked for (size 0): COUNT, no fetch phase at all</li>
+ * <li>hits not sorted by score: QUERY_THEN_FETCH</li>
+ * <li>scored hits on a single shard, or on shards of at least dfsMaxDocsPerShard documents:
+ * QUERY_THEN_FETCH</li>
+ * <li>scored hits on small shards: the requested type, or DFS_QUERY_THEN_FETCH when accurate
+ * scores are preferred</li>
+ * </ul>
+ *
+ * Outside debug mode explain is also turned off, it makes every shard compute and send an
+ * explanation for each of its hits. Scrolls, scans and QUERY_AND_FETCH searches are left as they
+ * are. The shard and document counts of the indices are read from the cluster and cached for
+ * profileTtl.
+ */
+public class SearchTypeAdvisor {
+
+  private final Client client;
+  private final boolean debug;
+  private final long dfsMaxDocsPerShard;
+  private final boolean preferAccurateScores;
+  private final Cache<String, Profile> profiles;
+
+  private final AtomicLong advised = new AtomicLong();
+  private final AtomicLong dfsAvoided = new AtomicLong();
+  private final AtomicLong counts = new AtomicLong();
+  private final AtomicLong explainStripped = new AtomicLong();
+
+  private SearchTypeAdvisor(Client client, boolean debug, long dfsMaxDocsPerShard,
+      boolean preferAccurateScores, TimeValue profileTtl) {
+    this.client = client;
+    this.debug = debug;
+    this.dfsMaxDocsPerShard = dfsMaxDocsPerShard;
+    this.preferAccurateScores = preferAccurateScores;
+    this.profiles =
+        CacheBuilder.newBuilder().expireAfterWrite(profileTtl.nanos(), TimeUnit.NANOSECONDS)
+            .build();
+  }
+
+  public static Builder builder(Client client) {
+    return new Builder(client);
+  }
+
+  /**
+   * Sets the search type of the search, and turns explain off outside debug mode.
+   *
+   * @return the search type set
+   */
+  public SearchType advise(SearchRequestBuilder search) {
+    SearchRequest request = search.request();
+    SearchType requested = request.searchType();
+    if (request.scroll() != null || requested == SearchType.SCAN
+        || requested == SearchType.QUERY_AND_FETCH
+        || requested == SearchType.DFS_QUERY_AND_FETCH) {
+      return requested;
+    }
+    // a source set as bytes is sent as it is unless the builder is used, which would then
+    // replace it: internalBuilder() creates an empty one, only harmless without bytes
+    BytesReference sourceBytes = request.source();
+    SearchSourceBuilder sourceBuilder = sourceBytes == null ? search.internalBuilder() : null;
+    Map<String, Object> source =
+        parse(sourceBuilder != null ? sourceBuilder.buildAsBytes() : sourceBytes);
+    Map<String, Object> extraSource = parse(request.extraSource());
+
+    SearchType advice = advise(request, requested, source, extraSource);
+    advised.incrementAndGet();
+    if (advice == SearchType.COUNT && requested != SearchType.COUNT) {
+      counts.incrementAndGet();
+    }
+    if (requested == SearchType.DFS_QUERY_THEN_FETCH && advice != requested) {
+      dfsAvoided.incrementAndGet();
+    }
+    search.setSearchType(advice);
+
+    if (!debug && (isTrue(source.get("explain")) || isTrue(extraSource.get("explain")))) {
+      if (sourceBuilder != null) {
+        search.setExplain(false);
+      }
+      if (sourceBuilder == null || extraSource.containsKey("explain")) {
+        // the extra source is parsed after the source, keep the rest of it
+        Map<String, Object> merged = new LinkedHashMap<>(extraSource);
+        merged.put("explain", false);
+        request.extraSource(merged);
+      }
+      explainStripped.incrementAndGet();
+    }
+    return advice;
+  }
+
+  private SearchType advise(SearchRequest request, SearchType requested,
+      Map<String, Object> source, Map<String, Object> extraSource) {
+    Object size = extraSource.containsKey("size") ? extraSource.get("size") : source.get("size");
+    if (size != null && isZero(size)) {
+      return SearchType.COUNT;
+    }
+    if (requested == SearchType.COUNT) {
+      return requested;
+    }
+    if (!scored(source) && !scored(extraSource)) {
+      return SearchType.QUERY_THEN_FETCH;
+    }
+    Profile profile = profile(request);
+    if (profile.shards <= 1 || profile.docs / profile.shards >= dfsMaxDocsPerShard) {
+      return SearchType.QUERY_THEN_FETCH;
+    }
+    return preferAccurateScores ? SearchType.DFS_QUERY_THEN_FETCH : requested;
+  }
+
+  /**
+   * Whether the hits of the source depend on their score.
+   */
+  private static boolean scored(Map<String, Object> source) {
+    if (source.isEmpty()) {
+      return false;
+    }
+    Object sort = source.get("sort");
+    return sort == null || String.valueOf(sort).contains("_score")
+        || isTrue(source.get("track_scores")) || source.containsKey("min_score");
+  }
+
+  private Profile profile(SearchRequest request) {
+    String[] indices = request.indices().clone();
+    Arrays.sort(indices);
+    try {
+      return profiles.get(Arrays.toString(indices), () -> load(request));
+    } catch (ExecutionException e) {
+      throw new ElasticsearchException("Failed to read the shards of " + Arrays.toString(indices),
+          e.getCause());
+    }
+  }
+
+  private Profile load(SearchRequest request) {
+    String[] indices = request.indices();
+    MetaData metaData =
+        client.admin().cluster().prepareState().setRoutingTable(false).setNodes(false)
+            .setBlocks(false).get().getState().metaData();
+    int shards = 0;
+    for (String index : metaData.concreteIndices(request.indicesOptions(), indices)) {
+      shards += metaData.index(index).numberOfShards();
+    }
+    long docs =
+        client.admin().indices().prepareStats(indices).clear().setDocs(true).get()
+            .getPrimaries().getDocs().getCount();
+    return new Profile(shards, docs);
+  }
+
+  private static Map<String, Object> parse(BytesReference source) {
+    if (source == null || source.length() == 0) {
+      return Collections.emptyMap();
+    }
+    // ordered, a sort object written back to the extra source keeps its priorities
+    return XContentHelper.convertToMap(source, true).v2();
+  }
+
+  private static boolean isTrue(Object value) {
+    return Boolean.TRUE.equals(value) || "true".equals(value);
+  }
+
+  /**
+   * Whether a size read from a source is 0; sources may give it as a string, e.g. "0".
+   */
+  private static boolean isZero(Object size) {
+    try {
+      return XContentMapValues.nodeIntegerValue(size) == 0;
+    } catch (NumberFormatException e) {
+      // left to the search to reject
+      return false;
+    }
+  }
+
+  public long getAdvised() {
+    return advised.get();
+  }
+
+  /**
+   * Searches asked as DFS_QUERY_THEN_FETCH sent without the DFS phase.
+   */
+  public long getDfsAvoided() {
+    return dfsAvoided.get();
+  }
+
+  /**
+   * Searches turned into COUNT because they did not ask for hits.
+   */
+  public long getCounts() {
+    return counts.get();
+  }
+
+  public long getExplainStripped() {
+    return explainStripped.get();
+  }
+
+  /**
+   * Forgets the shard and document counts read, e.g. after a large bulk load.
+   */
+  public void invalidateProfiles() {
+    profiles.invalidateAll();
+  }
+
+  private static class Profile {
+    final int shards;
+    final long docs;
+
+    Profile(int shards, long docs) {
+      this.shards = shards;
+      this.docs = docs;
+    }
+  }
+
+  public static class Builder {
+
+    private final Client client;
+    private boolean debug = false;
+    private long dfsMaxDocsPerShard = 10000;
+    private boolean preferAccurateScores = false;
+    private TimeValue profileTtl = TimeValue.timeValueMinutes(1);
+
+    Builder(Client client) {
+      this.client = client;
+    }
+
+    /**
+     * Keeps explain when asked for, false by default.
+     */
+    public Builder setDebug(boolean debug) {
+      this.debug = debug;
+      return this;
+    }
+
+    /**
+     * Documents per shard from which the local term statistics are trusted and DFS is skipped,
+     * 10000 by default.
+     */
+    public Builder setDfsMaxDocsPerShard(long dfsMaxDocsPerShard) {
+      this.dfsMaxDocsPerShard = dfsMaxDocsPerShard;
+      return this;
+    }
+
+    /**
+     * Uses DFS_QUERY_THEN_FETCH for scored searches on small shards even when not asked for,
+     * false by default.
+     */
+    public Builder setPreferAccurateScores(boolean preferAccurateScores) {
+      this.preferAccurateScores = preferAccurateScores;
+      return this;
+    }
+
+    /**
+     * How long the shard and document counts of indices are cached, 1m by default.
+     */
+    public Builder setProfileTtl(TimeValue profileTtl) {
+      this.profileTtl = profileTtl;
+      return this;
+    }
+
+    public SearchTypeAdvisor build() {
+      return new SearchTypeAdvisor(client, debug, dfsMaxDocsPerShard, preferAccurateScores,
+          profileTtl);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package es.xcontent;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * Serializes documents, mappings and queries through a per-thread BytesStreamOutput that is
+ * reset and reused, instead of the 16KB page every XContentFactory.jsonBuilder() allocates.
+ *
+ * The builder handed to a {@link SourceWriter} is only valid during the call: the result is
+ * copied into an exactly sized BytesArray owned by the caller, so it can be given to an async
+ * bulk while the thread goes on with the next document. A nested serialize() on the same thread
+ * falls back to a fresh buffer.
+ */
+public class XContentBuilderPool {
+
+  private static final XContentBuilderPool JSON = new XContentBuilderPool(XContentType.JSON);
+  private static final XContentBuilderPool SMILE = new XContentBuilderPool(XContentType.SMILE);
+
+  private final XContent xContent;
+  private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+  private XContentBuilderPool(XContentType type) {
+    this.xContent = XContentFactory.xContent(type);
+  }
+
+  public static XContentBuilderPool json() {
+    return JSON;
+  }
+
+  public static XContentBuilderPool smile() {
+    return SMILE;
+  }
+
+  /**
+   * Writes the content with a recycled builder.
+   */
+  public interface SourceWriter {
+    void write(XContentBuilder builder) throws IOException;
+  }
+
+  public BytesArray serialize(SourceWriter writer) throws IOException {
+    Buffer buffer = buffers.get();
+    if (buffer.inUse) {
+      // nested call, do not clobber the outer document
+      XContentBuilder builder = new XContentBuilder(xContent, new BytesStreamOutput());
+      writer.write(builder);
+      return new BytesArray(builder.bytes().toBytes());
+    }
+
+    buffer.inUse = true;
+    try {
+      buffer.output.reset();
+      XContentBuilder builder = new XContentBuilder(xContent, buffer.output);
+      writer.write(builder);
+      return new BytesArray(builder.bytes().toBytes());
+    } finally {
+      buffer.inUse = false;
+    }
+  }
+
+  /**
+   * Serializes a query, a filter or any other ToXContent, e.g. for setExtraSource.
+   */
+  public BytesArray serialize(ToXContent content) throws IOException {
+    return serialize(builder -> content.toXContent(builder, ToXContent.EMPTY_PARAMS));
+  }
+
+  private static class Buffer {
+    // reset() keeps the first page and releases the rest
+    final BytesStreamOutput output = new BytesStreamOutput();
+    boolean inUse = false;
+  }
+}
@@ -0,0 +1,75 @@
+package es;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Same as ESTestBase, but starts an embedded local data node instead of joining an existing
+ * cluster, so that benchmarks can run without any setup.
+ */
+public class ESLocalNodeTestBase {
+
+  protected static Node node;
+  protected static Client client;
+
+  protected static String indexName = "ibench";
+  protected static String typeName = "tbench";
+
+  @BeforeClass
+  public static void start() throws IOException {
+    startNode(ImmutableSettings.settingsBuilder());
+  }
+
+  /**
+   * Subclasses needing other node settings hide start() and call this with their settings
+   */
+  protected static void startNode(ImmutableSettings.Builder settings) throws IOException {
+    File dataDir = Files.createTempDirectory("es-local").toFile();
+
+    node =
+        NodeBuilder
+            .nodeBuilder()
+            .local(true)
+            .data(true)
+            .clusterName("local-bench-" + System.nanoTime())
+            .settings(
+                settings.put("path.data", dataDir.getAbsolutePath()).put("http.enabled", false)
+                    .put("index.number_of_shards", 1).put("index.number_of_replicas", 0))
+            .node();
+    client = node.client();
+
+    client.admin().cluster().prepareHealth().setWaitForYellowStatus()
+        .setTimeout(TimeValue.timeValueSeconds(30)).execute().actionGet();
+  }
+
+  @AfterClass
+  public static void close() {
+    node.close();
+  }
+
+  protected void recreateIndex(String index, int shards) {
+    if (client.admin().indices().prepareExists(index).execute().actionGet().isExists()) {
+      client.admin().indices().prepareDelete(index).execute().actionGet();
+    }
+
+    client.admin().indices().prepareCreate(index)
+        .setSettings(ImmutableSettings.settingsBuilder().put("number_of_shards", shards)
+            .put("number_of_replicas", 0)).execute().actionGet();
+    client.admin().cluster().prepareHealth(index).setWaitForGreenStatus().execute().actionGet();
+  }
+
+  protected long count(String index) {
+    client.admin().indices().prepareRefresh(index).execute().actionGet();
+    return client.prepareCount(index).execute().actionGet().getCount();
+  }
+
+}
@@ -2,22 +2,26 @@ package es;
 
 import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.client.Client;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.node.NodeBuilder;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 
+import es.bulk.BulkIngester;
+import es.bulk.BulkRetryHandler;
+import es.xcontent.XContentBuilderPool;
+
 public class ESTestBase {
 
   protected static Node node;
   protected static Client client;
+  // resubmits rejected bulk items, permanent failures are printed by the dead-letter sink
+  protected static BulkRetryHandler bulkRetryHandler;
 
   protected static String indexName = "itest";
   protected static String typeName = "ttest";
@@ -30,37 +34,41 @@ public class ESTestBase {
   public static void start() {
     node = NodeBuilder.nodeBuilder().client(true).node();
     client = node.client();
+    bulkRetryHandler = BulkRetryHandler.builder().build();
   }
 
   @AfterClass
   public static void close() {
+    bulkRetryHandler.close();
     node.close();
   }
 
-  protected void prepareSearchData() throws IOException {
-    BulkRequestBuilder bulkRequest = client.prepareBulk();
+  protected void prepareSearchData() throws IOException, InterruptedException {
+    BulkIngester ingester = BulkIngester.builder(client).setRetryHandler(bulkRetryHandler).build();
 
-    // prepare json builder
-    XContentBuilder builder1 =
-        XContentFactory.jsonBuilder().startObject().field("user", "destiny1020")
-            .field("postDate", new Date()).field("message", "Try ES !").field("age", 20)
-            .endObject();
+    // prepare json source with the recycled per-thread buffer, the bytes are our own copy
+    BytesReference source1 =
+        XContentBuilderPool.json().serialize(
+            builder -> builder.startObject().field("user", "destiny1020")
+                .field("postDate", new Date()).field("message", "Try ES !").field("age", 20)
+                .endObject());
 
-    XContentBuilder builder2 =
-        XContentFactory.jsonBuilder().startObject().field("user", "maruko0101")
-            .field("postDate", new Date()).field("message", "Try ES Too !").field("age", 10)
-            .endObject();
+    BytesReference source2 =
+        XContentBuilderPool.json().serialize(
+            builder -> builder.startObject().field("user", "maruko0101")
+                .field("postDate", new Date()).field("message", "Try ES Too !").field("age", 10)
+                .endObject());
 
     // prepare index request
-    IndexRequestBuilder irb1 = client.prepareIndex(indexName, typeName, "1").setSource(builder1);
-    IndexRequestBuilder irb2 = client.prepareIndex(indexName, typeName, "2").setSource(builder2);
+    IndexRequestBuilder irb1 = client.prepareIndex(indexName, typeName, "1").setSource(source1);
+    IndexRequestBuilder irb2 = client.prepareIndex(indexName, typeName, "2").setSource(source2);
 
-    bulkRequest.add(irb1);
-    bulkRequest.add(irb2);
+    ingester.add(irb1.request());
+    ingester.add(irb2.request());
 
-    BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-    if (bulkResponse.hasFailures()) {
-      // process failures by iterating through each bulk response item
+    // flush and wait for the in-flight bulks
+    ingester.awaitClose(1, TimeUnit.MINUTES);
+    if (ingester.stats().getFailedActions() > 0 || ingester.stats().getFailedBulks() > 0) {
       System.err.println("Has failures");
     } else {
       System.out.println("Bulk OK !");
@@ -0,0 +1,148 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.avg.Avg;
+import org.elasticsearch.search.aggregations.metrics.stats.extended.ExtendedStats;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.search.AggregationColumns;
+
+/**
+ * Turning a makes > models terms tree with an avg and an extended_stats per model, 20k leaf
+ * buckets, into chart data: walking the buckets as FilterAndAggregationExamples does, into
+ * arrays or into rows of maps, against AggregationColumns, in ns and bytes allocated per bucket.
+ * Every read is of a fresh response, as the sub-aggregation maps are cached on the buckets.
+ */
+public class AggregationColumnsBenchmark extends ESLocalNodeTestBase {
+
+  private static final int MAKES = 50;
+  private static final int MODELS = 400;
+  private static final int DOCS = MAKES * MODELS * 5;
+  private static final int READS = 10;
+
+  @Test
+  public void testWalkVsColumns() throws IOException, InterruptedException {
+    recreateIndex(indexName, 1);
+    client.admin().indices().preparePutMapping(indexName).setType(typeName)
+        .setSource(XContentFactory.jsonBuilder().startObject().startObject(typeName)
+            .startObject("properties")
+            .startObject("make").field("type", "string").field("index", "not_analyzed")
+            .endObject()
+            .startObject("model").field("type", "string").field("index", "not_analyzed")
+            .endObject()
+            .endObject().endObject().endObject()).get();
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      int make = i % MAKES;
+      ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(XContentFactory.jsonBuilder().startObject().field("make", "make" + make)
+              .field("model", "make" + make + "-model" + (i / MAKES) % MODELS)
+              .field("price", 10000 + (i * 37) % 40000).endObject()).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+
+    Function<Aggregations, Long> walkToArrays = aggregations -> {
+      String[] makes = new String[16];
+      String[] models = new String[16];
+      long[] counts = new long[16];
+      double[] avgs = new double[16];
+      double[] stdDeviations = new double[16];
+      int rows = 0;
+      for (Terms.Bucket make : ((Terms) aggregations.get("makes")).getBuckets()) {
+        for (Terms.Bucket model : ((Terms) make.getAggregations().get("models")).getBuckets()) {
+          if (rows == makes.length) {
+            makes = Arrays.copyOf(makes, rows * 2);
+            models = Arrays.copyOf(models, rows * 2);
+            counts = Arrays.copyOf(counts, rows * 2);
+            avgs = Arrays.copyOf(avgs, rows * 2);
+            stdDeviations = Arrays.copyOf(stdDeviations, rows * 2);
+          }
+          makes[rows] = make.getKey();
+          models[rows] = model.getKey();
+          counts[rows] = model.getDocCount();
+          avgs[rows] = ((Avg) model.getAggregations().get("avg_price")).getValue();
+          stdDeviations[rows] =
+              ((ExtendedStats) model.getAggregations().get("price_stats")).getStdDeviation();
+          rows++;
+        }
+      }
+      return (long) rows;
+    };
+    Function<Aggregations, Long> walkToMaps = aggregations -> {
+      List<Map<String, Object>> rows = new ArrayList<>();
+      for (Terms.Bucket make : ((Terms) aggregations.get("makes")).getBuckets()) {
+        for (Terms.Bucket model : ((Terms) make.getAggregations().get("models")).getBuckets()) {
+          Map<String, Object> row = new HashMap<>();
+          row.put("make", make.getKey());
+          row.put("model", model.getKey());
+          row.put("count", model.getDocCount());
+          row.put("avg", ((Avg) model.getAggregations().get("avg_price")).getValue());
+          row.put("std_deviation",
+              ((ExtendedStats) model.getAggregations().get("price_stats")).getStdDeviation());
+          rows.add(row);
+        }
+      }
+      return (long) rows.size();
+    };
+    Function<Aggregations, Long> columns = aggregations -> {
+      AggregationColumns flat = AggregationColumns.of(aggregations);
+      double[] stdDeviations = flat.getDoubles("makes>models>price_stats.std_deviation");
+      return (long) flat.getRows() + (stdDeviations[0] > 0 ? 0 : 1);
+    };
+
+    System.out.println("read\tbuckets\tns/bucket\tbytes/bucket");
+    for (int round = 0; round < 3; round++) {
+      run("walk into arrays", walkToArrays);
+      run("walk into maps", walkToMaps);
+      run("AggregationColumns", columns);
+    }
+
+    AggregationColumns flat = AggregationColumns.of(search().getAggregations());
+    System.out.println("columns: " + flat.getColumns());
+    System.out.println("first row: " + flat.getStrings("makes")[0] + ", "
+        + flat.getStrings("makes>models")[0] + ", " + flat.getLongs("makes>models._count")[0]
+        + ", " + flat.getDoubles("makes>models>avg_price")[0]);
+  }
+
+  private SearchResponse search() {
+    return client.prepareSearch(indexName).setSearchType(SearchType.COUNT)
+        .addAggregation(AggregationBuilders.terms("makes").field("make").size(MAKES)
+            .subAggregation(AggregationBuilders.terms("models").field("model").size(MODELS)
+                .subAggregation(AggregationBuilders.avg("avg_price").field("price"))
+                .subAggregation(AggregationBuilders.extendedStats("price_stats")
+                    .field("price")))).get();
+  }
+
+  private void run(String name, Function<Aggregations, Long> read) {
+    long nanos = 0;
+    long allocated = 0;
+    long buckets = 0;
+    for (int i = 0; i < READS; i++) {
+      Aggregations aggregations = search().getAggregations();
+      AllocationMeter meter = new AllocationMeter();
+      long start = System.nanoTime();
+      buckets += read.apply(aggregations);
+      nanos += System.nanoTime() - start;
+      allocated += meter.allocatedBytes();
+    }
+    System.out.println(String.format("%s\t%d\t%d\t%d", name, buckets / READS, nanos / buckets,
+        allocated / buckets));
+  }
+}
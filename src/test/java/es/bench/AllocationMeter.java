@@ -0,0 +1,19 @@
+package es.bench;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated by the current thread, from the HotSpot ThreadMXBean.
+ */
+class AllocationMeter {
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private final long threadId = Thread.currentThread().getId();
+  private final long start = THREADS.getThreadAllocatedBytes(threadId);
+
+  long allocatedBytes() {
+    return THREADS.getThreadAllocatedBytes(threadId) - start;
+  }
+}
@@ -0,0 +1,65 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+
+/**
+ * Throughput of BulkIngester for different flush sizes and in-flight bulks, to pick the flush
+ * settings from numbers. Run it like any other example class, results go to stdout.
+ */
+public class BulkIngesterBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 100000;
+
+  @Test
+  public void testFlushSizes() throws IOException, InterruptedException {
+    // warm up the node and the JIT
+    run(1000, 1, 20000);
+
+    System.out.println("actions\tinflight\tdocs/s\tMB/s\tproducer waits");
+    for (int actions : new int[] {100, 500, 1000, 5000}) {
+      for (int concurrent : new int[] {0, 1, 2, 4}) {
+        run(actions, concurrent, DOCS);
+      }
+    }
+  }
+
+  private void run(int bulkActions, int concurrentRequests, int docs) throws IOException,
+      InterruptedException {
+    recreateIndex(indexName, 2);
+
+    BulkIngester ingester =
+        BulkIngester.builder(client).setBulkActions(bulkActions)
+            .setBulkSize(new ByteSizeValue(10, ByteSizeUnit.MB))
+            .setFlushInterval(TimeValue.timeValueSeconds(1))
+            .setConcurrentRequests(concurrentRequests).build();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < docs; i++) {
+      ingester.add(client
+          .prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(
+              XContentFactory.jsonBuilder().startObject().field("user", "user" + (i % 100))
+                  .field("age", i % 80).field("message", "Try ES bulk ingestion ! " + i)
+                  .endObject()).request());
+    }
+    ingester.awaitClose(1, TimeUnit.MINUTES);
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    BulkIngester.Stats stats = ingester.stats();
+    if (count(indexName) != docs || stats.getFailedActions() > 0) {
+      System.err.println("Not all documents indexed: " + stats);
+    }
+    System.out.println(String.format("%d\t%d\t%.0f\t%.2f\t%d", bulkActions, concurrentRequests,
+        docs / seconds, stats.getBytes() / seconds / (1024 * 1024), stats.getBlockedProducers()));
+  }
+}
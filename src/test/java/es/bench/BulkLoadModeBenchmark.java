@@ -0,0 +1,126 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.bulk.BulkLoadMode;
+
+/**
+ * Ingest time of cars-like and shakespeare-like documents with the default index settings and
+ * in bulk-load mode, the latter including the restore, refresh, optimize and health wait.
+ */
+public class BulkLoadModeBenchmark extends ESLocalNodeTestBase {
+
+  private static final int CARS = 500000;
+  private static final int SHAKESPEARE = 200000;
+
+  private static final String[] COLORS = {"red", "green", "blue", "white", "black"};
+  private static final String[] MAKES = {"honda", "ford", "toyota", "bmw"};
+
+  @Test
+  public void testSettingsRestoredAfterFailure() {
+    recreateIndex(indexName, 2);
+    try (BulkLoadMode mode = BulkLoadMode.builder(client, indexName).enter()) {
+      System.out.println("during load: refresh_interval " + setting("index.refresh_interval")
+          + ", original " + mode.originalSettings().get(indexName).getAsMap());
+      throw new IllegalStateException("load failed");
+    } catch (IllegalStateException e) {
+      System.out.println("after failed load: refresh_interval "
+          + setting("index.refresh_interval") + ", flush_threshold_size "
+          + setting("index.translog.flush_threshold_size"));
+    }
+  }
+
+  @Test
+  public void testCustomSettingRestored() {
+    recreateIndex(indexName, 2);
+    String key = "index.routing.allocation.total_shards_per_node";
+    try {
+      BulkLoadMode.builder(client, indexName).put(key, "4").enter().close();
+      System.err.println("Setting without a default accepted");
+    } catch (IllegalArgumentException e) {
+      System.out.println("without a default: " + e.getMessage() + ", refresh_interval "
+          + setting("index.refresh_interval"));
+    }
+    try (BulkLoadMode mode = BulkLoadMode.builder(client, indexName).put(key, "4", "-1").enter()) {
+      System.out.println("during load: " + key + " " + setting(key));
+    }
+    System.out.println("after load: " + key + " " + setting(key));
+    if (!"-1".equals(setting(key))) {
+      System.err.println("Custom setting not restored");
+    }
+  }
+
+  @Test
+  public void testCars()throws IOException, InterruptedException {
+    compare("cars", CARS);
+  }
+
+  @Test
+  public void testShakespeare() throws IOException, InterruptedException {
+    compare("shakespeare", SHAKESPEARE);
+  }
+
+  private void compare(String dataset, int docs) throws IOException, InterruptedException {
+    // warm up
+    load(dataset, docs / 4, false);
+
+    System.out.println(dataset + ": mode\tseconds\tdocs/s");
+    for (int round = 0; round < 3; round++) {
+      for (boolean bulkLoadMode : new boolean[] {false, true}) {
+        long start = System.nanoTime();
+        load(dataset, docs, bulkLoadMode);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (count(indexName) != docs) {
+          System.err.println("Not all documents indexed");
+        }
+        System.out.println(String.format("%s\t%.1f\t%.0f", bulkLoadMode ? "bulk-load" : "default",
+            seconds, docs / seconds));
+      }
+    }
+  }
+
+  private void load(String dataset, int docs, boolean bulkLoadMode) throws IOException,
+      InterruptedException {
+    recreateIndex(indexName, 2);
+    BulkLoadMode mode = bulkLoadMode ? BulkLoadMode.builder(client, indexName).enter() : null;
+    try {
+      BulkIngester ingester = BulkIngester.builder(client).setConcurrentRequests(2).build();
+      for (int i = 0; i < docs; i++) {
+        XContentBuilder source = "cars".equals(dataset) ? car(i) : line(i);
+        ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(i))
+            .setSource(source).request());
+      }
+      ingester.awaitClose(5, TimeUnit.MINUTES);
+    } finally {
+      if (mode != null) {
+        mode.close();
+      }
+    }
+  }
+
+  private String setting(String key) {
+    return client.admin().indices().prepareGetSettings(indexName).get()
+        .getSetting(indexName, key);
+  }
+
+  private XContentBuilder car(int i) throws IOException {
+    return XContentFactory.jsonBuilder().startObject().field("price", 10000 + (i % 70) * 1000)
+        .field("color", COLORS[i % COLORS.length]).field("make", MAKES[i % MAKES.length])
+        .field("sold", String.format("2014-%02d-%02d", 1 + i % 12, 1 + i % 28)).endObject();
+  }
+
+  private XContentBuilder line(int i) throws IOException {
+    return XContentFactory.jsonBuilder().startObject().field("line_id", i)
+        .field("play_name", "Henry IV").field("speech_number", i % 50)
+        .field("line_number", "1.1." + (i % 300)).field("speaker", "KING HENRY IV")
+        .field("text_entry", "So shaken as we are, so wan with care, find we a time " + i)
+        .endObject();
+  }
+}
@@ -0,0 +1,147 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BackoffPolicy;
+import es.bulk.BulkRetryHandler;
+import es.bulk.RetryBudget;
+
+/**
+ * The bulk thread pool of the local node is shrunk so that concurrent bulks get
+ * EsRejectedExecutionException items, then the number of documents sent over the wire is
+ * compared between resending whole bulks and resubmitting only the rejected items.
+ */
+public class BulkRetryBenchmark extends ESLocalNodeTestBase {
+
+  private static final int THREADS = 8;
+  private static final int BULKS_PER_THREAD = 50;
+  private static final int BULK_ACTIONS = 200;
+
+  @BeforeClass
+  public static void start() throws IOException {
+    startNode(ImmutableSettings.settingsBuilder().put("threadpool.bulk.size", 1)
+        .put("threadpool.bulk.queue_size", 4));
+  }
+
+  @Test
+  public void testSelectiveRetryVsResendAll() throws Exception {
+    System.out.println("strategy\tdocs sent\tdocs/s\tdead letters");
+
+    recreateIndex(indexName, 4);
+    BackoffPolicy backoffPolicy =
+        BackoffPolicy.exponential(TimeValue.timeValueMillis(50), TimeValue.timeValueSeconds(2),
+            20);
+
+    AtomicLong sentWholeBulk = new AtomicLong();
+    AtomicLong droppedBulks = new AtomicLong();
+    long start = System.nanoTime();
+    run(request -> {
+      // resend everything, with the same backoff, until the bulk has no failure
+      for (int retry = 0; retry <= backoffPolicy.maxRetries(); retry++) {
+        sentWholeBulk.addAndGet(request.numberOfActions());
+        BulkResponse response = client.bulk(request).actionGet();
+        if (!response.hasFailures()) {
+          return;
+        }
+        Thread.sleep(backoffPolicy.delay(retry).millis());
+      }
+      droppedBulks.incrementAndGet();
+    });
+    report("resend all", sentWholeBulk.get(), start, droppedBulks.get() * BULK_ACTIONS);
+
+    recreateIndex(indexName, 4);
+    try (BulkRetryHandler handler =
+        BulkRetryHandler.builder().setBackoffPolicy(backoffPolicy)
+            .setRetryBudget(RetryBudget.unlimited()).build()) {
+      start = System.nanoTime();
+      run(request -> handler.execute(client, request));
+      long sent = (long) THREADS * BULKS_PER_THREAD * BULK_ACTIONS + handler.getRetriedItems();
+      report("selective retry", sent, start, handler.getDeadLetters());
+    }
+  }
+
+  @Test
+  public void testStrictMappingGoesToDeadLetter() throws IOException {
+    recreateIndex(indexName, 1);
+    client.admin().indices().preparePutMapping(indexName).setType(typeName)
+        .setSource(XContentFactory.jsonBuilder().startObject().startObject(typeName)
+            .field("dynamic", "strict").startObject("properties").startObject("user")
+            .field("type", "string").endObject().endObject().endObject().endObject())
+        .execute().actionGet();
+
+    List<String> deadLetters = new ArrayList<>();
+    try (BulkRetryHandler handler =
+        BulkRetryHandler.builder()
+            .setDeadLetterSink((request, failure) -> deadLetters.add(failure.getMessage()))
+            .build()) {
+      BulkRequest request = new BulkRequest();
+      request.add(client.prepareIndex(indexName, typeName, "1")
+          .setSource(XContentFactory.jsonBuilder().startObject().field("user", "destiny1020")
+              .endObject()).request());
+      request.add(client.prepareIndex(indexName, typeName, "2")
+          .setSource(XContentFactory.jsonBuilder().startObject().field("user", "maruko0101")
+              .field("age", 10).endObject()).request());
+
+      BulkResponse response = handler.execute(client, request);
+      System.out.println("Failed items: " + response.buildFailureMessage());
+      System.out.println("Retried items: " + handler.getRetriedItems());
+      System.out.println("Dead letters: " + deadLetters);
+    }
+  }
+
+  private interface BulkStrategy {
+    void execute(BulkRequest request) throws Exception;
+  }
+
+  private void run(BulkStrategy strategy) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      int thread = t;
+      futures.add(executor.submit(() -> {
+        for (int b = 0; b < BULKS_PER_THREAD; b++) {
+          BulkRequest request = new BulkRequest();
+          for (int i = 0; i < BULK_ACTIONS; i++) {
+            String id = thread + "-" + b + "-" + i;
+            request.add(client
+                .prepareIndex(indexName, typeName, id)
+                .setSource(
+                    XContentFactory.jsonBuilder().startObject().field("user", "user" + i)
+                        .field("message", "Try ES retries ! " + id).endObject()).request());
+          }
+          strategy.execute(request);
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+  }
+
+  private void report(String strategy, long sent, long start, long deadLetters) {
+    long expected = (long) THREADS * BULKS_PER_THREAD * BULK_ACTIONS;
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("%s\t%d\t%.0f\t%d", strategy, sent, expected / seconds,
+        deadLetters));
+    if (deadLetters == 0 && count(indexName) != expected) {
+      System.err.println("Unexpected document count: " + count(indexName));
+    }
+  }
+}
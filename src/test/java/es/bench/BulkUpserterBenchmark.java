@@ -0,0 +1,141 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.bulk.BulkUpserter;
+
+/**
+ * Bytes sent and time for a one-field change applied as full documents and as doc_as_upsert
+ * partial updates, plus the per-item conflict handling of concurrent scripted updates and of
+ * externally versioned documents delivered out of order.
+ */
+public class BulkUpserterBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 50000;
+  private static final int FIELDS = 20;
+
+  @Test
+  public void testFullDocumentsVsPartialUpdates() throws IOException, InterruptedException {
+    System.out.println("change\tMB sent\tseconds");
+    for (int round = 0; round < 2; round++) {
+      recreateIndex(indexName, 2);
+      BulkIngester ingester = BulkIngester.builder(client).setConcurrentRequests(2).build();
+      for (int i = 0; i < DOCS; i++) {
+        ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(i))
+            .setSource(document(i, 0)).request());
+      }
+      ingester.awaitClose(5, TimeUnit.MINUTES);
+
+      // the sync job changed the status of every document
+      long start = System.nanoTime();
+      ingester = BulkIngester.builder(client).setConcurrentRequests(2).build();
+      for (int i = 0; i < DOCS; i++) {
+        ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(i))
+            .setSource(document(i, 1)).request());
+      }
+      ingester.awaitClose(5, TimeUnit.MINUTES);
+      report("full document", ingester.stats().getBytes(), start);
+
+      start = System.nanoTime();
+      BulkUpserter upserter = BulkUpserter.builder(client).setConcurrentRequests(2).build();
+      for (int i = 0; i < DOCS; i++) {
+        upserter.upsert(indexName, typeName, String.valueOf(i),
+            XContentFactory.jsonBuilder().startObject().field("status", 2).endObject());
+      }
+      upserter.awaitClose(5, TimeUnit.MINUTES);
+      report("doc_as_upsert", upserter.stats().getBytes(), start);
+      if (upserter.stats().getFailedActions() > 0) {
+        System.err.println("Failed upserts: " + upserter.stats());
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentScriptedUpdates() throws Exception {
+    recreateIndex(indexName, 1);
+    int threads = 4;
+    int increments = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Long>> retried = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      retried.add(executor.submit(() -> {
+        BulkUpserter upserter =
+            BulkUpserter.builder(client).setBulkActions(50).setRetryOnConflict(5)
+                .setConflictRetries(5).setScriptLang("groovy").build();
+        for (int i = 0; i < increments; i++) {
+          upserter.update(indexName, typeName, "counter-" + (i % 5),
+              "ctx._source.count += increment", ImmutableMap.<String, Object>of("increment", 1),
+              XContentFactory.jsonBuilder().startObject().field("count", 1).endObject());
+        }
+        upserter.awaitClose(1, TimeUnit.MINUTES);
+        return upserter.getRetriedItems();
+      }));
+    }
+    long resubmitted = 0;
+    for (Future<Long> future : retried) {
+      resubmitted += future.get();
+    }
+    executor.shutdown();
+
+    long total = 0;
+    for (int c = 0; c < 5; c++) {
+      GetResponse response = client.prepareGet(indexName, typeName, "counter-" + c).get();
+      total += ((Number) response.getSource().get("count")).longValue();
+    }
+    System.out.println(String.format("increments: %d expected, %d counted, %d resubmitted",
+        threads * increments, total, resubmitted));
+  }
+
+  @Test
+  public void testOutOfOrderVersions() throws IOException, InterruptedException {
+    recreateIndex(indexName, 1);
+    List<Integer> versions = new ArrayList<>();
+    for (int v = 1; v <= 1000; v++) {
+      versions.add(v);
+    }
+    Collections.shuffle(versions, new Random(0));
+
+    BulkUpserter upserter = BulkUpserter.builder(client).setBulkActions(100).build();
+    for (int version : versions) {
+      upserter.index(indexName, typeName, "1",
+          XContentFactory.jsonBuilder().startObject().field("feed_version", version).endObject(),
+          version);
+    }
+    upserter.awaitClose(1, TimeUnit.MINUTES);
+
+    GetResponse response = client.prepareGet(indexName, typeName, "1").get();
+    System.out.println(String.format("indexed version %d (feed_version %s), %d stale dropped",
+        response.getVersion(), response.getSource().get("feed_version"),
+        upserter.getStaleVersions()));
+  }
+
+  private XContentBuilder document(int i, int status) throws IOException {
+    XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+    builder.field("status", status);
+    for (int f = 0; f < FIELDS; f++) {
+      builder.field("field" + f, "value of field " + f + " for document " + i);
+    }
+    return builder.endObject();
+  }
+
+  private void report(String change, long bytes, long start) {
+    System.out.println(String.format("%s\t%.1f\t%.1f", change, bytes / (1024.0 * 1024.0),
+        (System.nanoTime() - start) / 1e9));
+  }
+}
@@ -0,0 +1,115 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.search.CachingSearchClient;
+
+/**
+ * Latency of the count and aggregation searches of a dashboard, like those of
+ * FilterAndAggregationExamples, sent directly and through a CachingSearchClient, with an
+ * occasional write and refresh through the same client.
+ */
+public class CachingSearchClientBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 100000;
+  private static final String[] MAKES = {"ford", "toyota", "honda", "bmw", "fiat"};
+  private static final String[] COLORS = {"red", "green", "blue", "black", "white"};
+  private static final int SEARCHES = 2000;
+  private static final int WRITE_EVERY = 500;
+
+  @Test
+  public void testDirectVsCached() throws IOException, InterruptedException {
+    recreateIndex(indexName, 2);
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(doc(i)).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+
+    CachingSearchClient cached = CachingSearchClient.builder(client).build();
+    // warm up
+    run("direct", client);
+    run("cached", cached);
+
+    System.out.println("client\tsearches\tms/search\thit rate\tinvalidations\tsaved ms");
+    for (int round = 0; round < 2; round++) {
+      run("direct", client);
+      cached.invalidateAll();
+      run("cached", cached);
+      System.out.println(String.format("  hit rate %.3f, %d invalidations, saved %s, %d bytes",
+          cached.getHitRate(), cached.getInvalidations(), cached.getSavedLatency(),
+          cached.getCachedBytes()));
+    }
+
+    // same query and aggregations, added in another order
+    SearchResponse ab =
+        cached.prepareSearch(indexName).setSearchType(SearchType.COUNT)
+            .addAggregation(AggregationBuilders.terms("colors").field("color"))
+            .addAggregation(AggregationBuilders.avg("price").field("price")).get();
+    long hits = cached.getHits();
+    SearchResponse ba =
+        cached.prepareSearch(indexName).setSearchType(SearchType.COUNT)
+            .addAggregation(AggregationBuilders.avg("price").field("price"))
+            .addAggregation(AggregationBuilders.terms("colors").field("color")).get();
+    System.out.println("reordered aggregations hit: " + (cached.getHits() == hits + 1)
+        + ", same response: " + (ab == ba));
+
+    // a write then a refresh through the client is visible right away
+    long before = cached.prepareSearch(indexName).setSearchType(SearchType.COUNT).get()
+        .getHits().getTotalHits();
+    cached.prepareIndex(indexName, typeName, "new").setSource(doc(0)).get();
+    cached.admin().indices().prepareRefresh(indexName).get();
+    long after = cached.prepareSearch(indexName).setSearchType(SearchType.COUNT).get()
+        .getHits().getTotalHits();
+    System.out.println("count before write " + before + ", after write and refresh " + after);
+  }
+
+  private void run(String name, Client client) throws IOException {
+    Random random = new Random(0);
+    long start = System.nanoTime();
+    for (int i = 0; i < SEARCHES; i++) {
+      if (i > 0 && i % WRITE_EVERY == 0) {
+        client.prepareIndex(indexName, typeName, "w" + i).setSource(doc(i)).get();
+        client.admin().indices().prepareRefresh(indexName).get();
+      }
+      dashboard(client, random.nextInt(2 * MAKES.length)).get();
+    }
+    System.out.println(String.format("%s\t%d\t%.3f", name, SEARCHES,
+        (System.nanoTime() - start) / 1e6 / SEARCHES));
+  }
+
+  private SearchRequestBuilder dashboard(Client client, int panel) {
+    SearchRequestBuilder search =
+        client.prepareSearch(indexName).setSearchType(SearchType.COUNT)
+            .setQuery(QueryBuilders.matchQuery("make", MAKES[panel % MAKES.length]));
+    if (panel < MAKES.length) {
+      search.addAggregation(AggregationBuilders.terms("colors").field("color"));
+    } else {
+      search.addAggregation(AggregationBuilders.avg("avg_price").field("price"))
+          .addAggregation(AggregationBuilders.histogram("prices").field("price").interval(5000));
+    }
+    return search;
+  }
+
+  private static XContentBuilder doc(int i) throws IOException {
+    return XContentFactory.jsonBuilder().startObject().field("make", MAKES[i % MAKES.length])
+        .field("color", COLORS[(i / MAKES.length) % COLORS.length])
+        .field("price", 10000 + (i * 37) % 40000).endObject();
+  }
+}
@@ -0,0 +1,171 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.search.CardinalitySketchStore;
+
+/**
+ * Distinct users over random unions of tenants and days, 10 tenants by 30 days: the
+ * cardinality aggregation with precisionThreshold(100) of CardinalityAggExamples searched for
+ * each union, against merging the sketches of the 300 partitions loaded once into a
+ * CardinalitySketchStore. Both are compared with the exact count, and the sketches of values
+ * added on the client with those loaded from the server.
+ */
+public class CardinalitySketchStoreBenchmark extends ESLocalNodeTestBase {
+
+  private static final int TENANTS = 10;
+  private static final int DAYS = 30;
+  private static final int DOCS = 300000;
+  private static final int USERS = 100000;
+  private static final int UNIONS = 200;
+  private static final long THRESHOLD = 100;
+
+  @Test
+  public void testServerVsSketches() throws IOException, InterruptedException {
+    recreateIndex(indexName, 2);
+    client.admin().indices().preparePutMapping(indexName).setType(typeName)
+        .setSource(XContentFactory.jsonBuilder().startObject().startObject(typeName)
+            .startObject("properties")
+            .startObject("tenant").field("type", "string").field("index", "not_analyzed")
+            .endObject()
+            .startObject("user").field("type", "string").field("index", "not_analyzed")
+            .endObject()
+            .endObject().endObject().endObject()).get();
+    // the users of a partition, for the exact counts
+    List<Set<String>> users = new ArrayList<>();
+    for (int i = 0; i < TENANTS * DAYS; i++) {
+      users.add(new HashSet<>());
+    }
+    Random random = new Random(0);
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      int tenant = random.nextInt(TENANTS);
+      int day = random.nextInt(DAYS);
+      // most users come back: skewed towards the low ids
+      String user = "user" + (int) (USERS * Math.pow(random.nextDouble(), 2));
+      users.get(tenant * DAYS + day).add(user);
+      ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(XContentFactory.jsonBuilder().startObject().field("tenant", "t" + tenant)
+              .field("day", day).field("user", user).endObject()).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+
+    CardinalitySketchStore store =
+        CardinalitySketchStore.builder(client).setPrecisionThreshold(THRESHOLD).build();
+    long start = System.nanoTime();
+    SearchResponse partitions = client.prepareSearch(indexName).setSearchType(SearchType.COUNT)
+        .addAggregation(AggregationBuilders.terms("tenants").field("tenant").size(TENANTS)
+            .subAggregation(AggregationBuilders.histogram("days").field("day").interval(1)
+                .subAggregation(AggregationBuilders.cardinality("users").field("user")
+                    .precisionThreshold(THRESHOLD)))).get();
+    for (Terms.Bucket tenant : ((Terms) partitions.getAggregations().get("tenants"))
+        .getBuckets()) {
+      for (Histogram.Bucket day : ((Histogram) tenant.getAggregations().get("days"))
+          .getBuckets()) {
+        store.put(tenant.getKey() + "/" + day.getKey(),
+            (Cardinality) day.getAggregations().get("users"));
+      }
+    }
+    System.out.println(String.format("loaded %d partitions of precision %d in %d ms, %d bytes",
+        store.getPartitions().size(), store.getPrecision(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), store.getSizeInBytes()));
+
+    System.out.println("count\tp50 ms\tp99 ms\tmean error %\tmax error %");
+    for (int round = 0; round < 2; round++) {
+      LatencyRecorder serverLatencies = new LatencyRecorder();
+      LatencyRecorder sketchLatencies = new LatencyRecorder();
+      double serverErrors = 0;
+      double sketchErrors = 0;
+      double serverMax = 0;
+      double sketchMax = 0;
+      Random unions = new Random(round);
+      for (int i = 0; i < UNIONS; i++) {
+        // a few tenants over a range of days
+        List<String> tenants = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        int from = unions.nextInt(DAYS);
+        int to = from + unions.nextInt(DAYS - from);
+        Set<String> exact = new HashSet<>();
+        for (int tenant = 0; tenant < TENANTS; tenant++) {
+          if (unions.nextInt(3) == 0) {
+            tenants.add("t" + tenant);
+            for (int day = from; day <= to; day++) {
+              keys.add("t" + tenant + "/" + day);
+              exact.addAll(users.get(tenant * DAYS + day));
+            }
+          }
+        }
+        if (exact.isEmpty()) {
+          continue;
+        }
+
+        start = System.nanoTime();
+        Cardinality server = client.prepareSearch(indexName).setSearchType(SearchType.COUNT)
+            .setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),
+                FilterBuilders.boolFilter()
+                    .must(FilterBuilders.termsFilter("tenant", tenants))
+                    .must(FilterBuilders.rangeFilter("day").gte(from).lte(to))))
+            .addAggregation(AggregationBuilders.cardinality("users").field("user")
+                .precisionThreshold(THRESHOLD)).get().getAggregations().get("users");
+        serverLatencies.record(System.nanoTime() - start);
+        start = System.nanoTime();
+        long sketch = store.cardinality(keys);
+        sketchLatencies.record(System.nanoTime() - start);
+
+        double serverError = Math.abs(server.getValue() - exact.size()) * 100.0 / exact.size();
+        double sketchError = Math.abs(sketch - exact.size()) * 100.0 / exact.size();
+        serverErrors += serverError;
+        sketchErrors += sketchError;
+        serverMax = Math.max(serverMax, serverError);
+        sketchMax = Math.max(sketchMax, sketchError);
+      }
+      int counted = serverLatencies.count();
+      System.out.println(String.format("server\t%.2f\t%.2f\t%.2f\t%.2f",
+          serverLatencies.percentile(50), serverLatencies.percentile(99), serverErrors / counted,
+          serverMax));
+      System.out.println(String.format("sketches\t%.3f\t%.3f\t%.2f\t%.2f",
+          sketchLatencies.percentile(50), sketchLatencies.percentile(99),
+          sketchErrors / counted, sketchMax));
+    }
+
+    // the same values added on the client give the same registers, so the same estimates
+    CardinalitySketchStore local =
+        CardinalitySketchStore.builder(client).setPrecisionThreshold(THRESHOLD).build();
+    int same = 0;
+    for (int tenant = 0; tenant < TENANTS; tenant++) {
+      for (int day = 0; day < DAYS; day++) {
+        String key = "t" + tenant + "/" + day;
+        for (String user : users.get(tenant * DAYS + day)) {
+          local.add(key, user);
+        }
+        if (local.cardinality(key) == store.cardinality(key)) {
+          same++;
+        }
+      }
+    }
+    List<String> all = new ArrayList<>(store.getPartitions());
+    System.out.println(String.format("client-side sketches equal to the loaded ones: %d/%d, "
+        + "all partitions %d and %d", same, TENANTS * DAYS, local.cardinality(all),
+        store.cardinality(all)));
+  }
+}
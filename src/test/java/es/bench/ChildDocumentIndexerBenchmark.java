@@ -0,0 +1,145 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.bulk.ChildDocumentIndexer;
+
+/**
+ * Branch/employee ingestion with different fan-outs: one request per child as in
+ * ParentChildRelExamples, mixed bulks, and routing-aware per-shard bulks with parent checks.
+ */
+public class ChildDocumentIndexerBenchmark extends ESLocalNodeTestBase {
+
+  private static final int SHARDS = 4;
+  private static final int CHILDREN = 100000;
+  private static final String BRANCH = "branch";
+  private static final String EMPLOYEE = "employee";
+  private static final String COUNTRY = "country";
+
+  @Test
+  public void testFanOuts() throws IOException, InterruptedException {
+    // warm up
+    runIndexer(100, CHILDREN / 4);
+
+    System.out.println("branches\tpath\tchildren/s\tcache hits\tlookups\torphans");
+    for (int branches : new int[] {10, 100, 1000}) {
+      runSingleRequests(branches, CHILDREN / 10);
+      runMixedBulks(branches, CHILDREN);
+      runIndexer(branches, CHILDREN);
+    }
+  }
+
+  @Test
+  public void testGrandchildren() throws IOException, InterruptedException {
+    // country > branch > employee, branches and employees routed by country
+    recreateIndex(indexName, SHARDS);
+    client.admin().indices().preparePutMapping(indexName).setType(BRANCH)
+        .setSource(XContentFactory.jsonBuilder().startObject().startObject(BRANCH)
+            .startObject("_parent").field("type", COUNTRY).endObject().endObject().endObject())
+        .get();
+    client.admin().indices().preparePutMapping(indexName).setType(EMPLOYEE)
+        .setSource(XContentFactory.jsonBuilder().startObject().startObject(EMPLOYEE)
+            .startObject("_parent").field("type", BRANCH).endObject().endObject().endObject())
+        .get();
+    int branches = 100;
+    for (int b = 0; b < branches; b++) {
+      client.prepareIndex(indexName, BRANCH, "branch-" + b).setParent("country-" + (b % 10))
+          .setSource("name", "Branch " + b).get();
+    }
+    ChildDocumentIndexer indexer =
+        ChildDocumentIndexer.builder(client, indexName, BRANCH).setConcurrentRequests(SHARDS)
+            .build();
+    long start = System.nanoTime();
+    for (int i = 0; i < CHILDREN / 10; i++) {
+      int b = i % branches;
+      indexer.addChild(employee(i, "branch-" + b).setRouting("country-" + (b % 10)).request());
+    }
+    indexer.awaitClose(5, TimeUnit.MINUTES);
+    report(branches, "grandchildren", CHILDREN / 10, start, indexer.getCacheHits(),
+        indexer.getParentLookups(), indexer.getOrphans());
+    if (indexer.getOrphans() != 0 || indexer.getLookupFailures() != 0) {
+      System.err.println("Parents routed by country not found");
+    }
+  }
+
+  private void runSingleRequests(int branches, int children) throws IOException {
+    createCompany(branches);
+    long start = System.nanoTime();
+    for (int i = 0; i < children; i++) {
+      employee(i, "branch-" + (i % branches)).get();
+    }
+    report(branches, "per request", children, start, "-", "-", "-");
+  }
+
+  private void runMixedBulks(int branches, int children) throws IOException,
+      InterruptedException {
+    createCompany(branches);
+    long start = System.nanoTime();
+    BulkIngester ingester = BulkIngester.builder(client).setConcurrentRequests(SHARDS).build();
+    for (int i = 0; i < children; i++) {
+      ingester.add(employee(i, "branch-" + (i % branches)).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    report(branches, "mixed bulks", children, start, "-", "-", "-");
+  }
+
+  private void runIndexer(int branches, int children) throws IOException,
+      InterruptedException {
+    createCompany(branches);
+    long start = System.nanoTime();
+    ChildDocumentIndexer indexer =
+        ChildDocumentIndexer.builder(client, indexName, BRANCH).setConcurrentRequests(SHARDS)
+            .build();
+    for (int i = 0; i < children; i++) {
+      // every 1000th employee belongs to a branch that was never created
+      String branch = i % 1000 == 999 ? "closed-" + i : "branch-" + (i % branches);
+      indexer.addChild(employee(i, branch).request());
+    }
+    indexer.awaitClose(5, TimeUnit.MINUTES);
+    report(branches, "per shard", children, start, indexer.getCacheHits(),
+        indexer.getParentLookups(), indexer.getOrphans());
+  }
+
+  private IndexRequestBuilder employee(int i, String branch) throws IOException {
+    return client
+        .prepareIndex(indexName, EMPLOYEE, String.valueOf(i))
+        .setParent(branch)
+        .setSource(
+            XContentFactory.jsonBuilder().startObject().field("name", "Employee " + i)
+                .field("dob", "1980-01-01").field("hobby", i % 2 == 0 ? "hiking" : "diving")
+                .endObject());
+  }
+
+  private void createCompany(int branches) throws IOException {
+    recreateIndex(indexName, SHARDS);
+    client.admin().indices().preparePutMapping(indexName).setType(EMPLOYEE)
+        .setSource(XContentFactory.jsonBuilder().startObject().startObject(EMPLOYEE)
+            .startObject("_parent").field("type", BRANCH).endObject().endObject().endObject())
+        .get();
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int b = 0; b < branches; b++) {
+      ingester.add(client.prepareIndex(indexName, BRANCH, "branch-" + b)
+          .setSource(XContentFactory.jsonBuilder().startObject().field("name", "Branch " + b)
+              .field("country", "UK").endObject()).request());
+    }
+    try {
+      ingester.awaitClose(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void report(int branches, String path, int children, long start, Object cacheHits,
+      Object lookups, Object orphans) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("%d\t%s\t%.0f\t%s\t%s\t%s", branches, path,
+        children / seconds, cacheHits, lookups, orphans));
+  }
+}
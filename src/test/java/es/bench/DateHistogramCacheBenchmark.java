@@ -0,0 +1,157 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogram;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogram.Interval;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.avg.Avg;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.search.DateHistogramCache;
+
+/**
+ * The monthly histograms of DateHistogramExamples and CardinalityAggExamples over five years of
+ * car sales up to now, searched in full every time and through a DateHistogramCache, which
+ * only searches the current month after the first call. Also checks that both give the same
+ * buckets, and that intervals closing between two calls are added to the cached ones.
+ */
+public class DateHistogramCacheBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 200000;
+  private static final long SPAN = TimeUnit.DAYS.toMillis(5 * 365);
+  private static final int SEARCHES = 100;
+  private static final String[] MAKES = {"toyota", "honda", "ford", "bmw"};
+  private static final String[] COLORS = {"red", "green", "blue", "black", "white", "silver"};
+
+  @Test
+  public void testFullVsIncremental() throws IOException, InterruptedException {
+    long now = System.currentTimeMillis();
+    index(indexName, DOCS, now - SPAN, now);
+    index("irecent", 3000, now - TimeUnit.SECONDS.toMillis(30), now);
+
+    Supplier<DateHistogramBuilder> sales = () -> AggregationBuilders.dateHistogram("sales")
+        .field("sold").interval(Interval.MONTH).format("yyyy-MM-dd").minDocCount(0)
+        .extendedBounds(now - SPAN - TimeUnit.DAYS.toMillis(90),
+            now + TimeUnit.DAYS.toMillis(60))
+        .subAggregation(AggregationBuilders.terms("top_selling").field("make").size(1)
+            .subAggregation(AggregationBuilders.avg("avg_price").field("price")));
+    Supplier<DateHistogramBuilder> colors = () -> AggregationBuilders.dateHistogram("months")
+        .field("sold").interval(Interval.MONTH)
+        .subAggregation(AggregationBuilders.cardinality("distinct_colors").field("color")
+            .precisionThreshold(100));
+
+    System.out.println("histogram\tsearch\tbuckets\tp50 ms\tp99 ms\tidentical");
+    for (int round = 0; round < 2; round++) {
+      DateHistogramCache cache = DateHistogramCache.builder(client).build();
+      run("sales", cache, sales);
+      run("months", cache, colors);
+      System.out.println(String.format("hits %d, misses %d, extended %d", cache.getHits(),
+          cache.getMisses(), cache.getExtended()));
+    }
+
+    // 5s intervals over the last 30s, settled after 1s: some close between the two calls
+    DateHistogramCache cache = DateHistogramCache.builder(client)
+        .setSettleTime(TimeValue.timeValueSeconds(1)).build();
+    Supplier<DateHistogramBuilder> seconds = () -> AggregationBuilders.dateHistogram("seconds")
+        .field("sold").interval(Interval.seconds(5)).minDocCount(0)
+        .subAggregation(AggregationBuilders.avg("avg_price").field("price"));
+    cache.search("irecent", seconds.get());
+    Thread.sleep(6000);
+    DateHistogram incremental = cache.search("irecent", seconds.get());
+    System.out.println(String.format("recent: misses %d, extended %d, identical %b",
+        cache.getMisses(), cache.getExtended(),
+        describe(incremental).equals(describe(full("irecent", "seconds", seconds.get())))));
+  }
+
+  private void run(String name, DateHistogramCache cache, Supplier<DateHistogramBuilder> agg) {
+    LatencyRecorder full = new LatencyRecorder();
+    LatencyRecorder cached = new LatencyRecorder();
+    boolean identical = true;
+    int buckets = 0;
+    for (int i = 0; i < SEARCHES; i++) {
+      long start = System.nanoTime();
+      DateHistogram expected = full(indexName, name, agg.get());
+      full.record(System.nanoTime() - start);
+      start = System.nanoTime();
+      DateHistogram actual = cache.search(indexName, agg.get());
+      cached.record(System.nanoTime() - start);
+      identical &= describe(expected).equals(describe(actual));
+      buckets = expected.getBuckets().size();
+    }
+    System.out.println(String.format("%s\tfull\t%d\t%.2f\t%.2f\t-", name, buckets,
+        full.percentile(50), full.percentile(99)));
+    System.out.println(String.format("%s\tcached\t%d\t%.2f\t%.2f\t%b", name, buckets,
+        cached.percentile(50), cached.percentile(99), identical));
+  }
+
+  private DateHistogram full(String index, String name, DateHistogramBuilder agg) {
+    return client.prepareSearch(index).setSearchType(SearchType.COUNT).addAggregation(agg)
+        .get().getAggregations().get(name);
+  }
+
+  /**
+   * Keys, counts and sub-aggregation values of the buckets.
+   */
+  private static List<String> describe(DateHistogram histogram) {
+    List<String> buckets = new ArrayList<>();
+    for (DateHistogram.Bucket bucket : histogram.getBuckets()) {
+      StringBuilder description =
+          new StringBuilder(bucket.getKey()).append(' ').append(bucket.getDocCount());
+      Terms top = bucket.getAggregations().get("top_selling");
+      if (top != null) {
+        for (Terms.Bucket make : top.getBuckets()) {
+          description.append(' ').append(make.getKey()).append(' ').append(make.getDocCount())
+              .append(' ').append(((Avg) make.getAggregations().get("avg_price")).getValue());
+        }
+      }
+      Cardinality distinct = bucket.getAggregations().get("distinct_colors");
+      if (distinct != null) {
+        description.append(' ').append(distinct.getValue());
+      }
+      Avg avg = bucket.getAggregations().get("avg_price");
+      if (avg != null) {
+        description.append(' ').append(avg.getValue());
+      }
+      buckets.add(description.toString());
+    }
+    return buckets;
+  }
+
+  private void index(String index, int docs, long from, long to) throws IOException,
+      InterruptedException {
+    recreateIndex(index, 1);
+    client.admin().indices().preparePutMapping(index).setType(typeName)
+        .setSource(XContentFactory.jsonBuilder().startObject().startObject(typeName)
+            .startObject("properties")
+            .startObject("sold").field("type", "date").endObject()
+            .startObject("make").field("type", "string").field("index", "not_analyzed")
+            .endObject()
+            .startObject("color").field("type", "string").field("index", "not_analyzed")
+            .endObject()
+            .endObject().endObject().endObject()).get();
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < docs; i++) {
+      ingester.add(client.prepareIndex(index, typeName, String.valueOf(i))
+          .setSource(XContentFactory.jsonBuilder().startObject()
+              .field("sold", from + (to - from) * i / docs)
+              .field("make", MAKES[(i * 7) % MAKES.length])
+              .field("color", COLORS[(i * 13) % COLORS.length])
+              .field("price", 10000 + (i * 37) % 40000).endObject()).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(index);
+  }
+}
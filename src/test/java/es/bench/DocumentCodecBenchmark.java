@@ -0,0 +1,105 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.lookup.SourceLookup;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.codec.DocumentCodec;
+import es.model.Tweet;
+
+/**
+ * DocumentCodec against the XContentBuilder path for writing and the getSourceAsMap() path for
+ * reading, in ns and bytes allocated per document.
+ */
+public class DocumentCodecBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 10000;
+  private static final int ROUNDS = 50;
+
+  private final DocumentCodec<Tweet> codec = DocumentCodec.of(Tweet.class);
+
+  @Test
+  public void testWrite() throws IOException {
+    Tweet tweet = new Tweet("destiny1020", new Date(), "Try ES !", 20);
+
+    System.out.println("write path\tns/doc\tbytes/doc");
+    for (int round = 0; round < 2; round++) {
+      AllocationMeter meter = new AllocationMeter();
+      long start = System.nanoTime();
+      long length = 0;
+      for (int i = 0; i < DOCS * ROUNDS; i++) {
+        length +=
+            XContentFactory.jsonBuilder().startObject().field("user", tweet.getUser())
+                .field("postDate", tweet.getPostDate()).field("message", tweet.getMessage())
+                .field("age", tweet.getAge()).endObject().bytes().length();
+      }
+      report("XContentBuilder", start, meter, DOCS * ROUNDS, length);
+
+      meter = new AllocationMeter();
+      start = System.nanoTime();
+      length = 0;
+      for (int i = 0; i < DOCS * ROUNDS; i++) {
+        length += codec.toBytes(tweet).length;
+      }
+      report("DocumentCodec", start, meter, DOCS * ROUNDS, length);
+    }
+  }
+
+  @Test
+  public void testRead() throws IOException, InterruptedException {
+    recreateIndex(indexName, 1);
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      ingester.add(codec.setSource(client.prepareIndex(indexName, typeName, String.valueOf(i)),
+          new Tweet("user" + (i % 100), new Date(), "Try ES codec ! " + i, i % 80)).request());
+    }
+    ingester.awaitClose(1, TimeUnit.MINUTES);
+    count(indexName);
+
+    SearchResponse response = client.prepareSearch(indexName).setSize(DOCS).execute().actionGet();
+    SearchHit[] hits = response.getHits().getHits();
+
+    System.out.println("read path\tns/hit\tbytes/hit");
+    for (int round = 0; round < 2; round++) {
+      AllocationMeter meter = new AllocationMeter();
+      long start = System.nanoTime();
+      long ages = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        for (SearchHit hit : hits) {
+          // what getSourceAsMap() does, without the per-hit cache
+          Map<String, Object> source = SourceLookup.sourceAsMap(hit.sourceRef());
+          Tweet tweet = new Tweet();
+          tweet.setUser((String) source.get("user"));
+          tweet.setMessage((String) source.get("message"));
+          tweet.setAge(((Number) source.get("age")).intValue());
+          ages += tweet.getAge();
+        }
+      }
+      report("getSourceAsMap()", start, meter, hits.length * ROUNDS, ages);
+
+      meter = new AllocationMeter();
+      start = System.nanoTime();
+      ages = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        for (SearchHit hit : hits) {
+          ages += codec.fromHit(hit).getAge();
+        }
+      }
+      report("DocumentCodec", start, meter, hits.length * ROUNDS, ages);
+    }
+  }
+
+  private void report(String path, long start, AllocationMeter meter, int docs, long checksum) {
+    System.out.println(String.format("%s\t%d\t%d\t(checksum %d)", path,
+        (System.nanoTime() - start) / docs, meter.allocatedBytes() / docs, checksum));
+  }
+}
@@ -0,0 +1,43 @@
+package es.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Samples the used heap every 10ms, starting from a freshly collected heap, and keeps the peak.
+ */
+class HeapSampler implements Runnable {
+
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+  private final Thread thread;
+  private volatile boolean running = true;
+  private volatile long peak;
+
+  HeapSampler() {
+    System.gc();
+    thread = new Thread(this, "heap-sampler");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stops sampling and returns the peak used heap in bytes.
+   */
+  long finish() throws InterruptedException {
+    running = false;
+    thread.join();
+    return peak;
+  }
+}
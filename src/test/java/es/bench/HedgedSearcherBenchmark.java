@@ -0,0 +1,162 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.search.HedgedSearcher;
+
+/**
+ * Latency percentiles of searches and gets sent once with execute().actionGet(), and through a
+ * HedgedSearcher, when a small share of the requests is held up by a slow shard copy. The slow
+ * copies are simulated on the single embedded node by delaying a random 2% of the responses by
+ * 30 to 80ms, as a GC pause or a merge would.
+ */
+public class HedgedSearcherBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 20000;
+  private static final int REQUESTS = 3000;
+  private static final double SLOW_SHARE = 0.02;
+
+  @Test
+  public void testDirectVsHedged() throws IOException, InterruptedException {
+    recreateIndex(indexName, 2);
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      ingester.add(client
+          .prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(
+              XContentFactory.jsonBuilder().startObject().field("user", "user" + (i % 1000))
+                  .field("message", "Try ES hedging ! " + i).endObject()).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+
+    PausingClient slow = new PausingClient(client);
+    IntFunction<ActionFuture<?>> search = i -> slow.prepareSearch(indexName)
+        .setQuery(QueryBuilders.termQuery("user", "user" + (i % 1000))).execute();
+    IntFunction<ActionFuture<?>> get =
+        i -> slow.prepareGet(indexName, typeName, String.valueOf(i % DOCS)).execute();
+
+    System.out.println("requests\tsent\tcount\thedge rate\thedge wins\tdelay ms\tp50 ms"
+        + "\tp99 ms\tp99.9 ms");
+    for (int round = 0; round < 2; round++) {
+      direct("search", search);
+      try (HedgedSearcher hedger = HedgedSearcher.builder(slow).build()) {
+        hedged("search", hedger, i -> hedger.search(slow.prepareSearch(indexName)
+            .setQuery(QueryBuilders.termQuery("user", "user" + (i % 1000)))));
+      }
+      direct("get", get);
+      try (HedgedSearcher hedger = HedgedSearcher.builder(slow).build()) {
+        hedged("get", hedger, i -> hedger.get(slow.prepareGet(indexName, typeName,
+            String.valueOf(i % DOCS))));
+      }
+    }
+    slow.pauses.shutdown();
+  }
+
+  private void direct(String requests, IntFunction<ActionFuture<?>> send) {
+    LatencyRecorder latencies = new LatencyRecorder();
+    for (int i = 0; i < REQUESTS; i++) {
+      long start = System.nanoTime();
+      send.apply(i).actionGet();
+      latencies.record(System.nanoTime() - start);
+    }
+    System.out.println(String.format("%s\tonce\t%d\t-\t-\t-\t%.2f\t%.2f\t%.2f", requests,
+        REQUESTS, latencies.percentile(50), latencies.percentile(99),
+        latencies.percentile(99.9)));
+  }
+
+  private void hedged(String requests, HedgedSearcher hedger,
+      IntFunction<CompletableFuture<?>> send) {
+    LatencyRecorder latencies = new LatencyRecorder();
+    for (int i = 0; i < REQUESTS; i++) {
+      long start = System.nanoTime();
+      send.apply(i).join();
+      latencies.record(System.nanoTime() - start);
+    }
+    System.out.println(String.format("%s\thedged\t%d\t%.3f\t%d\t%.2f\t%.2f\t%.2f\t%.2f",
+        requests, REQUESTS, hedger.getHedgeRate(), hedger.getHedgeWins(),
+        hedger.getDelayMillis(), latencies.percentile(50), latencies.percentile(99),
+        latencies.percentile(99.9)));
+  }
+
+  /**
+   * Delays a random share of the search and get responses.
+   */
+  static class PausingClient extends FilterClient {
+
+    final ScheduledExecutorService pauses = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "pauses");
+      t.setDaemon(true);
+      return t;
+    });
+    private final Random random = new Random(0);
+
+    PausingClient(Client in) {
+      super(in);
+    }
+
+    // the bound of Request is raw in Client, an override must repeat it
+    @Override
+    @SuppressWarnings("rawtypes")
+    public <Request extends ActionRequest, Response extends ActionResponse,
+        RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>>
+        ActionFuture<Response> execute(
+        Action<Request, Response, RequestBuilder, Client> action, Request request) {
+      PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+      execute(action, request, future);
+      return future;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public <Request extends ActionRequest, Response extends ActionResponse,
+        RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>>
+        void execute(
+        Action<Request, Response, RequestBuilder, Client> action, Request request,
+        ActionListener<Response> listener) {
+      long pauseMillis;
+      synchronized (random) {
+        pauseMillis = random.nextDouble() < SLOW_SHARE ? 30 + random.nextInt(50) : 0;
+      }
+      if (pauseMillis == 0 || (action != SearchAction.INSTANCE && action != GetAction.INSTANCE)) {
+        super.execute(action, request, listener);
+        return;
+      }
+      super.execute(action, request, new ActionListener<Response>() {
+        @Override
+        public void onResponse(Response response) {
+          pauses.schedule(() -> listener.onResponse(response), pauseMillis,
+              TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+          listener.onFailure(e);
+        }
+      });
+    }
+  }
+}
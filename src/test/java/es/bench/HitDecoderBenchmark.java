@@ -0,0 +1,157 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.lookup.SourceLookup;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.codec.DocumentCodec;
+import es.codec.HitColumns;
+import es.codec.HitDecoder;
+
+/**
+ * Reading a 10k-hit page of shakespeare lines through getSourceAsMap(), sourceAsString() and
+ * DocumentCodec, against a HitDecoder filling one reused object and HitColumns filling reused
+ * arrays, in ns and bytes allocated per hit.
+ */
+public class HitDecoderBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 10000;
+  private static final int ROUNDS = 30;
+  private static final String[] PLAYS = {"Henry IV", "Hamlet", "Macbeth", "King Lear",
+      "Othello", "The Tempest", "Julius Caesar", "Twelfth Night"};
+
+  /**
+   * A line of the shakespeare index.
+   */
+  public static class Line {
+    public long line_id;
+    public String play_name;
+    public long speech_number;
+    public String line_number;
+    public String speaker;
+    public String text_entry;
+  }
+
+  @Test
+  public void testRead() throws IOException, InterruptedException {
+    recreateIndex(indexName, 1);
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(XContentFactory.jsonBuilder().startObject().field("line_id", i + 1)
+              .field("play_name", PLAYS[i * PLAYS.length / DOCS])
+              .field("speech_number", i / 12 + 1).field("line_number", "1.1." + (i % 400))
+              .field("speaker", "SPEAKER " + (i % 60))
+              .field("text_entry", "So shaken as we are, so wan with care, find we a time "
+                  + "for frighted peace to pant " + i).endObject()).request());
+    }
+    ingester.awaitClose(1, TimeUnit.MINUTES);
+    count(indexName);
+
+    SearchResponse response = client.prepareSearch(indexName).setSize(DOCS).get();
+    SearchHit[] hits = response.getHits().getHits();
+
+    DocumentCodec<Line> codec = DocumentCodec.of(Line.class);
+    HitDecoder<Line> decoder =
+        HitDecoder.<Line>builder().setLong("line_id", (line, v) -> line.line_id = v)
+            .setKeyword("play_name", (line, v) -> line.play_name = v)
+            .setLong("speech_number", (line, v) -> line.speech_number = v)
+            .setString("line_number", (line, v) -> line.line_number = v)
+            .setKeyword("speaker", (line, v) -> line.speaker = v)
+            .setString("text_entry", (line, v) -> line.text_entry = v).build();
+    HitDecoder<Line> idsOnly =
+        HitDecoder.<Line>builder().setLong("line_id", (line, v) -> line.line_id = v)
+            .setKeyword("speaker", (line, v) -> line.speaker = v).build();
+    HitColumns columns =
+        HitColumns.builder().addLong("line_id").addKeyword("play_name")
+            .addLong("speech_number").addString("line_number").addKeyword("speaker")
+            .addString("text_entry").build();
+
+    System.out.println("read path\tns/hit\tbytes/hit\thits/s");
+    for (int round = 0; round < 4; round++) {
+      AllocationMeter meter = new AllocationMeter();
+      long start = System.nanoTime();
+      long checksum = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        for (SearchHit hit : hits) {
+          // what getSourceAsMap() does, without the per-hit cache
+          Map<String, Object> source = SourceLookup.sourceAsMap(hit.sourceRef());
+          checksum += ((Number) source.get("line_id")).longValue()
+              + ((String) source.get("speaker")).length();
+        }
+      }
+      report("getSourceAsMap()", start, meter, hits.length * ROUNDS, checksum);
+
+      meter = new AllocationMeter();
+      start = System.nanoTime();
+      checksum = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        for (SearchHit hit : hits) {
+          checksum += hit.sourceAsString().length();
+        }
+      }
+      report("sourceAsString()", start, meter, hits.length * ROUNDS, checksum);
+
+      meter = new AllocationMeter();
+      start = System.nanoTime();
+      checksum = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        for (SearchHit hit : hits) {
+          Line line = codec.fromHit(hit);
+          checksum += line.line_id + line.speaker.length();
+        }
+      }
+      report("DocumentCodec", start, meter, hits.length * ROUNDS, checksum);
+
+      Line line = new Line();
+      meter = new AllocationMeter();
+      start = System.nanoTime();
+      checksum = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        for (SearchHit hit : hits) {
+          decoder.decode(hit, line);
+          checksum += line.line_id + line.speaker.length();
+        }
+      }
+      report("HitDecoder, reused object", start, meter, hits.length * ROUNDS, checksum);
+
+      meter = new AllocationMeter();
+      start = System.nanoTime();
+      checksum = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        for (SearchHit hit : hits) {
+          idsOnly.decode(hit, line);
+          checksum += line.line_id + line.speaker.length();
+        }
+      }
+      report("HitDecoder, 2 of 6 fields", start, meter, hits.length * ROUNDS, checksum);
+
+      meter = new AllocationMeter();
+      start = System.nanoTime();
+      checksum = 0;
+      for (int r = 0; r < ROUNDS; r++) {
+        int rows = columns.fill(hits);
+        long[] ids = columns.getLongs("line_id");
+        String[] speakers = columns.getStrings("speaker");
+        for (int i = 0; i < rows; i++) {
+          checksum += ids[i] + speakers[i].length();
+        }
+      }
+      report("HitColumns", start, meter, hits.length * ROUNDS, checksum);
+    }
+  }
+
+  private void report(String path, long start, AllocationMeter meter, int hits, long checksum) {
+    long elapsed = System.nanoTime() - start;
+    System.out.println(String.format("%s\t%d\t%d\t%d\t(checksum %d)", path, elapsed / hits,
+        meter.allocatedBytes() / hits, hits * 1000000000L / elapsed, checksum));
+  }
+}
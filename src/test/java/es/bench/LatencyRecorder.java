@@ -0,0 +1,65 @@
+package es.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+
+/**
+ * Bulk listener recording the latency of every bulk, for percentiles.
+ */
+class LatencyRecorder implements BulkProcessor.Listener {
+
+  private final ConcurrentMap<Long, Long> starts = new ConcurrentHashMap<>();
+  private long[] latencies = new long[1024];
+  private int count;
+
+  @Override
+  public void beforeBulk(long executionId, BulkRequest request) {
+    starts.put(executionId, System.nanoTime());
+  }
+
+  @Override
+  public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+    finish(executionId);
+  }
+
+  @Override
+  public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+    finish(executionId);
+  }
+
+  private void finish(long executionId) {
+    Long start = starts.remove(executionId);
+    if (start != null) {
+      record(System.nanoTime() - start);
+    }
+  }
+
+  synchronized void record(long nanos) {
+    if (count == latencies.length) {
+      latencies = Arrays.copyOf(latencies, count * 2);
+    }
+    latencies[count++] = nanos;
+  }
+
+  synchronized int count() {
+    return count;
+  }
+
+  /**
+   * @return the latency in milliseconds at the given percentile, 0 to 100
+   */
+  synchronized double percentile(double percent) {
+    if (count == 0) {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(latencies, count);
+    Arrays.sort(sorted);
+    int rank = (int) Math.ceil(percent / 100 * count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, rank))] / 1e6;
+  }
+}
@@ -0,0 +1,155 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.search.MultiSearchCoalescer;
+
+/**
+ * Round trips and latency percentiles of searches sent one by one against searches coalesced
+ * into multi-searches, for an open-loop load at several request rates.
+ */
+public class MultiSearchCoalescerBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 20000;
+  private static final long DURATION_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  @Test
+  public void testDirectVsCoalesced() throws IOException, InterruptedException {
+    index();
+    // warm up
+    direct(500);
+    coalesced(500, 2);
+
+    System.out.println("searches\trate/s\tsent\tround trips\tp50 ms\tp99 ms");
+    for (int rate : new int[] {100, 500, 2000}) {
+      direct(rate);
+      for (int windowMillis : new int[] {1, 5}) {
+        coalesced(rate, windowMillis);
+      }
+    }
+  }
+
+  @Test
+  public void testItemFailureOnlyFailsItsCaller() throws IOException, InterruptedException {
+    index();
+    try (MultiSearchCoalescer coalescer =
+        MultiSearchCoalescer.builder(client).setWindow(TimeValue.timeValueMillis(50)).build()) {
+      CompletableFuture<MultiSearchResponse.Item> okFuture = coalescer.submit(search(1));
+      CompletableFuture<MultiSearchResponse.Item> missingFuture =
+          coalescer.submit(client.prepareSearch("missing-index"));
+      MultiSearchResponse.Item ok = okFuture.join();
+      MultiSearchResponse.Item missing = missingFuture.join();
+      System.out.println("ok failed: " + ok.isFailure() + ", missing index failed: "
+          + missing.isFailure() + " (" + missing.getFailureMessage() + "), round trips: "
+          + coalescer.getBatches());
+    }
+  }
+
+  private void index() throws IOException, InterruptedException {
+    recreateIndex(indexName, 1);
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      ingester.add(client
+          .prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(
+              XContentFactory.jsonBuilder().startObject().field("user", "user" + (i % 1000))
+                  .field("message", "Try ES multi search ! " + i).endObject()).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+  }
+
+  private SearchRequestBuilder search(long i) {
+    return client.prepareSearch(indexName).setQuery(
+        QueryBuilders.termQuery("user", "user" + (i % 1000)));
+  }
+
+  private void direct(int rate) throws InterruptedException {
+    LatencyRecorder latencies = new LatencyRecorder();
+    long sent = run(rate, (i, done) -> {
+      long start = System.nanoTime();
+      search(i).execute(new ActionListener<SearchResponse>() {
+        @Override
+        public void onResponse(SearchResponse response) {
+          latencies.record(System.nanoTime() - start);
+          done.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+          done.countDown();
+        }
+      });
+    });
+    report("direct", rate, sent, sent, latencies);
+  }
+
+  private void coalesced(int rate, int windowMillis) throws InterruptedException {
+    LatencyRecorder latencies = new LatencyRecorder();
+    MultiSearchCoalescer coalescer =
+        MultiSearchCoalescer.builder(client).setWindow(TimeValue.timeValueMillis(windowMillis))
+            .build();
+    long sent = run(rate, (i, done) -> {
+      long start = System.nanoTime();
+      coalescer.submit(search(i)).whenComplete((item, failure) -> {
+        if (failure == null && !item.isFailure()) {
+          latencies.record(System.nanoTime() - start);
+        }
+        done.countDown();
+      });
+    });
+    coalescer.close();
+    report("coalesced " + windowMillis + "ms", rate, sent, coalescer.getBatches(), latencies);
+  }
+
+  interface Sender {
+    void send(long i, CountDownLatch done);
+  }
+
+  /**
+   * Sends at a fixed rate whatever the response times, for DURATION_NANOS.
+   */
+  private long run(int rate, Sender sender) throws InterruptedException {
+    long searches = DURATION_NANOS * rate / TimeUnit.SECONDS.toNanos(1);
+    CountDownLatch done = new CountDownLatch((int) searches);
+    long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+    long start = System.nanoTime();
+    AtomicLong sent = new AtomicLong();
+    for (long i = 0; i < searches; i++) {
+      long due = start + i * interval;
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      sender.send(i, done);
+      sent.incrementAndGet();
+    }
+    done.await(1, TimeUnit.MINUTES);
+    return sent.get();
+  }
+
+  private void report(String searches, int rate, long sent, long roundTrips,
+      LatencyRecorder latencies) {
+    if (latencies.count() != sent) {
+      System.err.println(searches + ": " + (sent - latencies.count()) + " searches failed");
+    }
+    System.out.println(String.format("%s\t%d\t%d\t%d\t%.2f\t%.2f", searches, rate, sent,
+        roundTrips, latencies.percentile(50), latencies.percentile(99)));
+  }
+}
@@ -0,0 +1,114 @@
+package es.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.bulk.NdjsonBulkLoader;
+
+/**
+ * Loads the same shakespeare-like NDJSON dump through the memory-mapped loader and through the
+ * per-document prepareIndex(...).setSource(builder) path, reporting MB/s and peak used heap.
+ */
+public class NdjsonBulkLoaderBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 200000;
+
+  private static Path dump;
+
+  @BeforeClass
+  public static void writeDump() throws IOException {
+    dump = Files.createTempFile("shakespeare", ".ndjson");
+    try (BufferedWriter writer = Files.newBufferedWriter(dump, StandardCharsets.UTF_8)) {
+      for (int i = 0; i < DOCS; i++) {
+        writer.write("{\"index\":{\"_id\":\"" + i + "\"}}\n");
+        writer.write("{\"line_id\":" + i + ",\"play_name\":\"Henry IV\",\"speech_number\":"
+            + (i % 50) + ",\"line_number\":\"1.1." + (i % 300) + "\","
+            + "\"speaker\":\"KING HENRY IV\",\"text_entry\":\"So shaken as we are, so wan "
+            + "with care, find we a time for frighted peace to pant " + i + "\"}\n");
+      }
+    }
+  }
+
+  @AfterClass
+  public static void deleteDump() throws IOException {
+    Files.deleteIfExists(dump);
+  }
+
+  @Test
+  public void testLoaderVsXContentBuilder() throws Exception {
+    double megabytes = Files.size(dump) / (1024.0 * 1024.0);
+    System.out.println(String.format("dump: %.1f MB, %d docs", megabytes, DOCS));
+    System.out.println("path\tMB/s\tpeak heap MB");
+
+    // warm up both paths
+    loadWithBuilders();
+    loadWithLoader(4);
+
+    HeapSampler sampler = new HeapSampler();
+    long start = System.nanoTime();
+    loadWithBuilders();
+    report("setSource(builder)", megabytes, start, sampler.finish());
+
+    for (int workers : new int[] {1, 2, 4}) {
+      sampler = new HeapSampler();
+      start = System.nanoTime();
+      NdjsonBulkLoader.Result result = loadWithLoader(workers);
+      report("mmap loader, " + workers + " workers", megabytes, start, sampler.finish());
+      if (result.getFailedActions() > 0 || count(indexName) != DOCS) {
+        System.err.println("Not all documents indexed: " + result);
+      }
+    }
+  }
+
+  private void loadWithBuilders() throws IOException, InterruptedException {
+    recreateIndex(indexName, 2);
+    BulkIngester ingester = BulkIngester.builder(client).setConcurrentRequests(4).build();
+    try (BufferedReader reader = Files.newBufferedReader(dump, StandardCharsets.UTF_8)) {
+      int id = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("{\"index\"")) {
+          continue;
+        }
+        Map<String, Object> source;
+        try (XContentParser parser =
+            XContentFactory.xContent(XContentType.JSON).createParser(line)) {
+          source = parser.mapOrdered();
+        }
+        XContentBuilder builder = XContentFactory.jsonBuilder().map(source);
+        ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(id++))
+            .setSource(builder).request());
+      }
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+  }
+
+  private NdjsonBulkLoader.Result loadWithLoader(int workers) throws IOException,
+      InterruptedException {
+    recreateIndex(indexName, 2);
+    return NdjsonBulkLoader.builder(client).setDefaultIndex(indexName).setDefaultType(typeName)
+        .setWorkers(workers).build().load(dump);
+  }
+
+  private void report(String path, double megabytes, long start, long peakHeap) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("%s\t%.1f\t%d", path, megabytes / seconds,
+        peakHeap / (1024 * 1024)));
+  }
+}
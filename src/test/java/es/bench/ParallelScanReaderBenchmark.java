@@ -0,0 +1,117 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.scroll.ParallelScanReader;
+
+/**
+ * Export throughput of the sequential scan/scroll loop of SearchApiOfficial against one scan per
+ * shard read by ParallelScanReader, through the callback and the merged stream.
+ */
+public class ParallelScanReaderBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 200000;
+  private static final int SHARDS = 4;
+  private static final int SIZE = 500;
+
+  @Test
+  public void testSequentialVsParallelScan() throws IOException, InterruptedException {
+    recreateIndex(indexName, SHARDS);
+    BulkIngester ingester = BulkIngester.builder(client).setConcurrentRequests(2).build();
+    for (int i = 0; i < DOCS; i++) {
+      ingester.add(client
+          .prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(
+              XContentFactory.jsonBuilder().startObject().field("user", "user" + (i % 100))
+                  .field("age", i % 80).field("message", "Try ES parallel scans ! " + i)
+                  .endObject()).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+
+    // warm up
+    sequential();
+    callback(SHARDS);
+
+    System.out.println("reader\tthreads\thits\tdocs/s\tMB/s");
+    for (int round = 0; round < 2; round++) {
+      sequential();
+      for (int threads : new int[] {1, 2, 4}) {
+        callback(threads);
+      }
+      stream(SHARDS);
+    }
+  }
+
+  private void sequential() {
+    long start = System.nanoTime();
+    long hits = 0;
+    long bytes = 0;
+    // size is per shard with SCAN
+    SearchResponse response =
+        client.prepareSearch(indexName).setSearchType(SearchType.SCAN)
+            .setScroll(TimeValue.timeValueMinutes(1)).setSize(SIZE).get();
+    while (true) {
+      response =
+          client.prepareSearchScroll(response.getScrollId())
+              .setScroll(TimeValue.timeValueMinutes(1)).get();
+      if (response.getHits().getHits().length == 0) {
+        break;
+      }
+      for (SearchHit hit : response.getHits()) {
+        hits++;
+        bytes += hit.sourceRef().length();
+      }
+    }
+    client.prepareClearScroll().addScrollId(response.getScrollId()).get();
+    report("sequential", 1, hits, bytes, start);
+  }
+
+  private void callback(int threads) throws InterruptedException {
+    AtomicLong bytes = new AtomicLong();
+    long start = System.nanoTime();
+    long hits =
+        reader(threads).forEach(hit -> bytes.addAndGet(hit.sourceRef().length()));
+    report("callback", threads, hits, bytes.get(), start);
+  }
+
+  private void stream(int threads) {
+    long start = System.nanoTime();
+    long hits = 0;
+    long bytes = 0;
+    try (Stream<SearchHit> stream = reader(threads).stream()) {
+      for (SearchHit hit : (Iterable<SearchHit>) stream::iterator) {
+        hits++;
+        bytes += hit.sourceRef().length();
+      }
+    }
+    report("stream", threads, hits, bytes, start);
+  }
+
+  private ParallelScanReader reader(int threads) {
+    // same hits per round trip as the sequential scan, which gets SIZE from every shard
+    return ParallelScanReader.builder(client, indexName).setSize(SIZE * SHARDS)
+        .setConcurrency(threads).build();
+  }
+
+  private void report(String reader, int threads, long hits, long bytes, long start) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (hits != DOCS) {
+      System.err.println(reader + " read " + hits + " hits instead of " + DOCS);
+    }
+    System.out.println(String.format("%s\t%d\t%d\t%.0f\t%.1f", reader, threads, hits, hits
+        / seconds, bytes / seconds / (1024 * 1024)));
+  }
+}
@@ -0,0 +1,101 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.search.PartitionedTerms;
+
+/**
+ * All the terms of a high-cardinality field, the sessions of website logs: one terms
+ * aggregation with size 0, every bucket at once, against iterating a PartitionedTerms, with and
+ * without the include regex. Wall time, peak heap of the node and client together, and whether
+ * every term came with its exact count.
+ */
+public class PartitionedTermsBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 600000;
+  private static final int SESSIONS = 300000;
+
+  @Test
+  public void testSingleVsPartitioned() throws IOException, InterruptedException {
+    recreateIndex(indexName, 2);
+    client.admin().indices().preparePutMapping(indexName).setType(typeName)
+        .setSource(XContentFactory.jsonBuilder().startObject().startObject(typeName)
+            .startObject("properties")
+            .startObject("session").field("type", "string").field("index", "not_analyzed")
+            .endObject()
+            .endObject().endObject().endObject()).get();
+    Map<String, Long> exact = new HashMap<>();
+    Random random = new Random(0);
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      String session = Long.toHexString(
+          (long) (SESSIONS * Math.pow(random.nextDouble(), 1.5)) * 0x9E3779B97F4A7C15L);
+      exact.merge(session, 1L, Long::sum);
+      ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(XContentFactory.jsonBuilder().startObject().field("session", session)
+              .endObject()).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+    System.out.println(String.format("%d docs, %d distinct sessions", DOCS, exact.size()));
+
+    System.out.println("method\twall ms\tpeak heap MB\tterms\trequests\texact");
+    for (int round = 0; round < 2; round++) {
+      HeapSampler heap = new HeapSampler();
+      long start = System.nanoTime();
+      Terms all = client.prepareSearch(indexName).setSearchType(SearchType.COUNT)
+          .addAggregation(AggregationBuilders.terms("sessions").field("session").size(0))
+          .get().getAggregations().get("sessions");
+      int matching = 0;
+      int terms = 0;
+      for (Terms.Bucket bucket : all.getBuckets()) {
+        terms++;
+        if (exact.getOrDefault(bucket.getKey(), -1L) == bucket.getDocCount()) {
+          matching++;
+        }
+      }
+      long wall = System.nanoTime() - start;
+      all = null;
+      print("size 0", wall, heap.finish(), terms, 1, matching, exact.size());
+
+      for (boolean singleValued : new boolean[] {false, true}) {
+        heap = new HeapSampler();
+        start = System.nanoTime();
+        matching = 0;
+        terms = 0;
+        try (PartitionedTerms partitioned = PartitionedTerms.builder(client, indexName,
+            "session").setPartitions(8).setSize(5000).setSingleValued(singleValued).build()) {
+          while (partitioned.hasNext()) {
+            Terms.Bucket bucket = partitioned.next();
+            terms++;
+            if (exact.getOrDefault(bucket.getKey(), -1L) == bucket.getDocCount()) {
+              matching++;
+            }
+          }
+          wall = System.nanoTime() - start;
+          print(singleValued ? "partitioned single-valued" : "partitioned regex", wall,
+              heap.finish(), terms, partitioned.getRequests(), matching, exact.size());
+        }
+      }
+    }
+  }
+
+  private static void print(String name, long wall, long peak, int terms, long requests,
+      int matching, int expected) {
+    System.out.println(String.format("%s\t%d\t%d\t%d\t%d\t%s", name,
+        TimeUnit.NANOSECONDS.toMillis(wall), peak >> 20, terms, requests,
+        matching == expected && terms == expected));
+  }
+}
@@ -0,0 +1,202 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.percentiles.PercentileRanks;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentiles;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.search.PercentileDigestStore;
+
+/**
+ * Rolling 1h, 24h and 7d latency percentiles and percentile ranks over nine days of website
+ * logs, as in PercentilesAggExamples and PercentileRanksAggExamples: the live aggregations over
+ * the window against merging the digests of a PercentileDigestStore, both compared with the
+ * exact values. Errors are in percentile points, the distance between the rank of the estimate
+ * and the requested percentile, and in percent of the exact value.
+ */
+public class PercentileDigestStoreBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 400000;
+  private static final long SPAN = TimeUnit.DAYS.toMillis(9);
+  private static final int QUERIES = 30;
+  private static final double[] PERCENTS = {50, 95, 99, 99.9};
+  private static final double[] RANKS = {210, 800};
+
+  @Test
+  public void testLiveVsDigests() throws IOException, InterruptedException {
+    recreateIndex(indexName, 2);
+    recreateIndex("idigests", 1);
+    client.admin().indices().prepareDelete("idigests").get();
+    client.admin().indices().preparePutMapping(indexName).setType(typeName)
+        .setSource(XContentFactory.jsonBuilder().startObject().startObject(typeName)
+            .startObject("properties").startObject("timestamp").field("type", "date")
+            .endObject().endObject().endObject().endObject()).get();
+    long now = System.currentTimeMillis();
+    long[] timestamps = new long[DOCS];
+    double[] latencies = new double[DOCS];
+    Random random = new Random(0);
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      timestamps[i] = now - SPAN + SPAN * i / DOCS;
+      // log-normal around 150ms, slower in the afternoon
+      long hour = TimeUnit.MILLISECONDS.toHours(timestamps[i]) % 24;
+      latencies[i] = Math.round(Math.exp(5 + 0.6 * random.nextGaussian()) * (hour >= 12
+          && hour < 18 ? 1.5 : 1));
+      ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(XContentFactory.jsonBuilder().startObject()
+              .field("timestamp", timestamps[i]).field("latency", latencies[i]).endObject())
+          .request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+
+    PercentileDigestStore store = PercentileDigestStore.builder(client, indexName, "timestamp",
+        "latency").setSideIndex("idigests").build();
+    long start = System.nanoTime();
+    int slots = store.refresh();
+    System.out.println(String.format("first refresh: %d slots in %d ms, %d digests, %d bytes",
+        slots, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), store.getDigests(),
+        store.getSizeInBytes()));
+    start = System.nanoTime();
+    slots = store.refresh();
+    System.out.println(String.format("next refresh within the minute: %d slots in %.2f ms",
+        slots, (System.nanoTime() - start) / 1e6));
+
+    System.out.println("window\tsearch\tdocs\tmerges\tp50 ms\tp99 ms\tmax pct points"
+        + "\tmax value err %\tmax rank err pct points");
+    for (int round = 0; round < 2; round++) {
+      for (TimeValue length : new TimeValue[] {TimeValue.timeValueHours(1),
+          TimeValue.timeValueHours(24), TimeValue.timeValueHours(7 * 24)}) {
+        PercentileDigestStore.Window window = store.window(length);
+        long from = window.getFrom();
+        long to = window.getTo();
+        double[] exact = window(timestamps, latencies, from, to);
+
+        LatencyRecorder live = new LatencyRecorder();
+        Percentiles percentiles = null;
+        PercentileRanks ranks = null;
+        for (int i = 0; i < QUERIES; i++) {
+          start = System.nanoTime();
+          SearchResponse response = client.prepareSearch(indexName)
+              .setSearchType(SearchType.COUNT)
+              .setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),
+                  FilterBuilders.rangeFilter("timestamp").gte(from).lt(to)))
+              .addAggregation(AggregationBuilders.percentiles("load_times").field("latency")
+                  .percentiles(PERCENTS))
+              .addAggregation(AggregationBuilders.percentileRanks("load_ranks")
+                  .field("latency").percentiles(RANKS)).get();
+          percentiles = response.getAggregations().get("load_times");
+          ranks = response.getAggregations().get("load_ranks");
+          live.record(System.nanoTime() - start);
+        }
+        LatencyRecorder merged = new LatencyRecorder();
+        double[] values = new double[PERCENTS.length];
+        double[] rankValues = new double[RANKS.length];
+        for (int i = 0; i < QUERIES; i++) {
+          start = System.nanoTime();
+          window = store.window(from, to);
+          for (int p = 0; p < PERCENTS.length; p++) {
+            values[p] = window.percentile(PERCENTS[p]);
+          }
+          for (int r = 0; r < RANKS.length; r++) {
+            rankValues[r] = window.percentileRank(RANKS[r]);
+          }
+          merged.record(System.nanoTime() - start);
+        }
+
+        double[] liveValues = new double[PERCENTS.length];
+        double[] liveRanks = new double[RANKS.length];
+        for (int p = 0; p < PERCENTS.length; p++) {
+          liveValues[p] = percentiles.percentile(PERCENTS[p]);
+        }
+        for (int r = 0; r < RANKS.length; r++) {
+          liveRanks[r] = ranks.percent(RANKS[r]);
+        }
+        print(length + "\tlive", exact, live, 1, liveValues, liveRanks);
+        print(length + "\tdigests", exact, merged, window.getMerges(), values, rankValues);
+      }
+    }
+
+    // a new store reads the digests back from the side index instead of searching again
+    PercentileDigestStore restored = PercentileDigestStore.builder(client, indexName,
+        "timestamp", "latency").setSideIndex("idigests").build();
+    store.refresh();
+    start = System.nanoTime();
+    slots = restored.refresh();
+    PercentileDigestStore.Window week = store.window(TimeValue.timeValueHours(7 * 24));
+    PercentileDigestStore.Window restoredWeek =
+        restored.window(TimeValue.timeValueHours(7 * 24));
+    // the digests read back are rebuilt from their centroids, so close rather than equal
+    System.out.println(String.format("restored %d digests in %d ms, %d slots searched, "
+        + "7d count %d and %d, p99 %.2f and %.2f", restored.getDigests(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), slots, week.getCount(),
+        restoredWeek.getCount(), week.percentile(99), restoredWeek.percentile(99)));
+  }
+
+  private static double[] window(long[] timestamps, double[] latencies, long from, long to) {
+    int first = lowerBound(timestamps, from);
+    int last = lowerBound(timestamps, to);
+    double[] values = Arrays.copyOfRange(latencies, first, last);
+    Arrays.sort(values);
+    return values;
+  }
+
+  private static int lowerBound(long[] timestamps, long value) {
+    int i = Arrays.binarySearch(timestamps, value);
+    if (i < 0) {
+      return -i - 1;
+    }
+    while (i > 0 && timestamps[i - 1] == value) {
+      i--;
+    }
+    return i;
+  }
+
+  private static void print(String name, double[] exact, LatencyRecorder latencies, int merges,
+      double[] values, double[] ranks) {
+    double maxPoints = 0;
+    double maxValueError = 0;
+    for (int p = 0; p < PERCENTS.length; p++) {
+      double expected = exact[Math.min(exact.length - 1,
+          (int) Math.ceil(PERCENTS[p] / 100 * exact.length) - 1)];
+      maxPoints = Math.max(maxPoints, Math.abs(rank(exact, values[p]) - PERCENTS[p]));
+      maxValueError = Math.max(maxValueError, Math.abs(values[p] - expected) * 100 / expected);
+    }
+    double maxRankError = 0;
+    for (int r = 0; r < RANKS.length; r++) {
+      maxRankError = Math.max(maxRankError, Math.abs(ranks[r] - rank(exact, RANKS[r])));
+    }
+    System.out.println(String.format("%s\t%d\t%d\t%.2f\t%.2f\t%.3f\t%.2f\t%.3f", name,
+        exact.length, merges, latencies.percentile(50), latencies.percentile(99), maxPoints,
+        maxValueError, maxRankError));
+  }
+
+  /**
+   * Percentage of the sorted values below value, counting half of the equal ones.
+   */
+  private static double rank(double[] sorted, double value) {
+    int below = 0;
+    int equal = 0;
+    for (double v : sorted) {
+      if (v < value) {
+        below++;
+      } else if (v == value) {
+        equal++;
+      }
+    }
+    return (below + equal / 2.0) * 100 / sorted.length;
+  }
+}
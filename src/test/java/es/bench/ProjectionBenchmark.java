@@ -0,0 +1,192 @@
+package es.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.codec.Projection;
+
+/**
+ * Response bytes and client CPU of searches reading three fields of large documents: the whole
+ * _source read with getSource() or sourceAsString(), against a Projection of the three fields,
+ * read for every hit or for the first tenth of them only, and a Projection of the same fields
+ * stored in the mapping.
+ */
+public class ProjectionBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 20000;
+  private static final int NOTES = 40;
+  private static final int SIZE = 100;
+  private static final int SEARCHES = 300;
+  private static final String[] PLAYS = {"Henry IV", "Hamlet", "Macbeth", "King Lear"};
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private static final Projection.Field<String> PLAY =
+      Projection.sourceField("play_name", String.class);
+  private static final Projection.Field<String> SPEAKER =
+      Projection.sourceField("speaker", String.class);
+  private static final Projection.Field<Long> LINE_ID =
+      Projection.storedField("line_id", Long.class);
+  private static final Projection PROJECTION =
+      Projection.builder().add(PLAY, SPEAKER, LINE_ID).build();
+  // the same fields, all stored: the shards do not parse the _source to filter it
+  private static final Projection.Field<String> STORED_PLAY =
+      Projection.storedField("play_name", String.class);
+  private static final Projection.Field<String> STORED_SPEAKER =
+      Projection.storedField("speaker", String.class);
+  private static final Projection STORED =
+      Projection.builder().add(STORED_PLAY, STORED_SPEAKER, LINE_ID).build();
+
+  interface Reader {
+    long read(SearchResponse response);
+  }
+
+  @Test
+  public void testFullSourceVsProjection() throws IOException, InterruptedException {
+    index();
+
+    Reader getSource = response -> {
+      long checksum = 0;
+      for (SearchHit hit : response.getHits().getHits()) {
+        Map<String, Object> source = hit.getSource();
+        checksum += source.get("play_name").hashCode() + source.get("speaker").hashCode()
+            + ((Number) source.get("line_id")).longValue();
+      }
+      return checksum;
+    };
+    Reader sourceAsString = response -> {
+      long checksum = 0;
+      for (SearchHit hit : response.getHits().getHits()) {
+        checksum += hit.sourceAsString().length();
+      }
+      return checksum;
+    };
+    Reader projected = response -> read(response, SIZE);
+    Reader projectedTenth = response -> read(response, SIZE / 10);
+    Reader stored = response -> {
+      long checksum = 0;
+      for (Projection.ProjectedHit hit : STORED.hits(response.getHits())) {
+        checksum += hit.get(STORED_PLAY).hashCode() + hit.get(STORED_SPEAKER).hashCode()
+            + hit.get(LINE_ID);
+      }
+      return checksum;
+    };
+
+    // warm up
+    run("warm up", null, getSource);
+    run("warm up", PROJECTION, projected);
+    run("warm up", STORED, stored);
+
+    System.out.println("read\tsearches\tbytes/response\tms/search\tclient cpu us/search"
+        + "\tclient bytes/search");
+    for (int round = 0; round < 2; round++) {
+      run("getSource()", null, getSource);
+      run("sourceAsString()", null, sourceAsString);
+      run("projection", PROJECTION, projected);
+      run("projection, 1/10 read", PROJECTION, projectedTenth);
+      run("projection, stored fields", STORED, stored);
+    }
+  }
+
+  private static long read(SearchResponse response, int hits) {
+    long checksum = 0;
+    int i = 0;
+    for (Projection.ProjectedHit hit : PROJECTION.hits(response.getHits())) {
+      if (i++ >= hits) {
+        break;
+      }
+      checksum += hit.get(PLAY).hashCode() + hit.get(SPEAKER).hashCode() + hit.get(LINE_ID);
+    }
+    return checksum;
+  }
+
+  private void run(String name, Projection projection, Reader reader) throws IOException {
+    Random random = new Random(0);
+    long responseBytes = 0;
+    long cpuNanos = 0;
+    long allocated = 0;
+    long checksum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < SEARCHES; i++) {
+      SearchRequestBuilder search =
+          client.prepareSearch(indexName).setQuery(
+              QueryBuilders.termQuery("speaker", "speaker" + random.nextInt(50))).setSize(SIZE);
+      if (projection != null) {
+        projection.apply(search);
+      } else {
+        search.addField("line_id").addField("_source");
+      }
+      SearchResponse response = search.get();
+      long cpuStart = THREADS.getCurrentThreadCpuTime();
+      AllocationMeter meter = new AllocationMeter();
+      checksum += reader.read(response);
+      allocated += meter.allocatedBytes();
+      cpuNanos += THREADS.getCurrentThreadCpuTime() - cpuStart;
+      if (i % 10 == 0) {
+        // what a transport client would receive
+        BytesStreamOutput out = new BytesStreamOutput();
+        response.writeTo(out);
+        responseBytes += out.size() * 10;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    if (name.equals("warm up") || checksum == 42) {
+      return;
+    }
+    System.out.println(String.format("%s\t%d\t%d\t%.3f\t%.1f\t%d", name, SEARCHES,
+        responseBytes / SEARCHES, elapsed / 1e6 / SEARCHES, cpuNanos / 1e3 / SEARCHES,
+        allocated / SEARCHES));
+  }
+
+  private void index() throws IOException, InterruptedException {
+    recreateIndex(indexName, 1);
+    client.admin().indices().preparePutMapping(indexName).setType(typeName)
+        .setSource(XContentFactory.jsonBuilder().startObject().startObject(typeName)
+            .startObject("properties")
+            .startObject("line_id").field("type", "long").field("store", true).endObject()
+            .startObject("speaker").field("type", "string").field("index", "not_analyzed")
+            .field("store", true).endObject()
+            .startObject("play_name").field("type", "string").field("store", true).endObject()
+            .endObject().endObject().endObject()).get();
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      ingester.add(client.prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(doc(i)).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+  }
+
+  /**
+   * A line with the large annotations the real documents carry, about 6kb.
+   */
+  private static XContentBuilder doc(int i) throws IOException {
+    XContentBuilder doc =
+        XContentFactory.jsonBuilder().startObject().field("line_id", i)
+            .field("play_name", PLAYS[i % PLAYS.length]).field("speech_number", i / 20)
+            .field("line_number", "1." + (i % 300)).field("speaker", "speaker" + (i % 50))
+            .field("text_entry", "So shaken as we are, so wan with care, line " + i)
+            .startArray("notes");
+    for (int n = 0; n < NOTES; n++) {
+      doc.startObject().field("author", "editor" + n).field("year", 1600 + n)
+          .field("text", "Find we a time for frighted peace to pant, and breathe short-winded "
+              + "accents of new broils " + n).endObject();
+    }
+    return doc.endArray().endObject();
+  }
+}
@@ -0,0 +1,106 @@
+package es.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.scroll.ScrollExporter;
+import es.scroll.ScrollIterator;
+
+/**
+ * Export throughput and allocation of the consumer thread: hit.sourceAsString() written line by
+ * line, as testScrollSearch prints it, against ScrollExporter without and with compression. Both
+ * read the scroll through a ScrollIterator.
+ */
+public class ScrollExporterBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 200000;
+  private static final int SHARDS = 4;
+  private static final int SIZE = 250;
+
+  @Test
+  public void testStringVsExporter() throws IOException, InterruptedException {
+    recreateIndex(indexName, SHARDS);
+    BulkIngester ingester = BulkIngester.builder(client).setConcurrentRequests(2).build();
+    for (int i = 0; i < DOCS; i++) {
+      ingester.add(client
+          .prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(
+              XContentFactory.jsonBuilder().startObject().field("user", "user" + (i % 100))
+                  .field("age", i % 80).field("message", "Try ES scroll exports ! " + i)
+                  .field("tags", new String[] {"scroll", "export", "ndjson"}).endObject())
+          .request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+
+    Path directory = Files.createTempDirectory("es-export");
+    // warm up
+    strings(directory);
+    exporter(directory, ScrollExporter.Compression.NONE);
+
+    System.out.println("writer\tfiles\tMB out\tMB/s\talloc MB");
+    for (int round = 0; round < 2; round++) {
+      strings(directory);
+      exporter(directory, ScrollExporter.Compression.NONE);
+      exporter(directory, ScrollExporter.Compression.GZIP);
+    }
+  }
+
+  private SearchRequestBuilder search() {
+    return client.prepareSearch(indexName).setSearchType(SearchType.SCAN).setSize(SIZE);
+  }
+
+  private void strings(Path directory) throws IOException {
+    Path file = directory.resolve("strings.ndjson");
+    AllocationMeter allocation = new AllocationMeter();
+    long start = System.nanoTime();
+    long docs = 0;
+    try (ScrollIterator hits = ScrollIterator.builder(client, search()).build();
+        BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      while (hits.hasNext()) {
+        writer.write(hits.next().sourceAsString());
+        writer.write('\n');
+        docs++;
+      }
+    }
+    report("strings", 1, docs, Files.size(file), Files.size(file), start, allocation);
+  }
+
+  private void exporter(Path directory, ScrollExporter.Compression compression)
+      throws IOException {
+    AllocationMeter allocation = new AllocationMeter();
+    long start = System.nanoTime();
+    ScrollExporter exporter =
+        ScrollExporter.builder(client, search(), directory, "export")
+            .setCompression(compression)
+            .setMaxFileSize(new ByteSizeValue(8, ByteSizeUnit.MB)).build();
+    List<Path> files = exporter.export();
+    report("exporter " + compression, files.size(), exporter.getDocs(),
+        exporter.getSourceBytes(), exporter.getWrittenBytes(), start, allocation);
+  }
+
+  private void report(String writer, int files, long docs, long sourceBytes, long writtenBytes,
+      long start, AllocationMeter allocation) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (docs != DOCS) {
+      System.err.println(writer + " wrote " + docs + " docs instead of " + DOCS);
+    }
+    System.out.println(String.format("%s\t%d\t%.1f\t%.1f\t%.1f", writer, files, writtenBytes
+        / (1024.0 * 1024), sourceBytes / seconds / (1024 * 1024), allocation.allocatedBytes()
+        / (1024.0 * 1024)));
+  }
+}
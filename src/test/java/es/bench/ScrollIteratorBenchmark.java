@@ -0,0 +1,134 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.scroll.ScrollIterator;
+
+/**
+ * Wall time of the fetch-then-process scroll loop of SearchApiOfficial against ScrollIterator,
+ * for a consumer that blocks a fixed time per page, like a write to a downstream store, and the
+ * number of open search contexts left after an early exit. The consumer sleeps rather than
+ * spins so that the overlap also shows on a single core, where the embedded node and the
+ * consumer compete for the same CPU.
+ */
+public class ScrollIteratorBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 100000;
+  private static final int SHARDS = 4;
+  private static final int SIZE = 250;
+  private static final long PAGE_MILLIS = 5;
+
+  @Test
+  public void testLoopVsPrefetch() throws IOException, InterruptedException {
+    index();
+
+    // warm up
+    loop();
+    prefetch(1);
+
+    System.out.println("reader\tlook-ahead\thits\tms");
+    for (int round = 0; round < 2; round++) {
+      loop();
+      for (int lookAhead : new int[] {1, 2, 4}) {
+        prefetch(lookAhead);
+      }
+    }
+  }
+
+  @Test
+  public void testEarlyExitClearsScroll() throws IOException, InterruptedException {
+    index();
+    try (ScrollIterator hits = ScrollIterator.builder(client, search()).setLookAhead(2).build()) {
+      for (int i = 0; i < 10 && hits.hasNext(); i++) {
+        hits.next();
+      }
+    }
+    Thread.sleep(500);
+    System.out.println("open search contexts after early exit: "
+        + client.admin().indices().prepareStats(indexName).setSearch(true).get().getTotal()
+            .getSearch().getOpenContexts());
+  }
+
+  private void index() throws IOException, InterruptedException {
+    recreateIndex(indexName, SHARDS);
+    BulkIngester ingester = BulkIngester.builder(client).setConcurrentRequests(2).build();
+    for (int i = 0; i < DOCS; i++) {
+      ingester.add(client
+          .prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(
+              XContentFactory.jsonBuilder().startObject().field("user", "user" + (i % 100))
+                  .field("age", i % 80).field("message", "Try ES scroll prefetch ! " + i)
+                  .endObject()).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+  }
+
+  private SearchRequestBuilder search() {
+    return client.prepareSearch(indexName).setSearchType(SearchType.SCAN).setSize(SIZE);
+  }
+
+  private void loop() {
+    long start = System.nanoTime();
+    long hits = 0;
+    SearchResponse response = search().setScroll(TimeValue.timeValueMinutes(1)).get();
+    while (true) {
+      response =
+          client.prepareSearchScroll(response.getScrollId())
+              .setScroll(TimeValue.timeValueMinutes(1)).get();
+      if (response.getHits().getHits().length == 0) {
+        break;
+      }
+      for (SearchHit hit : response.getHits()) {
+        hit.getSource();
+        hits++;
+      }
+      write();
+    }
+    client.prepareClearScroll().addScrollId(response.getScrollId()).get();
+    report("loop", 0, hits, start);
+  }
+
+  private void prefetch(int lookAhead) {
+    long start = System.nanoTime();
+    long hits = 0;
+    try (ScrollIterator iterator =
+        ScrollIterator.builder(client, search()).setLookAhead(lookAhead).build()) {
+      while (iterator.hasNext()) {
+        iterator.next().getSource();
+        // a scan page holds SIZE hits of every shard
+        if (++hits % (SIZE * SHARDS) == 0) {
+          write();
+        }
+      }
+    }
+    report("prefetch", lookAhead, hits, start);
+  }
+
+  private static void write() {
+    try {
+      Thread.sleep(PAGE_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void report(String reader, int lookAhead, long hits, long start) {
+    if (hits != DOCS) {
+      System.err.println(reader + " read " + hits + " hits instead of " + DOCS);
+    }
+    System.out.println(String.format("%s\t%d\t%d\t%d", reader, lookAhead, hits,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+  }
+}
@@ -0,0 +1,110 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.scroll.ScrollManager;
+
+/**
+ * Search contexts left open on the node by abandoned scrolls, with the fixed 60s keep-alive of
+ * testScrollSearch and through a ScrollManager, and the keep-alive the manager picks for
+ * consumers of different speeds.
+ */
+public class ScrollManagerBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 20000;
+  private static final int SHARDS = 4;
+  private static final int SCROLLS = 10;
+
+  @Test
+  public void testAbandonedScrolls() throws IOException, InterruptedException {
+    index();
+
+    System.out.println("scrolls\tnode contexts\tmanaged open\tabandoned\tleaks reported");
+    for (int i = 0; i < SCROLLS; i++) {
+      // read one page and forget about it, as a consumer that throws would
+      String scrollId =
+          search().setScroll(TimeValue.timeValueSeconds(60)).get().getScrollId();
+      client.prepareSearchScroll(scrollId).setScroll(TimeValue.timeValueSeconds(60)).get();
+    }
+    System.out.println(String.format("fixed 60s\t%d\t-\t-\t-", openContexts()));
+    client.prepareClearScroll().addScrollId("_all").get();
+
+    int[] leaks = new int[1];
+    List<ScrollManager.Scroll> kept = new ArrayList<>();
+    try (ScrollManager manager =
+        ScrollManager.builder(client).setCheckInterval(TimeValue.timeValueMillis(100))
+            .setLeakThreshold(TimeValue.timeValueMillis(200))
+            .setLeakListener(info -> leaks[0]++).build()) {
+      for (int i = 0; i < SCROLLS; i++) {
+        // the first half is kept referenced and reported as leaks, the second is collected
+        ScrollManager.Scroll scroll = manager.open(search());
+        scroll.nextPage();
+        if (i < SCROLLS / 2) {
+          kept.add(scroll);
+        }
+      }
+      System.out.println(String.format("managed\t%d\t%d\t%d\t%d", openContexts(),
+          manager.getOpenScrolls(), manager.getAbandoned(), leaks[0]));
+      System.gc();
+      Thread.sleep(500);
+      System.out.println(String.format("managed, after gc\t%d\t%d\t%d\t%d", openContexts(),
+          manager.getOpenScrolls(), manager.getAbandoned(), leaks[0]));
+      System.out.println("still referenced: " + kept.size());
+    }
+    System.out.println(String.format("manager closed\t%d\t-\t-\t-", openContexts()));
+  }
+
+  @Test
+  public void testAdaptiveKeepAlive() throws IOException, InterruptedException {
+    index();
+    System.out.println("ms per page\tkeep-alive");
+    try (ScrollManager manager =
+        ScrollManager.builder(client).setMinKeepAlive(TimeValue.timeValueSeconds(1)).build()) {
+      for (int millis : new int[] {10, 500, 2000}) {
+        try (ScrollManager.Scroll scroll = manager.open(search())) {
+          for (int page = 0; page < 4 && scroll.nextPage().length > 0; page++) {
+            Thread.sleep(millis);
+          }
+          scroll.nextPage();
+          System.out.println(millis + "\t" + scroll.getKeepAlive());
+        }
+      }
+      System.out.println("closed early: " + manager.getClosed() + ", open contexts: "
+          + manager.getOpenContexts());
+    }
+  }
+
+  private void index() throws IOException, InterruptedException {
+    recreateIndex(indexName, SHARDS);
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    for (int i = 0; i < DOCS; i++) {
+      ingester.add(client
+          .prepareIndex(indexName, typeName, String.valueOf(i))
+          .setSource(
+              XContentFactory.jsonBuilder().startObject().field("user", "user" + (i % 100))
+                  .field("message", "Try ES scroll contexts ! " + i).endObject()).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(indexName);
+  }
+
+  private SearchRequestBuilder search() {
+    return client.prepareSearch(indexName).setSearchType(SearchType.SCAN).setSize(100);
+  }
+
+  private long openContexts() {
+    return client.admin().indices().prepareStats(indexName).setSearch(true).get().getTotal()
+        .getSearch().getOpenContexts();
+  }
+}
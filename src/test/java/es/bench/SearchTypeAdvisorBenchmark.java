@@ -0,0 +1,126 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.search.SearchTypeAdvisor;
+
+/**
+ * Latency of searches on a shakespeare index copying the DFS_QUERY_THEN_FETCH and explain of
+ * SearchApiOfficial.testSearch, sent as written and after a SearchTypeAdvisor picked their
+ * search type.
+ */
+public class SearchTypeAdvisorBenchmark extends ESLocalNodeTestBase {
+
+  private static final String INDEX = "shakespeare";
+  private static final int SHARDS = 5;
+  private static final int LINES = 110000;
+  private static final String[] PLAYS = {"Henry IV", "Hamlet", "Macbeth", "King Lear",
+      "Othello", "The Tempest", "Julius Caesar", "Twelfth Night"};
+  private static final String[] WORDS = {"king", "henry", "lord", "love", "death", "crown",
+      "night", "blood", "sweet", "heaven", "honour", "war", "peace", "queen", "father", "son",
+      "sword", "soul", "fair", "grace", "time", "world", "heart", "eyes", "hand", "good"};
+  private static final int SEARCHES = 500;
+
+  @Test
+  public void testAsWrittenVsAdvised() throws IOException, InterruptedException {
+    index();
+    SearchTypeAdvisor advisor = SearchTypeAdvisor.builder(client).build();
+
+    IntFunction<SearchRequestBuilder> scored = i ->
+        client.prepareSearch(INDEX).setSearchType(SearchType.DFS_QUERY_THEN_FETCH)
+            .setQuery(QueryBuilders.termQuery("text_entry", WORDS[i % WORDS.length]))
+            .setSize(60).setExplain(true);
+    IntFunction<SearchRequestBuilder> sorted = i ->
+        client.prepareSearch(INDEX).setSearchType(SearchType.DFS_QUERY_THEN_FETCH)
+            .setQuery(QueryBuilders.termQuery("text_entry", WORDS[i % WORDS.length]))
+            .addSort("line_id", SortOrder.ASC).setSize(60).setExplain(true);
+    IntFunction<SearchRequestBuilder> aggregation = i ->
+        client.prepareSearch(INDEX).setSearchType(SearchType.DFS_QUERY_THEN_FETCH)
+            .setQuery(QueryBuilders.termQuery("text_entry", WORDS[i % WORDS.length]))
+            .addAggregation(AggregationBuilders.terms("plays").field("play_name")).setSize(0);
+
+    // warm up
+    run("warm up", scored, null);
+    run("warm up", scored, advisor);
+
+    System.out.println("search\tsent as\tsearches\tmean ms\tp50 ms\tp99 ms");
+    for (int round = 0; round < 2; round++) {
+      run("scored, size 60", scored, null);
+      run("scored, size 60", scored, advisor);
+      run("sorted by line_id", sorted, null);
+      run("sorted by line_id", sorted, advisor);
+      run("aggregation, size 0", aggregation, null);
+      run("aggregation, size 0", aggregation, advisor);
+    }
+    System.out.println(String.format("advised %d, dfs avoided %d, counts %d, explain stripped %d",
+        advisor.getAdvised(), advisor.getDfsAvoided(), advisor.getCounts(),
+        advisor.getExplainStripped()));
+
+    // small shards keep the requested DFS, or get it when accurate scores are preferred
+    SearchTypeAdvisor small =
+        SearchTypeAdvisor.builder(client).setDfsMaxDocsPerShard(LINES).setDebug(true).build();
+    SearchTypeAdvisor accurate =
+        SearchTypeAdvisor.builder(client).setDfsMaxDocsPerShard(LINES)
+            .setPreferAccurateScores(true).build();
+    System.out.println("small shards: " + small.advise(scored.apply(0)) + ", accurate: "
+        + accurate.advise(client.prepareSearch(INDEX).setQuery(
+            QueryBuilders.termQuery("text_entry", "king"))));
+  }
+
+  private void run(String name, IntFunction<SearchRequestBuilder> searches,
+      SearchTypeAdvisor advisor) {
+    LatencyRecorder latencies = new LatencyRecorder();
+    SearchType sentAs = null;
+    long start = System.nanoTime();
+    for (int i = 0; i < SEARCHES; i++) {
+      long searchStart = System.nanoTime();
+      SearchRequestBuilder search = searches.apply(i);
+      sentAs = advisor == null ? search.request().searchType() : advisor.advise(search);
+      search.get();
+      latencies.record(System.nanoTime() - searchStart);
+    }
+    if (name.equals("warm up")) {
+      return;
+    }
+    System.out.println(String.format("%s\t%s%s\t%d\t%.3f\t%.2f\t%.2f", name,
+        sentAs.name().toLowerCase(), advisor == null ? "" : " (advised)", SEARCHES,
+        (System.nanoTime() - start) / 1e6 / SEARCHES, latencies.percentile(50),
+        latencies.percentile(99)));
+  }
+
+  private void index() throws IOException, InterruptedException {
+    recreateIndex(INDEX, SHARDS);
+    BulkIngester ingester = BulkIngester.builder(client).build();
+    Random random = new Random(0);
+    for (int i = 0; i < LINES; i++) {
+      StringBuilder line = new StringBuilder();
+      for (int w = 3 + random.nextInt(8); w > 0; w--) {
+        line.append(WORDS[(int) Math.abs(random.nextGaussian() * WORDS.length / 3)
+            % WORDS.length]).append(' ');
+      }
+      ingester.add(client
+          .prepareIndex(INDEX, typeName, String.valueOf(i))
+          .setSource(
+              XContentFactory.jsonBuilder().startObject().field("line_id", i)
+                  .field("play_name", PLAYS[i / (LINES / PLAYS.length) % PLAYS.length])
+                  .field("speech_number", i / 20).field("line_number", "1." + (i % 300))
+                  .field("speaker", "SPEAKER " + (i % 50))
+                  .field("text_entry", line.toString().trim()).endObject()).request());
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    count(INDEX);
+  }
+}
@@ -0,0 +1,110 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.bulk.ShardBulkIndexer;
+
+/**
+ * Throughput and bulk latency percentiles of mixed bulks (BulkIngester) against per-shard bulks
+ * (ShardBulkIndexer), same number of actions per bulk and of bulks in flight.
+ */
+public class ShardBulkIndexerBenchmark extends ESLocalNodeTestBase {
+
+  private static final int DOCS = 200000;
+  private static final int SHARDS = 4;
+  private static final int BULK_ACTIONS = 1000;
+  private static final int CONCURRENT_REQUESTS = 4;
+
+  @Test
+  public void testClientSideShardMatchesCluster() throws IOException, InterruptedException {
+    recreateIndex(indexName, SHARDS);
+    ShardBulkIndexer indexer = ShardBulkIndexer.builder(client).build();
+    for (int i = 0; i < 1000; i++) {
+      indexer.add(request(i));
+    }
+    indexer.awaitClose(1, TimeUnit.MINUTES);
+    count(indexName);
+
+    SearchResponse response = client.prepareSearch(indexName).setSize(1000).get();
+    int mismatches = 0;
+    for (SearchHit hit : response.getHits()) {
+      int expected =
+          indexer.shardId(new IndexRequest(indexName, typeName, hit.getId())).id();
+      if (expected != hit.getShard().shardId()) {
+        mismatches++;
+      }
+    }
+    System.out.println("client-side shard mismatches: " + mismatches + " of "
+        + response.getHits().getHits().length);
+  }
+
+  @Test
+  public void testMixedVsPerShardBulks() throws IOException, InterruptedException {
+    // warm up
+    runMixed(DOCS / 4);
+    runPerShard(DOCS / 4);
+
+    System.out.println("bulks\tdocs/s\tp50 ms\tp99 ms\tmax ms");
+    for (int round = 0; round < 2; round++) {
+      runMixed(DOCS);
+      runPerShard(DOCS);
+    }
+  }
+
+  private void runMixed(int docs) throws IOException, InterruptedException {
+    recreateIndex(indexName, SHARDS);
+    LatencyRecorder latencies = new LatencyRecorder();
+    BulkIngester ingester =
+        BulkIngester.builder(client).setBulkActions(BULK_ACTIONS)
+            .setConcurrentRequests(CONCURRENT_REQUESTS).setListener(latencies).build();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < docs; i++) {
+      ingester.add(request(i));
+    }
+    ingester.awaitClose(5, TimeUnit.MINUTES);
+    report("mixed", docs, start, latencies);
+  }
+
+  private void runPerShard(int docs) throws IOException, InterruptedException {
+    recreateIndex(indexName, SHARDS);
+    LatencyRecorder latencies = new LatencyRecorder();
+    ShardBulkIndexer indexer =
+        ShardBulkIndexer.builder(client).setBulkActions(BULK_ACTIONS)
+            .setConcurrentRequests(CONCURRENT_REQUESTS).setListener(latencies).build();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < docs; i++) {
+      indexer.add(request(i));
+    }
+    indexer.awaitClose(5, TimeUnit.MINUTES);
+    report("per shard", docs, start, latencies);
+  }
+
+  private IndexRequest request(int i) throws IOException {
+    return client
+        .prepareIndex(indexName, typeName, String.valueOf(i))
+        .setSource(
+            XContentFactory.jsonBuilder().startObject().field("user", "user" + (i % 100))
+                .field("age", i % 80).field("message", "Try ES shard bulks ! " + i).endObject())
+        .request();
+  }
+
+  private void report(String bulks, int docs, long start, LatencyRecorder latencies) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (count(indexName) != docs) {
+      System.err.println("Not all documents indexed with " + bulks + " bulks");
+    }
+    System.out.println(String.format("%s\t%.0f\t%.1f\t%.1f\t%.1f", bulks, docs / seconds,
+        latencies.percentile(50), latencies.percentile(99), latencies.percentile(100)));
+  }
+}
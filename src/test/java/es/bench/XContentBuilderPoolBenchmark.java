@@ -0,0 +1,98 @@
+package es.bench;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+import es.ESLocalNodeTestBase;
+import es.bulk.BulkIngester;
+import es.xcontent.XContentBuilderPool;
+
+/**
+ * Bytes allocated by the producer thread per document, with a fresh jsonBuilder() per document
+ * and with the recycled builder, first for serialization only and then per indexed document.
+ */
+public class XContentBuilderPoolBenchmark extends ESLocalNodeTestBase {
+
+  private static final int SERIALIZED_DOCS = 1000000;
+  private static final int INDEXED_DOCS = 100000;
+
+  private final Date postDate = new Date();
+
+  @Test
+  public void testSerializationAllocation() throws IOException {
+    // warm up
+    serializeFresh(SERIALIZED_DOCS);
+    serializePooled(SERIALIZED_DOCS);
+
+    System.out.println("path\tbytes/doc\tns/doc");
+    AllocationMeter meter = new AllocationMeter();
+    long start = System.nanoTime();
+    serializeFresh(SERIALIZED_DOCS);
+    report("jsonBuilder()", meter, start, SERIALIZED_DOCS);
+
+    meter = new AllocationMeter();
+    start = System.nanoTime();
+    serializePooled(SERIALIZED_DOCS);
+    report("pooled", meter, start, SERIALIZED_DOCS);
+  }
+
+  @Test
+  public void testIndexingAllocation() throws IOException, InterruptedException {
+    System.out.println("path\tbytes/indexed doc\tns/doc");
+    for (boolean pooled : new boolean[] {false, true, false, true}) {
+      recreateIndex(indexName, 1);
+      BulkIngester ingester = BulkIngester.builder(client).setConcurrentRequests(2).build();
+
+      AllocationMeter meter = new AllocationMeter();
+      long start = System.nanoTime();
+      for (int i = 0; i < INDEXED_DOCS; i++) {
+        String id = String.valueOf(i);
+        int n = i;
+        if (pooled) {
+          ingester.add(client.prepareIndex(indexName, typeName, id)
+              .setSource(XContentBuilderPool.json().serialize(builder -> document(builder, n)))
+              .request());
+        } else {
+          ingester.add(client.prepareIndex(indexName, typeName, id)
+              .setSource(document(XContentFactory.jsonBuilder(), i)).request());
+        }
+      }
+      report(pooled ? "pooled" : "jsonBuilder()", meter, start, INDEXED_DOCS);
+      ingester.awaitClose(1, TimeUnit.MINUTES);
+    }
+  }
+
+  private long serializeFresh(int docs) throws IOException {
+    long length = 0;
+    for (int i = 0; i < docs; i++) {
+      length += document(XContentFactory.jsonBuilder(), i).bytes().length();
+    }
+    return length;
+  }
+
+  private long serializePooled(int docs) throws IOException {
+    long length = 0;
+    for (int i = 0; i < docs; i++) {
+      int n = i;
+      BytesReference bytes = XContentBuilderPool.json().serialize(builder -> document(builder, n));
+      length += bytes.length();
+    }
+    return length;
+  }
+
+  private XContentBuilder document(XContentBuilder builder, int i) throws IOException {
+    return builder.startObject().field("user", "destiny1020").field("postDate", postDate)
+        .field("message", "Try ES !").field("age", i % 80).endObject();
+  }
+
+  private void report(String path, AllocationMeter meter, long start, int docs) {
+    System.out.println(String.format("%s\t%d\t%d", path, meter.allocatedBytes() / docs,
+        (System.nanoTime() - start) / docs));
+  }
+}
@@ -0,0 +1,61 @@
+package es.model;
+
+import java.util.Date;
+
+/**
+ * The documents of itest/ttest, as indexed by ESTestBase.prepareSearchData().
+ */
+public class Tweet {
+
+  private String user;
+  private Date postDate;
+  private String message;
+  private int age;
+
+  public Tweet() {}
+
+  public Tweet(String user, Date postDate, String message, int age) {
+    this.user = user;
+    this.postDate = postDate;
+    this.message = message;
+    this.age = age;
+  }
+
+  public String getUser() {
+    return user;
+  }
+
+  public void setUser(String user) {
+    this.user = user;
+  }
+
+  public Date getPostDate() {
+    return postDate;
+  }
+
+  public void setPostDate(Date postDate) {
+    this.postDate = postDate;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public void setMessage(String message) {
+    this.message = message;
+  }
+
+  public int getAge() {
+    return age;
+  }
+
+  public void setAge(int age) {
+    this.age = age;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Tweet[user: %s, postDate: %s, message: %s, age: %d]", user, postDate,
+        message, age);
+  }
+}
@@ -2,15 +2,20 @@ package es.official.api;
 
 import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.junit.Test;
 
 import es.ESTestBase;
+import es.bulk.BulkIngester;
 
 public class BulkApiOfficial extends ESTestBase {
 
@@ -36,12 +41,43 @@ public class BulkApiOfficial extends ESTestBase {
     bulkRequest.add(irb1);
     bulkRequest.add(irb2);
 
-    BulkResponse bulkResponse = bulkRequest.execute().actionGet();
+    BulkResponse bulkResponse = bulkRetryHandler.execute(client, bulkRequest.request());
     if (bulkResponse.hasFailures()) {
       // process failures by iterating through each bulk response item
-      System.err.println("Has failures");
+      System.err.println("Has failures: " + bulkResponse.buildFailureMessage());
     } else {
       System.out.println("Bulk OK !");
     }
   }
+
+  /**
+   * Same documents through BulkIngester, which flushes on actions/size/interval and keeps a
+   * bounded number of bulks in flight
+   */
+  @Test
+  public void testBulkIngester() throws IOException, InterruptedException {
+    BulkIngester ingester =
+        BulkIngester.builder(client).setRetryHandler(bulkRetryHandler).setBulkActions(1000)
+            .setBulkSize(new ByteSizeValue(5, ByteSizeUnit.MB))
+            .setFlushInterval(TimeValue.timeValueSeconds(5)).setConcurrentRequests(2).build();
+
+    ingester.add(client
+        .prepareIndex(indexName, typeName, "1")
+        .setSource(
+            XContentFactory.jsonBuilder().startObject().field("user", "destiny1020")
+                .field("postDate", new Date()).field("message", "Try ES !").field("age", 20)
+                .endObject()).request());
+    ingester.add(client
+        .prepareIndex(indexName, typeName, "2")
+        .setSource(
+            XContentFactory.jsonBuilder().startObject().field("user", "maruko0101")
+                .field("postDate", new Date()).field("message", "Try ES Too !").field("age", 10)
+                .endObject()).request());
+
+    if (ingester.awaitClose(1, TimeUnit.MINUTES)) {
+      System.out.println(ingester.stats());
+    } else {
+      System.err.println("Bulk ingestion timed out");
+    }
+  }
 }
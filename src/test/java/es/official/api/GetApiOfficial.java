@@ -4,6 +4,8 @@ import org.elasticsearch.action.get.GetResponse;
 import org.junit.Test;
 
 import es.ESTestBase;
+import es.codec.DocumentCodec;
+import es.model.Tweet;
 
 /**
  * http://www.elasticsearch.org/guide/en/elasticsearch/client/java-api/current/get.html
@@ -24,4 +26,13 @@ public class GetApiOfficial extends ESTestBase {
     // field.getValues()));
     // });
   }
+
+  @Test
+  public void testGetTypedDocument() {
+    GetResponse getResponse = client.prepareGet(indexName, typeName, "1").execute().actionGet();
+
+    // source bytes straight into the POJO, no Map or String in between
+    Tweet tweet = DocumentCodec.of(Tweet.class).fromGet(getResponse);
+    System.out.println("Tweet: " + tweet);
+  }
 }
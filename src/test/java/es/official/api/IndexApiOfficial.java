@@ -4,11 +4,15 @@ import java.io.IOException;
 import java.util.Date;
 
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.junit.Test;
 
 import es.ESTestBase;
+import es.codec.DocumentCodec;
+import es.model.Tweet;
+import es.xcontent.XContentBuilderPool;
 
 /**
  * http://www.elasticsearch.org/guide/en/elasticsearch/client/java-api/current/index_.html
@@ -51,4 +55,33 @@ public class IndexApiOfficial extends ESTestBase {
 
   }
 
+  @Test
+  public void testIndexWithPooledBuilder() throws IOException {
+    // Test 3: same document, serialized through a recycled per-thread buffer instead of a fresh
+    // jsonBuilder(), the returned bytes are a copy so the buffer can be reused right away
+    BytesReference source =
+        XContentBuilderPool.json().serialize(
+            builder -> builder.startObject().field("user", "destiny1020")
+                .field("postDate", new Date()).field("message", "Try ES").endObject());
+
+    System.out.println(source.toUtf8());
+
+    IndexResponse indexResponse =
+        client.prepareIndex("itest", "ttest", "1").setSource(source).execute().actionGet();
+
+    System.out.println("Version: " + indexResponse.getVersion());
+  }
+
+  @Test
+  public void testIndexPojo() {
+    // Test 4: generate json doc from a bean with Jackson
+    Tweet tweet = new Tweet("destiny1020", new Date(), "Try ES", 20);
+
+    IndexResponse indexResponse =
+        DocumentCodec.of(Tweet.class).setSource(client.prepareIndex("itest", "ttest", "1"), tweet)
+            .execute().actionGet();
+
+    System.out.println("Version: " + indexResponse.getVersion());
+  }
+
 }
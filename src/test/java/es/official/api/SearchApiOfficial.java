@@ -12,6 +12,8 @@ import org.elasticsearch.search.SearchHit;
 import org.junit.Test;
 
 import es.ESTestBase;
+import es.codec.DocumentCodec;
+import es.model.Tweet;
 
 /**
  * http://www.elasticsearch.org/guide/en/elasticsearch/client/java-api/current/search.html
@@ -95,6 +97,18 @@ public class SearchApiOfficial extends ESTestBase {
     System.out.println("Total matching for the elephant and havoc: " + totalHits);
   }
 
+  @Test
+  public void testSearchTypedHits() {
+    SearchResponse searchResponse =
+        client.prepareSearch(indexName).setTypes(typeName)
+            .setQuery(QueryBuilders.termQuery("message", "try")).execute().actionGet();
+
+    // read hits as POJOs, decoded straight from the source bytes
+    for (Tweet tweet : DocumentCodec.of(Tweet.class).fromHits(searchResponse.getHits())) {
+      System.out.println(tweet);
+    }
+  }
+
   @Test
   public void testFacets() {
     // TODO: Facet API
@@ -1,6 +1,7 @@
 package es.official.guide.modeling;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
@@ -17,6 +18,7 @@ import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.junit.Test;
 
 import es.ESTestBase;
+import es.bulk.ChildDocumentIndexer;
 
 /**
  * http://www.elasticsearch.org/guide/en/elasticsearch/guide/current/parent-child-mapping.html
@@ -161,6 +163,33 @@ public class ParentChildRelExamples extends ESTestBase {
     }
   }
   
+  /**
+   * Same children, grouped by parent routing into per-shard bulks, parents checked once
+   */
+  @Test
+  public void testIndexingChildDocsBatched() throws IOException, InterruptedException {
+    ChildDocumentIndexer indexer =
+        ChildDocumentIndexer.builder(client, indexName, typeBranch).build();
+
+    String[][] employees = { {"london", "Alice Smith", "1970-10-24", "hiking"},
+        {"london", "Mark Thomas", "1982-05-16", "diving"},
+        {"liverpool", "Barry Smith", "1979-04-01", "hiking"},
+        {"paris", "Adrien Grand", "1987-05-11", "horses"}};
+    for (int i = 0; i < employees.length; i++) {
+      indexer.addChild(client.prepareIndex(indexName, typeEmployee, String.valueOf(i + 1))
+          .setParent(employees[i][0]).setSource(XContentFactory.jsonBuilder()
+              .startObject()
+                .field("name", employees[i][1])
+                .field("dob", employees[i][2])
+                .field("hobby", employees[i][3])
+              .endObject()).request());
+    }
+    indexer.awaitClose(1, TimeUnit.MINUTES);
+
+    System.out.println(indexer.stats() + ", parent lookups: " + indexer.getParentLookups()
+        + ", orphans: " + indexer.getOrphans());
+  }
+
   @Test
   public void testFindParentsByChildren() {
     SearchResponse response = client.prepareSearch(indexName).setQuery(